@@ -0,0 +1,85 @@
+package BPlusTree;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node of a BLinkTree. The keys, the values or children, the high key and
+ * the right-link are kept together in an immutable State that writers
+ * replace as a whole, so a reader without a latch always sees a consistent
+ * node. The lock is only taken by writers.
+ */
+public class BLinkNode<K extends Comparable<K>, T> {
+  protected final boolean isLeafNode;
+  protected final int level;  // 0 for leaves, parent level = child level + 1
+  protected final ReentrantLock lock = new ReentrantLock();
+  protected volatile State state;
+
+  /**
+   * Contents of a node at one point in time
+   */
+  protected static final class State {
+    final Object[] keys;
+    final Object[] slots;  // values in a leaf, keys.length + 1 children in an index node
+    final Object highKey;  // upper bound (exclusive) of the keys in the node, null for +infinity
+    final BLinkNode<?, ?> right;
+
+    State(Object[] keys, Object[] slots, Object highKey, BLinkNode<?, ?> right) {
+      this.keys = keys;
+      this.slots = slots;
+      this.highKey = highKey;
+      this.right = right;
+    }
+  }
+
+  public BLinkNode(int level, State state) {
+    this.isLeafNode = level == 0;
+    this.level = level;
+    this.state = state;
+  }
+
+  /**
+   * @param key
+   * @param s a state of this node
+   * @return true if the key is beyond the high key, so it belongs to a node
+   *         further right
+   */
+  @SuppressWarnings("unchecked")
+  public static <K extends Comparable<K>> boolean isBeyond(K key, State s) {
+    return s.highKey != null && key.compareTo((K) s.highKey) >= 0;
+  }
+
+  /**
+   * binary search the key among the keys of a state
+   *
+   * @param key
+   * @param keys
+   * @return index of the key, or -(insertion point) - 1 if not present
+   */
+  @SuppressWarnings("unchecked")
+  public static <K extends Comparable<K>> int indexOf(K key, Object[] keys) {
+    int low = 0;
+    int high = keys.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = ((K) keys[mid]).compareTo(key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * @param key
+   * @param keys separator keys of an index node
+   * @return index of the child which may contain the key
+   */
+  public static <K extends Comparable<K>> int childIndex(K key, Object[] keys) {
+    int index = indexOf(key, keys);
+    return index < 0 ? -(index + 1) : index + 1;
+  }
+}
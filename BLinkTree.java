@@ -0,0 +1,270 @@
+package BPlusTree;
+
+import java.util.ArrayList;
+
+/**
+ * B-link tree (Lehman and Yao) for read-heavy concurrent use. Every node
+ * carries a high key and a right-link to its right sibling. A split first
+ * publishes the new right node and then shrinks the left node, so a
+ * reader that lands on a node whose high key is not above its key simply
+ * follows the right-link. Readers therefore take no latches at all.
+ *
+ * Writers descend without latches as well and lock only the leaf they
+ * change. A split then locks the parent, found on the recorded path or by
+ * moving right from it, before it releases the child. No writer ever holds
+ * more than three node locks, and locks are only taken bottom-up and left to
+ * right, so writers cannot deadlock.
+ *
+ * BLinkTree Class Assumptions:
+ * 1. Inserting an existing key replaces its value
+ * 2. Order D: nodes split when they would hold more than 2*D keys
+ * 3. Deleted keys are removed from their leaf, but nodes are never merged;
+ *    a leaf may underflow or run empty
+ */
+public class BLinkTree<K extends Comparable<K>, T> {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    volatile BLinkNode<K,T> root;  // package-private for tests
+
+    protected final int leafD;   // order of the leaf nodes
+    protected final int indexD;  // order of the index nodes
+
+    public BLinkTree() {
+        this(BPlusTree.D);
+    }
+
+    public BLinkTree(int d) {
+        this(d, d);
+    }
+
+    /**
+     * @param leafD leaf nodes split above 2*leafD key/value pairs
+     * @param indexD index nodes split above 2*indexD keys
+     */
+    public BLinkTree(int leafD, int indexD) {
+        if (leafD < 1 || indexD < 1) {
+            throw new IllegalArgumentException("order must be positive: leafD=" + leafD + ", indexD=" + indexD);
+        }
+        this.leafD = leafD;
+        this.indexD = indexD;
+        this.root = new BLinkNode<K,T>(0, new BLinkNode.State(EMPTY, EMPTY, null, null));
+    }
+
+    // search
+    /**
+     * Search the value for a specific key without taking any latch
+     *
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    @SuppressWarnings("unchecked")
+    public T search(K key) {
+        if (key == null) {
+            return null;
+        }
+        BLinkNode<K,T> node = root;
+        while (true) {
+            BLinkNode.State s = node.state;
+            if (BLinkNode.isBeyond(key, s)) {
+                node = (BLinkNode<K,T>) s.right;
+            } else if (node.isLeafNode) {
+                int index = BLinkNode.indexOf(key, s.keys);
+                return index < 0 ? null : (T) s.slots[index];
+            } else {
+                node = (BLinkNode<K,T>) s.slots[BLinkNode.childIndex(key, s.keys)];
+            }
+        }
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the tree
+     *
+     * @param key
+     * @param value
+     */
+    @SuppressWarnings("unchecked")
+    public void insert(K key, T value) {
+        ArrayList<BLinkNode<K,T>> path = new ArrayList<BLinkNode<K,T>>();
+        BLinkNode<K,T> node = root;
+        while (!node.isLeafNode) {
+            BLinkNode.State s = node.state;
+            if (BLinkNode.isBeyond(key, s)) {
+                node = (BLinkNode<K,T>) s.right;
+            } else {
+                path.add(node);
+                node = (BLinkNode<K,T>) s.slots[BLinkNode.childIndex(key, s.keys)];
+            }
+        }
+
+        BLinkNode<K,T> leaf = lockCovering(node, key);
+        BLinkNode.State s = leaf.state;
+        int index = BLinkNode.indexOf(key, s.keys);
+        if (index >= 0) {
+            Object[] values = s.slots.clone();
+            values[index] = value;
+            leaf.state = new BLinkNode.State(s.keys, values, s.highKey, s.right);
+            leaf.lock.unlock();
+            return;
+        }
+        int position = -(index + 1);
+        Object[] keys = insertAt(s.keys, position, key);
+        Object[] values = insertAt(s.slots, position, value);
+        if (keys.length <= 2 * leafD) {
+            leaf.state = new BLinkNode.State(keys, values, s.highKey, s.right);
+            leaf.lock.unlock();
+            return;
+        }
+
+        // split the leaf: publish the right node before the left one shrinks
+        BLinkNode<K,T> right = new BLinkNode<K,T>(0, new BLinkNode.State(
+                copy(keys, leafD, keys.length), copy(values, leafD, values.length), s.highKey, s.right));
+        Object splitKey = keys[leafD];
+        leaf.state = new BLinkNode.State(copy(keys, 0, leafD), copy(values, 0, leafD), splitKey, right);
+        insertIntoParent(path, leaf, (K) splitKey, right);
+    }
+
+    /**
+     * Insert the separator and the new right node of a split into the parent
+     * of the split node, splitting upwards as needed
+     *
+     * @param path index nodes visited on the way down
+     * @param child the split node, locked by the caller and unlocked here
+     * @param splitKey
+     * @param right the new right sibling of child
+     */
+    @SuppressWarnings("unchecked")
+    private void insertIntoParent(ArrayList<BLinkNode<K,T>> path, BLinkNode<K,T> child, K splitKey, BLinkNode<K,T> right) {
+        while (true) {
+            BLinkNode<K,T> parent;
+            if (!path.isEmpty()) {
+                parent = path.remove(path.size() - 1);
+            } else if (root == child) {
+                // only the writer holding the root's lock can replace it
+                root = new BLinkNode<K,T>(child.level + 1, new BLinkNode.State(
+                        new Object[] { splitKey }, new Object[] { child, right }, null, null));
+                child.lock.unlock();
+                return;
+            } else {
+                // the tree grew above child since it was reached
+                parent = findAtLevel(child.level + 1, splitKey);
+            }
+            parent = lockCovering(parent, splitKey);
+            child.lock.unlock();
+
+            BLinkNode.State s = parent.state;
+            int position = BLinkNode.childIndex(splitKey, s.keys);
+            Object[] keys = insertAt(s.keys, position, splitKey);
+            Object[] children = insertAt(s.slots, position + 1, right);
+            if (keys.length <= 2 * indexD) {
+                parent.state = new BLinkNode.State(keys, children, s.highKey, s.right);
+                parent.lock.unlock();
+                return;
+            }
+
+            // split the index node, its middle key moves up
+            BLinkNode<K,T> newRight = new BLinkNode<K,T>(parent.level, new BLinkNode.State(
+                    copy(keys, indexD + 1, keys.length), copy(children, indexD + 1, children.length), s.highKey, s.right));
+            Object middle = keys[indexD];
+            parent.state = new BLinkNode.State(copy(keys, 0, indexD), copy(children, 0, indexD + 1), middle, newRight);
+            child = parent;
+            splitKey = (K) middle;
+            right = newRight;
+        }
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from the tree. The leaf is not merged with its
+     * siblings if it underflows.
+     *
+     * @param key
+     */
+    @SuppressWarnings("unchecked")
+    public void delete(K key) {
+        BLinkNode<K,T> node = root;
+        while (!node.isLeafNode) {
+            BLinkNode.State s = node.state;
+            node = (BLinkNode<K,T>) (BLinkNode.isBeyond(key, s) ? s.right : s.slots[BLinkNode.childIndex(key, s.keys)]);
+        }
+        BLinkNode<K,T> leaf = lockCovering(node, key);
+        try {
+            BLinkNode.State s = leaf.state;
+            int index = BLinkNode.indexOf(key, s.keys);
+            if (index >= 0) {
+                leaf.state = new BLinkNode.State(removeAt(s.keys, index), removeAt(s.slots, index), s.highKey, s.right);
+            }
+        } finally {
+            leaf.lock.unlock();
+        }
+    }
+
+    /**
+     * Lock the node, then move right with lock coupling until reaching the
+     * node whose key range contains the key
+     *
+     * @return the locked node covering the key
+     */
+    @SuppressWarnings("unchecked")
+    private BLinkNode<K,T> lockCovering(BLinkNode<K,T> node, K key) {
+        node.lock.lock();
+        BLinkNode.State s = node.state;
+        while (BLinkNode.isBeyond(key, s)) {
+            BLinkNode<K,T> next = (BLinkNode<K,T>) s.right;
+            next.lock.lock();
+            node.lock.unlock();
+            node = next;
+            s = node.state;
+        }
+        return node;
+    }
+
+    /**
+     * Descend from the root to the node at the given level which may contain
+     * the key, without locking
+     */
+    @SuppressWarnings("unchecked")
+    private BLinkNode<K,T> findAtLevel(int level, K key) {
+        BLinkNode<K,T> node = root;
+        while (node.level < level) {
+            // a right sibling of the root was split before the writer that
+            // split the root published the new one; that writer holds the
+            // old root's lock until then
+            node.lock.lock();
+            node.lock.unlock();
+            node = root;
+        }
+        while (true) {
+            BLinkNode.State s = node.state;
+            if (BLinkNode.isBeyond(key, s)) {
+                node = (BLinkNode<K,T>) s.right;
+            } else if (node.level == level) {
+                return node;
+            } else {
+                node = (BLinkNode<K,T>) s.slots[BLinkNode.childIndex(key, s.keys)];
+            }
+        }
+    }
+
+    private static Object[] insertAt(Object[] array, int index, Object element) {
+        Object[] result = new Object[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = element;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static Object[] removeAt(Object[] array, int index) {
+        Object[] result = new Object[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static Object[] copy(Object[] array, int from, int to) {
+        Object[] result = new Object[to - from];
+        System.arraycopy(array, from, result, 0, to - from);
+        return result;
+    }
+}
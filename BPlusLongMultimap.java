@@ -0,0 +1,261 @@
+package BPlusTree;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * B+ tree mapping each key to any number of long values, for secondary
+ * indexes whose values are row ids.
+ *
+ * Every key is stored once, and its leaf slot holds the key's row ids: a
+ * Long while there is only one, a posting list of unboxed longs kept sorted
+ * in an array once there are more. A row id costs 8 bytes instead of a boxed
+ * Long and a reference, and finding, adding or removing one is a binary
+ * search in the key's array. Row ids usually arrive in ascending order, so
+ * an insert is mostly an append. As in BPlusMultimap, runs of equal keys
+ * never reach the nodes and splits, merges and separators work as in a
+ * unique tree.
+ *
+ * The row ids of a key are returned in ascending order. The multimap is not
+ * thread-safe.
+ */
+public class BPlusLongMultimap<K extends Comparable<K>> {
+
+    private final BPlusTree<K, Object> tree;
+    private long size;  // number of key/value pairs
+
+    /**
+     * Create a multimap of the default order BPlusTree.D
+     */
+    public BPlusLongMultimap() {
+        this(BPlusTree.D);
+    }
+
+    /**
+     * @param d order of the underlying tree
+     */
+    public BPlusLongMultimap(int d) {
+        this(d, d);
+    }
+
+    /**
+     * @param leafD order of the leaf nodes of the underlying tree
+     * @param indexD order of the index nodes of the underlying tree
+     */
+    public BPlusLongMultimap(int leafD, int indexD) {
+        tree = new BPlusTree<K, Object>(leafD, indexD);
+    }
+
+    /**
+     * @return number of key/value pairs
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @param key
+     * @return true if at least one value is stored under the key
+     */
+    public boolean containsKey(K key) {
+        return tree.search(key) != null;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return true if the value is stored under the key
+     */
+    public boolean contains(K key, long value) {
+        Object slot = tree.search(key);
+        if (slot == null) {
+            return false;
+        }
+        if (slot instanceof LongPostings) {
+            return ((LongPostings) slot).indexOf(value) >= 0;
+        }
+        return ((Long) slot).longValue() == value;
+    }
+
+    /**
+     * @param key
+     * @return number of values stored under the key
+     */
+    public int count(K key) {
+        Object slot = tree.search(key);
+        if (slot == null) {
+            return 0;
+        }
+        return slot instanceof LongPostings ? ((LongPostings) slot).size : 1;
+    }
+
+    /**
+     * Add a value to the values of a key. The same value may be added more
+     * than once.
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(K key, long value) {
+        LeafNode<K, Object> leaf = tree.searchLeafNode(key);
+        int index = leaf == null ? -1 : Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            tree.insert(key, Long.valueOf(value));
+        } else {
+            Object slot = leaf.values.get(index);
+            if (slot instanceof LongPostings) {
+                ((LongPostings) slot).add(value);
+            } else {
+                LongPostings postings = new LongPostings(((Long) slot).longValue());
+                postings.add(value);
+                leaf.values.set(index, postings);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Remove one occurrence of a value from the values of a key, and the key
+     * with its last value
+     *
+     * @param key
+     * @param value
+     * @return true if the value was found
+     */
+    public boolean delete(K key, long value) {
+        LeafNode<K, Object> leaf = tree.searchLeafNode(key);
+        int index = leaf == null ? -1 : Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            return false;
+        }
+        Object slot = leaf.values.get(index);
+        if (slot instanceof LongPostings) {
+            LongPostings postings = (LongPostings) slot;
+            if (!postings.remove(value)) {
+                return false;
+            }
+            if (postings.size == 1) {
+                leaf.values.set(index, Long.valueOf(postings.values[0]));
+            }
+        } else if (((Long) slot).longValue() == value) {
+            tree.delete(key);
+        } else {
+            return false;
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove a key and all of its values
+     *
+     * @param key
+     * @return number of values removed
+     */
+    public int deleteAll(K key) {
+        int count = count(key);
+        if (count > 0) {
+            tree.delete(key);
+            size -= count;
+        }
+        return count;
+    }
+
+    /**
+     * The values of a key in ascending order, read from the posting list in
+     * place rather than copied. Changing the values of the key while
+     * iterating makes the iterator throw ConcurrentModificationException.
+     *
+     * @param key
+     * @return the values, empty if the key is not present
+     */
+    public PrimitiveIterator.OfLong getAll(K key) {
+        Object slot = tree.search(key);
+        final LongPostings postings;
+        if (slot == null) {
+            postings = new LongPostings();
+        } else if (slot instanceof LongPostings) {
+            postings = (LongPostings) slot;
+        } else {
+            postings = new LongPostings(((Long) slot).longValue());
+        }
+        return new PrimitiveIterator.OfLong() {
+            private final int expectedModCount = postings.modCount;
+            private int next;
+
+            public boolean hasNext() {
+                return next < postings.size;
+            }
+
+            public long nextLong() {
+                if (postings.modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= postings.size) {
+                    throw new NoSuchElementException();
+                }
+                return postings.values[next++];
+            }
+        };
+    }
+
+    /**
+     * Sorted values of a key with more than one value
+     */
+    private static final class LongPostings {
+        long[] values;
+        int size;
+        int modCount;
+
+        LongPostings() {
+            values = new long[0];
+        }
+
+        LongPostings(long first) {
+            values = new long[4];
+            values[0] = first;
+            size = 1;
+        }
+
+        /**
+         * @return index of an occurrence of the value, or -(insertion point) - 1
+         */
+        int indexOf(long value) {
+            return Arrays.binarySearch(values, 0, size, value);
+        }
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            int index = size;
+            if (size > 0 && values[size - 1] > value) {
+                index = indexOf(value);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                System.arraycopy(values, index, values, index + 1, size - index);
+            }
+            values[index] = value;
+            size++;
+            modCount++;
+        }
+
+        boolean remove(long value) {
+            int index = indexOf(value);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            modCount++;
+            if (size < values.length / 4 && values.length > 4) {
+                values = Arrays.copyOf(values, Math.max(4, size * 2));
+            }
+            return true;
+        }
+    }
+}
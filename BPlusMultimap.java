@@ -0,0 +1,237 @@
+package BPlusTree;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * B+ tree mapping each key to any number of values, for secondary indexes
+ * where a key stands for many row ids.
+ *
+ * Every key is stored once, and its leaf slot holds the key's values: the
+ * value itself while there is only one, an array of references grown by half
+ * its size once there are more. So runs of equal keys never reach the nodes
+ * and splits, merges and separators work as in a unique tree. Adding a value
+ * to an existing key is one descent and an append in place, with no list per
+ * key to read, copy and write back. The values stay boxed objects, and
+ * delete(key, value) scans the values of the key; for row ids use
+ * BPlusLongMultimap, which keeps them unboxed and sorted.
+ *
+ * The values of a key keep their insertion order. The multimap is not
+ * thread-safe.
+ */
+public class BPlusMultimap<K extends Comparable<K>, T> {
+
+    private final BPlusTree<K, Object> tree;
+    private long size;  // number of key/value pairs
+
+    /**
+     * Create a multimap of the default order BPlusTree.D
+     */
+    public BPlusMultimap() {
+        this(BPlusTree.D);
+    }
+
+    /**
+     * @param d order of the underlying tree
+     */
+    public BPlusMultimap(int d) {
+        this(d, d);
+    }
+
+    /**
+     * @param leafD order of the leaf nodes of the underlying tree
+     * @param indexD order of the index nodes of the underlying tree
+     */
+    public BPlusMultimap(int leafD, int indexD) {
+        tree = new BPlusTree<K, Object>(leafD, indexD);
+    }
+
+    /**
+     * @return number of key/value pairs
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @param key
+     * @return true if at least one value is stored under the key
+     */
+    public boolean containsKey(K key) {
+        return tree.search(key) != null;
+    }
+
+    /**
+     * @param key
+     * @return number of values stored under the key
+     */
+    public int count(K key) {
+        Object slot = tree.search(key);
+        if (slot == null) {
+            return 0;
+        }
+        return slot instanceof Postings ? ((Postings) slot).size : 1;
+    }
+
+    /**
+     * Add a value to the values of a key. The same value may be added more
+     * than once.
+     *
+     * @param key
+     * @param value not null
+     */
+    public void insert(K key, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+        LeafNode<K, Object> leaf = tree.searchLeafNode(key);
+        int index = leaf == null ? -1 : Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            tree.insert(key, value);
+        } else {
+            Object slot = leaf.values.get(index);
+            if (slot instanceof Postings) {
+                ((Postings) slot).add(value);
+            } else {
+                Postings postings = new Postings(slot);
+                postings.add(value);
+                leaf.values.set(index, postings);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Remove one occurrence of a value from the values of a key, and the key
+     * with its last value
+     *
+     * @param key
+     * @param value
+     * @return true if the value was found
+     */
+    public boolean delete(K key, T value) {
+        LeafNode<K, Object> leaf = tree.searchLeafNode(key);
+        int index = leaf == null ? -1 : Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            return false;
+        }
+        Object slot = leaf.values.get(index);
+        if (slot instanceof Postings) {
+            Postings postings = (Postings) slot;
+            if (!postings.remove(value)) {
+                return false;
+            }
+            if (postings.size == 1) {
+                leaf.values.set(index, postings.values[0]);
+            }
+        } else if (slot.equals(value)) {
+            tree.delete(key);
+        } else {
+            return false;
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove a key and all of its values
+     *
+     * @param key
+     * @return number of values removed
+     */
+    public int deleteAll(K key) {
+        int count = count(key);
+        if (count > 0) {
+            tree.delete(key);
+            size -= count;
+        }
+        return count;
+    }
+
+    /**
+     * The values of a key in insertion order, read from the posting list in
+     * place rather than copied. Changing the values of the key while
+     * iterating makes the iterator throw ConcurrentModificationException.
+     *
+     * @param key
+     * @return the values, empty if the key is not present
+     */
+    public Iterable<T> getAll(final K key) {
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                Object slot = tree.search(key);
+                if (slot == null) {
+                    return Collections.<T>emptyIterator();
+                }
+                if (!(slot instanceof Postings)) {
+                    return Collections.singleton(cast(slot)).iterator();
+                }
+                final Postings postings = (Postings) slot;
+                return new Iterator<T>() {
+                    private final int expectedModCount = postings.modCount;
+                    private int next;
+
+                    public boolean hasNext() {
+                        return next < postings.size;
+                    }
+
+                    public T next() {
+                        if (postings.modCount != expectedModCount) {
+                            throw new ConcurrentModificationException();
+                        }
+                        if (next >= postings.size) {
+                            throw new NoSuchElementException();
+                        }
+                        return cast(postings.values[next++]);
+                    }
+                };
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private T cast(Object value) {
+        return (T) value;
+    }
+
+    /**
+     * Values of a key with more than one value
+     */
+    private static final class Postings {
+        Object[] values;
+        int size;
+        int modCount;
+
+        Postings(Object first) {
+            values = new Object[4];
+            values[0] = first;
+            size = 1;
+        }
+
+        void add(Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            values[size++] = value;
+            modCount++;
+        }
+
+        boolean remove(Object value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i].equals(value)) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    values[--size] = null;
+                    modCount++;
+                    if (size < values.length / 4 && values.length > 4) {
+                        values = Arrays.copyOf(values, Math.max(4, size * 2));
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -4,136 +4,1063 @@ import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * BPlusTree Class Assumptions: 
- * 1. No duplicate keys inserted 
+ * 1. No duplicate keys inserted (BPlusMultimap keeps many values per key)
  * 2. Order D: D <= number of keys in a node <= 2*D 
+ *    (leaf and index nodes may use different orders). The lower bound
+ *    only holds with the default MIDPOINT split policy: RIGHTMOST and
+ *    ADAPTIVE leave nodes with as few as one key, and deferred rebalancing
+ *    leaves underflowed nodes until rebalance()
  * 3. All keys are non-negative
  */
 public class BPlusTree<K extends Comparable<K>, T> {
 
     public Entry<K, Node<K,T>> newchildentry;  // the helper entry for insert
     public Node<K,T> root;
-    public static final int D = 2;
+    public static final int D = 2;  // the default order
 
-    // search
-    public T search(K key) {
-        return (T) new Search().search(key);
+    protected final int leafD;   // order of the leaf nodes
+    protected final int indexD;  // order of the index nodes
+
+    // the index nodes on the path of the current insert/delete, and the
+    // child taken from each; reused so that a descent allocates nothing
+    private IndexNode<K,T>[] pathNodes = newPath(8);
+    private int[] pathIndexes = new int[8];
+
+    // the finger: the leaf of the last operation and the separators bounding
+    // its key range, fingerLow <= key < fingerHigh (null is unbounded)
+    private boolean fingerEnabled;
+    private LeafNode<K,T> finger;
+    private K fingerLow;
+    private K fingerHigh;
+
+    // subtree entry counts in the index nodes, see setOrderStatisticsEnabled
+    private boolean orderStatistics;
+
+    // deferred rebalancing: deletes leave underflowed leaves in place and
+    // remember one of their keys, until rebalance() repairs them together
+    private boolean deferRebalancing;
+    private int rebalanceThreshold;
+    private final ArrayList<K> underflowKeys = new ArrayList<K>();
+
+    // filter consulted by search before descending, null while switched off
+    private BloomFilter<K> bloomFilter;
+
+    // where overflowed nodes are split
+    private SplitPolicy splitPolicy = SplitPolicy.MIDPOINT;
+
+    // counters of splits, merges and operations, null while switched off
+    protected TreeMetrics metrics;
+
+    /**
+     * Create a tree of the default order D
+     */
+    public BPlusTree() {
+        this(D);
     }
 
-    // insert
     /**
-     * Insert a key/value pair into the BPlusTree
+     * Create a tree whose leaf and index nodes both hold d..2*d keys
      * 
-     * @param key
-     * @param value
+     * @param d order of the tree
      */
-    public void insert(K key, T value) {
-        Entry<K,Node<K,T>> entry = new AbstractMap.SimpleEntry<K,Node<K,T>>(key, new LeafNode<K, T>(key,value));
+    public BPlusTree(int d) {
+        this(d, d);
+    }
+
+    /**
+     * Create a tree with separate orders for leaf and index nodes
+     * 
+     * @param leafD leaf nodes hold leafD..2*leafD key/value pairs
+     * @param indexD index nodes hold indexD..2*indexD keys
+     */
+    public BPlusTree(int leafD, int indexD) {
+        if (leafD < 1 || indexD < 1) {
+            throw new IllegalArgumentException("order must be positive: leafD=" + leafD + ", indexD=" + indexD);
+        }
+        this.leafD = leafD;
+        this.indexD = indexD;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K extends Comparable<K>, T> IndexNode<K,T>[] newPath(int length) {
+        return (IndexNode<K,T>[]) new IndexNode[length];
+    }
+
+    /**
+     * Turn the finger on or off. With the finger on, the tree remembers the
+     * leaf of the last insert, delete or search and the separators bounding
+     * its key range. An operation on a key inside that range skips the
+     * descent, unless it would split or underflow the leaf. This makes
+     * appends of increasing keys and lookups near the last key O(1). Splits
+     * move the finger to the half holding the key, and merges and
+     * redistributions drop it.
+     *
+     * @param enabled
+     */
+    public void setFingerEnabled(boolean enabled) {
+        fingerEnabled = enabled;
+        dropFinger();
+    }
+
+    public boolean isFingerEnabled() {
+        return fingerEnabled;
+    }
+
+    /**
+     * @return the finger leaf if the key falls inside its range, null otherwise
+     */
+    private LeafNode<K,T> fingerFor(K key) {
+        LeafNode<K,T> leaf = finger;
+        if (leaf == null
+                || (fingerLow != null && key.compareTo(fingerLow) < 0)
+                || (fingerHigh != null && key.compareTo(fingerHigh) >= 0)) {
+            return null;
+        }
+        return leaf;
+    }
+
+    private void moveFinger(LeafNode<K,T> leaf, K low, K high) {
+        if (fingerEnabled) {
+            finger = leaf;
+            fingerLow = low;
+            fingerHigh = high;
+        }
+    }
+
+    private void dropFinger() {
+        finger = null;
+        fingerLow = null;
+        fingerHigh = null;
+    }
+
+    /**
+     * Start recording into the given metrics, or stop recording with null.
+     * Set the metrics before the tree is shared between threads.
+     *
+     * @param metrics
+     */
+    public void setMetrics(TreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public TreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Turn order statistics on or off. With order statistics on, every index
+     * node keeps the number of entries below each of its children, which
+     * inserts, deletes, splits, merges and redistributions keep up to date.
+     * rank, select, countRange, rows and Cursor.seekPosition use these
+     * counts to find a position in O(log n) instead of walking the leaves.
+     * The counts cost one long per child, and updating them costs an
+     * increment per level on insert and delete plus a recount of the nodes
+     * changed by a split or merge. Turning them on counts the whole tree
+     * once; the finger is not used while they are on.
+     *
+     * @param enabled
+     */
+    public void setOrderStatisticsEnabled(boolean enabled) {
+        if (enabled && !orderStatistics && root != null) {
+            recountAll(root);
+        }
+        if (!enabled && orderStatistics && root != null) {
+            dropCounts(root);
+        }
+        orderStatistics = enabled;
+    }
+
+    public boolean isOrderStatisticsEnabled() {
+        return orderStatistics;
+    }
+
+    void checkOrderStatistics() {
+        if (!orderStatistics) {
+            throw new IllegalStateException("order statistics are not enabled");
+        }
+    }
+
+    /**
+     * Recompute the counts of an index node from its children, whose own
+     * counts must be up to date
+     */
+    private void recount(IndexNode<K,T> index) {
+        int n = index.children.size();
+        if (index.counts == null || index.counts.length < n) {
+            index.counts = new long[Math.max(n, 2 * indexD + 2)];
+        }
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            Node<K,T> child = index.children.get(i);
+            long count = child.isLeafNode ? child.keys.size() : ((IndexNode<K,T>) child).total;
+            index.counts[i] = count;
+            total += count;
+        }
+        index.total = total;
+    }
+
+    private void recountAll(Node<K,T> node) {
+        if (!node.isLeafNode) {
+            IndexNode<K,T> index = (IndexNode<K,T>) node;
+            for (Node<K,T> child : index.children) {
+                recountAll(child);
+            }
+            recount(index);
+        }
+    }
+
+    private void dropCounts(Node<K,T> node) {
+        if (!node.isLeafNode) {
+            IndexNode<K,T> index = (IndexNode<K,T>) node;
+            index.counts = null;
+            index.total = 0;
+            for (Node<K,T> child : index.children) {
+                dropCounts(child);
+            }
+        }
+    }
+
+    /**
+     * Turn deferred rebalancing on or off. With it on, delete only removes
+     * the entry: a leaf may fall below leafD entries, down to none, and stays
+     * where it is, so a delete never merges or redistributes. Once threshold
+     * deletes have left a leaf underflowed, or when rebalance() is called,
+     * all the underflowed leaves and their ancestors are rebuilt in one
+     * pass, each run of neighbours once. Leaves refilled by inserts in the
+     * meantime are left alone. This suits workloads that delete and
+     * reinsert nearby keys, which would otherwise merge and split the same
+     * nodes over and over.
+     *
+     * Searches and scans are not affected by underflowed leaves beyond the
+     * extra leaves they may pass. Turning the mode off rebalances first.
+     *
+     * @param enabled
+     * @param threshold underflowing deletes after which delete rebalances
+     *        by itself; Integer.MAX_VALUE to rebalance only on request
+     */
+    public void setDeferredRebalancing(boolean enabled, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        if (!enabled) {
+            rebalance();
+        }
+        deferRebalancing = enabled;
+        rebalanceThreshold = threshold;
+    }
+
+    public boolean isDeferredRebalancing() {
+        return deferRebalancing;
+    }
+
+    /**
+     * @return number of deletes that left a leaf underflowed since the last
+     *         rebalance, an upper bound of the leaves to repair
+     */
+    public int pendingRebalance() {
+        return underflowKeys.size();
+    }
+
+    /**
+     * Repair the leaves left underflowed by deletes with deferred
+     * rebalancing, merging or redistributing each run of out-of-bounds
+     * siblings once, and the index nodes above them in the same pass
+     */
+    public void rebalance() {
+        if (underflowKeys.isEmpty()) {
+            return;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        K[] keys = (K[]) underflowKeys.toArray(new Comparable[underflowKeys.size()]);
+        underflowKeys.clear();
         if (root == null) {
-        	root = entry.getValue();
+            return;
+        }
+        Arrays.sort(keys);
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (n == 0 || keys[n - 1].compareTo(keys[i]) != 0) {
+                keys[n++] = keys[i];
+            }
+        }
+        dropFinger();
+        applyBatchAtRoot(Arrays.copyOf(keys, n), null);
+    }
+
+    /**
+     * Choose where inserts split overflowed nodes. SplitPolicy.MIDPOINT, the
+     * default, leaves both halves half full, so a tree filled by appending
+     * increasing keys ends up with every node but the last half empty.
+     * SplitPolicy.RIGHTMOST and SplitPolicy.ADAPTIVE keep such appends
+     * filling their nodes almost completely. Only inserts follow the
+     * policy; bulkLoad and applyBatch cut nodes to their own fill.
+     *
+     * @param policy
+     */
+    public void setSplitPolicy(SplitPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("null split policy");
+        }
+        splitPolicy = policy;
+    }
+
+    public SplitPolicy getSplitPolicy() {
+        return splitPolicy;
+    }
+
+    /**
+     * Put a Bloom filter in front of search, or remove it with null. The
+     * filter is built from the current entries, and insert, applyBatch and
+     * bulkLoad add their keys to it. search then returns null for most
+     * absent keys after one cache line read instead of a descent. Deleted
+     * keys stay in the filter until it is rebuilt, which happens once
+     * inserts outgrow its size, see BloomFilter. Only search consults the
+     * filter; searchBatch, cursors and scans descend as before.
+     *
+     * @param filter
+     */
+    public void setBloomFilter(BloomFilter<K> filter) {
+        bloomFilter = filter;
+        if (filter != null) {
+            rebuildBloomFilter();
+        }
+    }
+
+    public BloomFilter<K> getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Refill the filter with the keys of the leaves, sized for their number
+     */
+    private void rebuildBloomFilter() {
+        Node<K,T> node = root;
+        while (node != null && !node.isLeafNode) {
+            node = ((IndexNode<K,T>) node).children.get(0);
+        }
+        long entries = 0;
+        for (LeafNode<K,T> leaf = (LeafNode<K,T>) node; leaf != null; leaf = leaf.nextLeaf) {
+            entries += leaf.keys.size();
+        }
+        bloomFilter.reset(entries);
+        for (LeafNode<K,T> leaf = (LeafNode<K,T>) node; leaf != null; leaf = leaf.nextLeaf) {
+            for (K key : leaf.keys) {
+                bloomFilter.add(key);
+            }
+        }
+    }
+
+    /**
+     * Add an inserted key to the filter, rebuilding it when it is outgrown
+     */
+    private void addToBloomFilter(K key) {
+        bloomFilter.add(key);
+        if (bloomFilter.needsRebuild()) {
+            rebuildBloomFilter();
+        }
+    }
+
+    public int getLeafOrder() {
+        return leafD;
+    }
+
+    public int getIndexOrder() {
+        return indexD;
+    }
+
+    /**
+     * @param node
+     * @return the order that applies to this node
+     */
+    protected int orderOf(Node<K,T> node) {
+        return node.isLeafNode ? leafD : indexD;
+    }
+
+    // search
+    /**
+     * Search the value for a specific key
+     * 
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    public T search(K key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+            return null;  // counted by the filter, not by the metrics
+        }
+        if (metrics != null) {
+            return searchMeasured(key);
+        }
+        LeafNode<K,T> leaf = fingerEnabled ? searchLeafNodeWithFinger(key) : searchLeafNode(key);
+        int index = Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            if (bloomFilter != null) {
+                bloomFilter.falsePositive();
+            }
+            return null;
         }
+        return leaf.values.get(index);
+    }
 
-        Entry<K,Node<K,T>> newChildEntry = insertHelper(root,entry,null);
+    /**
+     * search, counting the nodes visited and the key comparisons and timing
+     * the lookup
+     */
+    private T searchMeasured(K key) {
+        long start = System.nanoTime();
+        int nodes = 1;
+        int comparisons = 0;
+        LeafNode<K,T> leaf = fingerEnabled ? fingerFor(key) : null;
+        if (leaf == null) {
+            K low = null;
+            K high = null;
+            Node<K,T> node = root;
+            while (!node.isLeafNode) {
+                int childIndex = node.upperBound(key);
+                comparisons += TreeMetrics.probes(node.keys.size());
+                if (childIndex > 0) {
+                    low = node.keys.get(childIndex - 1);
+                }
+                if (childIndex < node.keys.size()) {
+                    high = node.keys.get(childIndex);
+                }
+                node = ((IndexNode<K,T>) node).children.get(childIndex);
+                nodes++;
+            }
+            leaf = (LeafNode<K,T>) node;
+            moveFinger(leaf, low, high);
+        }
+        comparisons += TreeMetrics.probes(leaf.keys.size());
+        int index = Collections.binarySearch(leaf.keys, key);
+        T value = index < 0 ? null : leaf.values.get(index);
+        if (index < 0 && bloomFilter != null) {
+            bloomFilter.falsePositive();
+        }
+        metrics.recordSearch(nodes, comparisons, System.nanoTime() - start);
+        return value;
+    }
 
-        if (newChildEntry == null) {
+    /**
+     * Find the leaf node which may contain the key, starting from the finger
+     * if it covers the key and moving the finger to the leaf otherwise
+     */
+    private LeafNode<K,T> searchLeafNodeWithFinger(K key) {
+        LeafNode<K,T> leaf = fingerFor(key);
+        if (leaf != null) {
+            return leaf;
+        }
+        K low = null;
+        K high = null;
+        Node<K,T> node = root;
+        while (!node.isLeafNode) {
+            int childIndex = node.upperBound(key);
+            if (childIndex > 0) {
+                low = node.keys.get(childIndex - 1);
+            }
+            if (childIndex < node.keys.size()) {
+                high = node.keys.get(childIndex);
+            }
+            node = ((IndexNode<K,T>) node).children.get(childIndex);
+        }
+        leaf = (LeafNode<K,T>) node;
+        moveFinger(leaf, low, high);
+        return leaf;
+    }
+
+    /**
+     * Search the values of many keys in one pass over the tree. The batch is
+     * split across the children of each index node, so every node on the
+     * way to a touched leaf is visited once no matter how many keys it
+     * routes, and the call allocates nothing.
+     *
+     * @param keys keys in ascending order
+     * @param values receives the value of keys[i] in values[i], null if the key is not in the tree
+     * @throws IllegalArgumentException if the keys are not sorted or values is too short
+     */
+    public void searchBatch(K[] keys, T[] values) {
+        if (values.length < keys.length) {
+            throw new IllegalArgumentException("got " + keys.length + " keys but room for " + values.length + " values");
+        }
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1].compareTo(keys[i]) > 0) {
+                throw new IllegalArgumentException("keys are not sorted at index " + i);
+            }
+        }
+        searchBatchFromRoot(keys, values);
+    }
+
+    /**
+     * Resolve checked, sorted keys from the root
+     */
+    protected void searchBatchFromRoot(K[] keys, T[] values) {
+        Node<K,T> node = root;
+        if (node == null) {
+            Arrays.fill(values, 0, keys.length, null);
             return;
-        } else {
-            root = new IndexNode(newChildEntry.getKey(), root, newChildEntry.getValue());
+        }
+        searchBatch(node, keys, 0, keys.length, values);
+    }
+
+    /**
+     * Sort the keys and search all of their values, see searchBatch
+     *
+     * @param keys keys to look up, sorted in place
+     * @param values receives the value of the sorted keys[i] in values[i]
+     */
+    public void getAll(K[] keys, T[] values) {
+        Arrays.sort(keys);
+        searchBatch(keys, values);
+    }
+
+    /**
+     * Resolve keys[from, to), all of which belong below node
+     */
+    protected void searchBatch(Node<K,T> node, K[] keys, int from, int to, T[] values) {
+        if (node.isLeafNode) {
+            LeafNode<K,T> leaf = (LeafNode<K,T>) node;
+            for (int i = from; i < to; i++) {
+                int index = Collections.binarySearch(leaf.keys, keys[i]);
+                values[i] = index < 0 ? null : leaf.values.get(index);
+            }
             return;
         }
+        IndexNode<K,T> index = (IndexNode<K,T>) node;
+        int start = from;
+        while (start < to) {
+            int child = index.upperBound(keys[start]);
+            int end = start + 1;
+            if (child == index.keys.size()) {
+                end = to;  // the rest go to the last child
+            } else {
+                K separator = index.keys.get(child);
+                while (end < to && keys[end].compareTo(separator) < 0) {
+                    end++;
+                }
+            }
+            searchBatch(index.children.get(child), keys, start, end, values);
+            start = end;
+        }
     }
-  
+
     /**
-     * Helper function for Insert
+     * Find the leaf node which may contain the key, without allocating
      * 
-     * @param node
-     * @param entry
-     * @param newChildEntry
+     * @param key
+     * @return leaf node, null if the tree is empty
      */
-    private Entry<K, Node<K,T>> insertHelper(Node<K, T> node,Entry<K, Node<K,T>> entry, Entry<K, Node<K,T>> newChildEntry) {
-        if (!node.isLeafNode) {
-            return insertIndexNodeHelper(node, entry, newChildEntry);
-        } else {
-            return insertLeafNodeHelper(node, entry, newChildEntry);
+    protected LeafNode<K,T> searchLeafNode(K key) {
+        Node<K,T> node = root;
+        if (node == null) {
+            return null;
         }
+        while (!node.isLeafNode) {
+            node = ((IndexNode<K,T>) node).children.get(node.upperBound(key));
+        }
+        return (LeafNode<K,T>) node;
+    }
+
+    // order statistics
+    /**
+     * Number of keys smaller than the given key, in O(log n). This is the
+     * position of the key in key order if it is in the tree, and the
+     * position it would take otherwise.
+     *
+     * @param key
+     * @return rank of the key
+     * @throws IllegalStateException if order statistics are not enabled
+     */
+    public long rank(K key) {
+        checkOrderStatistics();
+        Node<K,T> node = root;
+        if (node == null) {
+            return 0;
+        }
+        long rank = 0;
+        while (!node.isLeafNode) {
+            IndexNode<K,T> index = (IndexNode<K,T>) node;
+            int childIndex = index.upperBound(key);
+            for (int i = 0; i < childIndex; i++) {
+                rank += index.counts[i];
+            }
+            node = index.children.get(childIndex);
+        }
+        int position = Collections.binarySearch(node.keys, key);
+        return rank + (position < 0 ? -(position + 1) : position);
+    }
+
+    /**
+     * The entry at the given position in key order, in O(log n)
+     *
+     * @param position 0 for the smallest key
+     * @return the key/value pair
+     * @throws IndexOutOfBoundsException if position is not in [0, number of entries)
+     * @throws IllegalStateException if order statistics are not enabled
+     */
+    public Entry<K,T> select(long position) {
+        Cursor<K,T> cursor = cursor();
+        if (!cursor.seekPosition(position)) {
+            throw new IndexOutOfBoundsException("position " + position + " of " + countRange(null, null) + " entries");
+        }
+        return new AbstractMap.SimpleImmutableEntry<K,T>(cursor.key(), cursor.value());
+    }
+
+    /**
+     * Number of entries with from <= key < to, in O(log n)
+     *
+     * @param from lower bound (inclusive), null for unbounded
+     * @param to upper bound (exclusive), null for unbounded
+     * @throws IllegalStateException if order statistics are not enabled
+     */
+    public long countRange(K from, K to) {
+        checkOrderStatistics();
+        if (root == null) {
+            return 0;
+        }
+        long high = to == null ? (root.isLeafNode ? root.keys.size() : ((IndexNode<K,T>) root).total) : rank(to);
+        long low = from == null ? 0 : rank(from);
+        return Math.max(0, high - low);
+    }
+
+    /**
+     * Entries at positions [from, to) in key order, for paging through the
+     * tree: the first entry is found in O(log n), the rest by following the
+     * leaf chain
+     *
+     * @param from position of the first entry (inclusive)
+     * @param to position after the last entry (exclusive)
+     * @throws IllegalStateException if order statistics are not enabled
+     */
+    public Iterable<Entry<K,T>> rows(final long from, final long to) {
+        checkOrderStatistics();
+        return new Iterable<Entry<K,T>>() {
+            public Iterator<Entry<K,T>> iterator() {
+                final Cursor<K,T> cursor = cursor();
+                cursor.seekPosition(Math.max(0, from));
+                return new Iterator<Entry<K,T>>() {
+                    private long position = Math.max(0, from);
+
+                    public boolean hasNext() {
+                        return position < to && cursor.isValid();
+                    }
+
+                    public Entry<K,T> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<K,T> entry = new AbstractMap.SimpleImmutableEntry<K,T>(cursor.key(), cursor.value());
+                        cursor.next();
+                        position++;
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+
+    // range scan
+    /**
+     * @return a new cursor over this tree
+     */
+    public Cursor<K,T> cursor() {
+        return new Cursor<K,T>(this);
     }
 
     /**
-     * Helper function for insertHelper, deal with index node case
+     * Entries with from <= key < to, in ascending key order
      * 
-     * @param node
-     * @param entry
-     * @param newChildEntry
+     * @param from lower bound (inclusive)
+     * @param to upper bound (exclusive)
      */
-    public Entry<K, Node<K,T>> insertIndexNodeHelper(Node<K, T> node,Entry<K, Node<K,T>> entry, Entry<K, Node<K,T>> newChildEntry) {
-        IndexNode<K, T> indexNode = (IndexNode)node;
-        int i = 0;
-        while (i < node.keys.size()) { // find the index that node <= entry.key
-            if (entry.getKey().compareTo(node.keys.get(i)) < 0) {
-                break;
+    public Iterable<Entry<K,T>> range(K from, K to) {
+        return scan(from, to);
+    }
+
+    /**
+     * Entries with key < to, in ascending key order
+     * 
+     * @param to upper bound (exclusive)
+     */
+    public Iterable<Entry<K,T>> headRange(K to) {
+        return scan(null, to);
+    }
+
+    /**
+     * Entries with key >= from, in ascending key order
+     * 
+     * @param from lower bound (inclusive)
+     */
+    public Iterable<Entry<K,T>> tailRange(K from) {
+        return scan(from, null);
+    }
+
+    /**
+     * Helper function for the range scans, a null bound is unbounded
+     * 
+     * @param from
+     * @param to
+     */
+    private Iterable<Entry<K,T>> scan(final K from, final K to) {
+        return new Iterable<Entry<K,T>>() {
+            public Iterator<Entry<K,T>> iterator() {
+                final Cursor<K,T> cursor = cursor();
+                if (from == null) {
+                    cursor.seekFirst();
+                } else {
+                    cursor.seek(from);
+                }
+                return new Iterator<Entry<K,T>>() {
+                    public boolean hasNext() {
+                        return cursor.isValid() && (to == null || cursor.key().compareTo(to) < 0);
+                    }
+
+                    public Entry<K,T> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<K,T> entry = new AbstractMap.SimpleImmutableEntry<K,T>(cursor.key(), cursor.value());
+                        cursor.next();
+                        return entry;
+                    }
+                };
             }
-            i++;
+        };
+    }
+
+    /**
+     * Spliterator over the entries with from <= key < to, which splits
+     * along the index nodes, see TreeSpliterator
+     *
+     * @param from lower bound (inclusive), null if unbounded
+     * @param to upper bound (exclusive), null if unbounded
+     */
+    public TreeSpliterator<K,T> spliterator(K from, K to) {
+        return new TreeSpliterator<K,T>(this, from, to);
+    }
+
+    /**
+     * All entries in ascending key order as a sequential stream. Like a
+     * cursor, the stream takes no latches, even on a ConcurrentBPlusTree.
+     */
+    public Stream<Entry<K,T>> stream() {
+        return StreamSupport.stream(spliterator(null, null), false);
+    }
+
+    /**
+     * All entries as a parallel stream, divided among the threads subtree
+     * by subtree. The tree must not be modified while the stream runs, on
+     * a ConcurrentBPlusTree neither.
+     */
+    public Stream<Entry<K,T>> parallelStream() {
+        return StreamSupport.stream(spliterator(null, null), true);
+    }
+
+    // bulk load
+    /**
+     * Build the tree bottom-up from key/value pairs sorted by key. Leaves are
+     * packed to the fill factor and linked in one pass, then each index level
+     * is built from the one below, so loading is linear and never splits.
+     * 
+     * @param keys strictly increasing keys
+     * @param values values, values[i] belongs to keys[i]
+     * @param fillFactor fraction of the node capacity to fill, in (0, 1]
+     */
+    public void bulkLoad(K[] keys, T[] values, double fillFactor) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("got " + keys.length + " keys but " + values.length + " values");
         }
-        newChildEntry = insertHelper((Node)indexNode.children.get(i), entry, newChildEntry);
-        if (newChildEntry == null) {
-            return newChildEntry;
-        } else {
-            int j = 0;
-            while (j < indexNode.keys.size()){
-                if (newChildEntry.getKey().compareTo(node.keys.get(j)) < 0) {
-                    break;
+        List<Entry<K,T>> entries = new ArrayList<Entry<K,T>>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<K,T>(keys[i], values[i]));
+        }
+        bulkLoad(entries.iterator(), fillFactor);
+    }
+
+    /**
+     * Build the tree bottom-up from key/value pairs sorted by key. Leaves are
+     * packed to the fill factor and linked in one pass, then each index level
+     * is built from the one below, so loading is linear and never splits.
+     * 
+     * @param entries key/value pairs with strictly increasing keys
+     * @param fillFactor fraction of the node capacity to fill, in (0, 1]
+     */
+    public void bulkLoad(Iterator<? extends Entry<K,T>> entries, double fillFactor) {
+        if (root != null) {
+            throw new IllegalStateException("bulk load requires an empty tree");
+        }
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+        }
+        int leafCapacity = capacity(leafD, fillFactor);
+        int indexCapacity = capacity(indexD, fillFactor) + 1;  // children per index node
+
+        // the current level and the smallest key below each of its nodes
+        ArrayList<Node<K,T>> level = new ArrayList<Node<K,T>>();
+        ArrayList<K> lowKeys = new ArrayList<K>();
+
+        LeafNode<K,T> leaf = null;
+        K previous = null;
+        while (entries.hasNext()) {
+            Entry<K,T> entry = entries.next();
+            K key = entry.getKey();
+            if (key == null) {
+                throw new IllegalArgumentException("null key");
+            }
+            if (previous != null && previous.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("keys must be sorted and unique: " + key + " after " + previous);
+            }
+            previous = key;
+            if (leaf == null || leaf.keys.size() == leafCapacity) {
+                LeafNode<K,T> next = new LeafNode<K,T>(key, entry.getValue());
+                initNode(next);
+                if (leaf != null) {
+                    leaf.nextLeaf = next;
+                    next.previousLeaf = leaf;
                 }
-                j++;
+                leaf = next;
+                level.add(leaf);
+                lowKeys.add(key);
+            } else {
+                leaf.keys.add(key);
+                leaf.values.add(entry.getValue());
             }
+        }
+        if (level.isEmpty()) {
+            return;
+        }
+        if (level.size() > 1 && leaf.isUnderflowed(leafD)) {
+            balanceLastLeaves(leaf.previousLeaf, leaf, level, lowKeys);
+        }
 
-            indexNode.insertSorted(newChildEntry,j);
-            return dealOverFlowed(newChildEntry, indexNode);
+        while (level.size() > 1) {
+            ArrayList<Node<K,T>> parents = new ArrayList<Node<K,T>>();
+            ArrayList<K> parentLowKeys = new ArrayList<K>();
+            int[] sizes = groupSizes(level.size(), indexCapacity, indexD + 1);
+            int start = 0;
+            for (int size : sizes) {
+                List<K> separators = lowKeys.subList(start + 1, start + size);
+                List<Node<K,T>> children = level.subList(start, start + size);
+                IndexNode<K,T> parent = new IndexNode<K,T>(separators, children);
+                initNode(parent);
+                parents.add(parent);
+                parentLowKeys.add(lowKeys.get(start));
+                start += size;
+            }
+            level = parents;
+            lowKeys = parentLowKeys;
+        }
+        root = level.get(0);
+        if (orderStatistics) {
+            recountAll(root);
+        }
+        if (bloomFilter != null) {
+            rebuildBloomFilter();
         }
     }
-    
-    public Entry<K, Node<K,T>> dealOverFlowed(Entry<K, Node<K,T>> newChildEntry, IndexNode<K, T> indexNode) {
-    	if (!indexNode.isOverflowed()) {
-            newChildEntry = null;
-            return newChildEntry;
-        } else {
-            newChildEntry = splitIndexNode(indexNode);
-            if (indexNode == root){
-                IndexNode<K, T> newRoot = new IndexNode(newChildEntry.getKey(),root,newChildEntry.getValue());
-                root = newRoot;
-                newChildEntry = null;
-                return newChildEntry;
+
+    /**
+     * @return number of keys a node of order d holds when filled to fillFactor
+     */
+    private static int capacity(int d, double fillFactor) {
+        int capacity = (int) Math.round(2 * d * fillFactor);
+        return Math.max(d, Math.min(2 * d, capacity));
+    }
+
+    /**
+     * Fix an underflowed last leaf by merging it into its left neighbour, or by
+     * splitting the entries of both evenly if they do not fit in one leaf
+     */
+    private void balanceLastLeaves(LeafNode<K,T> left, LeafNode<K,T> last, List<Node<K,T>> level, List<K> lowKeys) {
+        int total = left.keys.size() + last.keys.size();
+        if (total <= 2 * leafD) {
+            left.keys.addAll(last.keys);
+            left.values.addAll(last.values);
+            left.nextLeaf = null;
+            level.remove(level.size() - 1);
+            lowKeys.remove(lowKeys.size() - 1);
+            return;
+        }
+        int leftSize = total / 2;
+        List<K> movedKeys = left.keys.subList(leftSize, left.keys.size());
+        List<T> movedValues = left.values.subList(leftSize, left.values.size());
+        last.keys.addAll(0, movedKeys);
+        last.values.addAll(0, movedValues);
+        movedKeys.clear();
+        movedValues.clear();
+        lowKeys.set(lowKeys.size() - 1, last.keys.get(0));
+    }
+
+    /**
+     * Split n children into groups of the given capacity, evening out the
+     * last two groups if the last one would hold fewer than min children
+     * 
+     * @return number of children in each group
+     */
+    private static int[] groupSizes(int n, int capacity, int min) {
+        int groups = (n + capacity - 1) / capacity;
+        int[] sizes = new int[groups];
+        Arrays.fill(sizes, capacity);
+        sizes[groups - 1] = n - capacity * (groups - 1);
+        if (groups > 1 && sizes[groups - 1] < min) {
+            int total = sizes[groups - 2] + sizes[groups - 1];
+            if (total < 2 * min) {
+                sizes = Arrays.copyOf(sizes, groups - 1);
+                sizes[groups - 2] = total;
+            } else {
+                sizes[groups - 2] = total - total / 2;
+                sizes[groups - 1] = total / 2;
             }
-            return newChildEntry;
         }
+        return sizes;
     }
 
+    // insert
     /**
-     * Helper function for insertHelper, deal with leaf node case
+     * Insert a key/value pair into the BPlusTree. The descent is iterative
+     * and allocates nothing unless a node has to be split.
      * 
-     * @param node
-     * @param entry
-     * @param newChildEntry
+     * @param key
+     * @param value
      */
-    public Entry<K, Node<K,T>> insertLeafNodeHelper(Node<K, T> node,Entry<K, Node<K,T>> entry, Entry<K, Node<K,T>> newChildEntry) {
-        LeafNode<K, T> leafNode = (LeafNode)node;
-        LeafNode<K, T> InsertLeaf = (LeafNode)entry.getValue();
+    public void insert(K key, T value) {
+        if (metrics == null) {
+            insertKey(key, value);
+        } else {
+            long start = System.nanoTime();
+            insertKey(key, value);
+            metrics.insertLatency.record(System.nanoTime() - start);
+        }
+        if (bloomFilter != null) {
+            addToBloomFilter(key);
+        }
+    }
+
+    private void insertKey(K key, T value) {
+        if (root == null) {
+            LeafNode<K,T> leaf = new LeafNode<K,T>(key, value);
+            initNode(leaf);
+            root = leaf;
+            moveFinger(leaf, null, null);
+            return;
+        }
+
+        LeafNode<K,T> leaf = orderStatistics ? null : fingerFor(key);
+        if (leaf != null && leaf.keys.size() < 2 * leafD) {
+            leaf.insertSorted(key, value);
+            return;
+        }
+
+        int depth = 0;
+        int rightEdge = 0;  // the nodes at depths <= rightEdge are the last of their level
+        K low = null;
+        K high = null;
+        Node<K,T> node = root;
+        while (!node.isLeafNode) {
+            int childIndex = node.upperBound(key);
+            if (fingerEnabled) {
+                if (childIndex > 0) {
+                    low = node.keys.get(childIndex - 1);
+                }
+                if (childIndex < node.keys.size()) {
+                    high = node.keys.get(childIndex);
+                }
+            }
+            if (rightEdge == depth && childIndex == node.keys.size()) {
+                rightEdge++;
+            }
+            push(depth++, (IndexNode<K,T>) node, childIndex);
+            if (orderStatistics) {
+                ((IndexNode<K,T>) node).counts[childIndex]++;
+                ((IndexNode<K,T>) node).total++;
+            }
+            node = ((IndexNode<K,T>) node).children.get(childIndex);
+        }
 
-        leafNode.insertSorted(entry.getKey(),InsertLeaf.values.get(0));
+        leaf = (LeafNode<K,T>) node;
+        int position = leaf.insertSorted(key, value);
+        if (!leaf.isOverflowed(leafD)) {
+            moveFinger(leaf, low, high);
+            return;
+        }
 
-        if (!leafNode.isOverflowed()){
-            newChildEntry = null;
-            return newChildEntry;
+        // propagate the splits up the recorded path; the leaf's range only
+        // shrinks to the half holding the key, whatever happens above it
+        Entry<K, Node<K,T>> newChildEntry = splitLeafNode(leaf,
+                splitPolicy.split(leaf, position, depth <= rightEdge, leafD));
+        K splitKey = newChildEntry.getKey();
+        if (key.compareTo(splitKey) < 0) {
+            moveFinger(leaf, low, splitKey);
         } else {
-            newChildEntry = splitLeafNode(leafNode);
-            if (leafNode == root){
-                IndexNode<K, T> newRoot = new IndexNode(newChildEntry.getKey(),leafNode,newChildEntry.getValue());
-                root = newRoot;
-                newChildEntry = null;
-                return newChildEntry;
+            moveFinger((LeafNode<K,T>) newChildEntry.getValue(), splitKey, high);
+        }
+        while (depth > 0) {
+            depth--;
+            IndexNode<K,T> parent = pathNodes[depth];
+            pathNodes[depth] = null;
+            parent.insertSorted(newChildEntry, pathIndexes[depth]);
+            if (!parent.isOverflowed(indexD)) {
+                if (orderStatistics) {
+                    recount(parent);
+                }
+                clearPath(depth);
+                return;
+            }
+            newChildEntry = splitIndexNode(parent,
+                    splitPolicy.split(parent, pathIndexes[depth], depth <= rightEdge, indexD));
+            if (orderStatistics) {
+                recount(parent);
+                recount((IndexNode<K,T>) newChildEntry.getValue());
             }
-            return newChildEntry;
+        }
+        IndexNode<K,T> newRoot = new IndexNode<K,T>(newChildEntry.getKey(), root, newChildEntry.getValue());
+        initNode(newRoot);
+        if (orderStatistics) {
+            recount(newRoot);
+        }
+        root = newRoot;
+        if (metrics != null) {
+            metrics.rootSplits.increment();
+        }
+    }
+
+    /**
+     * Record the index node visited at the given depth of a descent and the
+     * child taken from it
+     */
+    private void push(int depth, IndexNode<K,T> node, int childIndex) {
+        if (depth == pathNodes.length) {
+            pathNodes = Arrays.copyOf(pathNodes, depth * 2);
+            pathIndexes = Arrays.copyOf(pathIndexes, depth * 2);
+        }
+        pathNodes[depth] = node;
+        pathIndexes[depth] = childIndex;
+    }
+
+    /**
+     * Drop the references to the nodes recorded below the given depth
+     */
+    private void clearPath(int depth) {
+        Arrays.fill(pathNodes, 0, depth, null);
+    }
+
+    /**
+     * Called for every node the tree creates. Makes room for a full node and
+     * its overflow key up front, so that inserts and merges never grow the
+     * node's lists.
+     */
+    protected void initNode(Node<K,T> node) {
+        if (node.isLeafNode) {
+            node.keys.ensureCapacity(2 * leafD + 1);
+            ((LeafNode<K,T>) node).values.ensureCapacity(2 * leafD + 1);
+        } else {
+            node.keys.ensureCapacity(2 * indexD + 1);
+            ((IndexNode<K,T>) node).children.ensureCapacity(2 * indexD + 2);
         }
     }
 
@@ -145,21 +1072,35 @@ public class BPlusTree<K extends Comparable<K>, T> {
      * @return the key/node pair as an Entry
      */
     public Entry<K, Node<K,T>> splitLeafNode(LeafNode<K,T> leaf) {
-        ArrayList<K> rightKeys = new ArrayList<K>();
-        ArrayList<T> rightValues = new ArrayList<T>();
-        K splittingKey = leaf.keys.get(D);
+        return splitLeafNode(leaf, leafD);
+    }
 
-        while (leaf.keys.size() > D) {
-            rightKeys.add(leaf.keys.get(D));
-            leaf.keys.remove(D);
-            rightValues.add(leaf.values.get(D));
-            leaf.values.remove(D);
+    /**
+     * Split a leaf node after its first split keys, see SplitPolicy
+     *
+     * @param leaf
+     * @param split keys kept by leaf, clamped to 1..size-1
+     * @return the key/node pair as an Entry
+     */
+    public Entry<K, Node<K,T>> splitLeafNode(LeafNode<K,T> leaf, int split) {
+        if (metrics != null) {
+            metrics.leafSplits.increment();
         }
+        int size = leaf.keys.size();
+        split = Math.max(1, Math.min(size - 1, split));
+        K splittingKey = leaf.keys.get(split);
+
+        LeafNode<K, T> rightNode = new LeafNode<>(leaf.keys.subList(split, size), leaf.values.subList(split, size));
+        initNode(rightNode);
+        leaf.splitRun(rightNode, split);
+        leaf.keys.subList(split, size).clear();
+        leaf.values.subList(split, size).clear();
 
-        LeafNode<K, T> rightNode = new LeafNode<>(rightKeys, rightValues);
         LeafNode<K, T> Tmp = leaf.nextLeaf;
         leaf.nextLeaf = rightNode;
-        leaf.nextLeaf.previousLeaf = rightNode;
+        if (Tmp != null) {
+            Tmp.previousLeaf = rightNode;
+        }
         rightNode.previousLeaf = leaf;
         rightNode.nextLeaf = Tmp;
 
@@ -175,124 +1116,508 @@ public class BPlusTree<K extends Comparable<K>, T> {
      * @return new key/node pair as an Entry
      */
     public Entry<K, Node<K,T>> splitIndexNode(IndexNode<K,T> index) {
-        K splittingKey = index.keys.get(D);
-        index.keys.remove(D);
-
-        ArrayList<K> rightKey = new ArrayList<K>();
-        ArrayList<Node<K,T>> rightChildren = new ArrayList<Node<K, T>>();
-
-        rightChildren.add(index.children.get(D+1));
-        index.children.remove(D+1);
+        return splitIndexNode(index, indexD);
+    }
 
-        while (index.keys.size() > D) {
-            rightKey.add(index.keys.get(D));
-            index.keys.remove(D);
-            rightChildren.add(index.children.get(D + 1));
-            index.children.remove(D + 1);
+    /**
+     * Split an index node after its first split keys, moving the next key
+     * up, see SplitPolicy
+     *
+     * @param index
+     * @param split keys kept by index, clamped to 1..size-2
+     * @return new key/node pair as an Entry
+     */
+    public Entry<K, Node<K,T>> splitIndexNode(IndexNode<K,T> index, int split) {
+        if (metrics != null) {
+            metrics.indexSplits.increment();
         }
+        int size = index.keys.size();
+        split = Math.max(1, Math.min(size - 2, split));
+        K splittingKey = index.keys.get(split);
+
+        IndexNode<K, T> right = new IndexNode<>(index.keys.subList(split + 1, size), index.children.subList(split + 1, size + 1));
+        initNode(right);
+        index.splitRun(right, split + 1);
+        index.keys.subList(split, size).clear();
+        index.children.subList(split + 1, size + 1).clear();
 
-        IndexNode<K, T> right = new IndexNode<>(rightKey, rightChildren);
         Entry<K,Node<K,T>> entry = new AbstractMap.SimpleEntry<K,Node<K,T>>(splittingKey, right);
         return entry;
     }
 
+    // batch
+    /**
+     * Apply a batch of upserts and deletes sorted by key. The operations are
+     * routed down the tree together as in searchBatch and each leaf merges
+     * its share in one pass. On the way back up, every run of children that
+     * ended up too full or too empty is cut again into nodes of d..2d keys,
+     * so each affected node is split or merged once per batch rather than
+     * once per key.
+     *
+     * @param keys strictly increasing keys
+     * @param values values[i] replaces or inserts the value of keys[i], null deletes keys[i]
+     * @throws IllegalArgumentException if the keys are null or not strictly increasing
+     */
+    public void applyBatch(K[] keys, T[] values) {
+        if (values.length < keys.length) {
+            throw new IllegalArgumentException("got " + keys.length + " keys but " + values.length + " values");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                throw new IllegalArgumentException("null key at index " + i);
+            }
+            if (i > 0 && keys[i - 1].compareTo(keys[i]) >= 0) {
+                throw new IllegalArgumentException("keys are not strictly increasing at index " + i);
+            }
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        dropFinger();
+        if (root == null) {
+            LeafNode<K,T> leaf = new LeafNode<K,T>(Collections.<K>emptyList(), Collections.<T>emptyList());
+            initNode(leaf);
+            root = leaf;
+        }
+        applyBatchAtRoot(keys, values);
+        if (bloomFilter != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    bloomFilter.add(keys[i]);
+                } else {
+                    bloomFilter.removed();  // whether or not the key was there
+                }
+            }
+            if (bloomFilter.needsRebuild()) {
+                rebuildBloomFilter();
+            }
+        }
+    }
+
+    /**
+     * Apply a batch to the non-empty tree, or with values null only repair
+     * the nodes on the paths of the keys, then fix the height of the tree
+     */
+    private void applyBatchAtRoot(K[] keys, T[] values) {
+        applyBatch(root, keys, values, 0, keys.length);
+
+        // grow the tree while the root is too full, shrink it while it is empty
+        while (root.isOverflowed(orderOf(root))) {
+            IndexNode<K,T> newRoot = new IndexNode<K,T>(Collections.<K>emptyList(), Collections.singletonList(root));
+            initNode(newRoot);
+            rebuildRun(newRoot, 0, 0);
+            if (orderStatistics) {
+                recount(newRoot);
+            }
+            root = newRoot;
+            if (metrics != null) {
+                metrics.rootSplits.increment();
+            }
+        }
+        while (root != null && root.keys.isEmpty()) {
+            if (metrics != null) {
+                metrics.rootCollapses.increment();
+            }
+            if (root.isLeafNode) {
+                root = null;
+            } else {
+                List<Node<K,T>> children = ((IndexNode<K,T>) root).children;
+                root = children.isEmpty() ? null : children.get(0);
+            }
+        }
+    }
+
+    /**
+     * Apply the operations [from, to), all of which belong below node. The
+     * node's own size is left for its parent to fix. Without values, only
+     * the children on the paths of the keys are fixed.
+     */
+    private void applyBatch(Node<K,T> node, K[] keys, T[] values, int from, int to) {
+        if (node.isLeafNode) {
+            if (values != null) {
+                mergeIntoLeaf((LeafNode<K,T>) node, keys, values, from, to);
+            }
+            return;
+        }
+        IndexNode<K,T> index = (IndexNode<K,T>) node;
+        int first = index.upperBound(keys[from]);
+        int last = first;
+        int start = from;
+        while (start < to) {
+            int child = index.upperBound(keys[start]);
+            int end = start + 1;
+            if (child == index.keys.size()) {
+                end = to;  // the rest go to the last child
+            } else {
+                K separator = index.keys.get(child);
+                while (end < to && keys[end].compareTo(separator) < 0) {
+                    end++;
+                }
+            }
+            applyBatch(index.children.get(child), keys, values, start, end);
+            last = child;
+            start = end;
+        }
+        fixChildren(index, first, last);
+        if (orderStatistics) {
+            recount(index);
+        }
+    }
+
+    /**
+     * Rebuild the runs of children in [first, last] that are out of bounds,
+     * right to left so that rebuilding a run does not shift the children
+     * still to be visited. An underflowing run takes in a sibling, the left
+     * one if there is one; without siblings it is left for the parent's
+     * rebuild, which makes it the sibling of the parent's neighbors' children.
+     */
+    private void fixChildren(IndexNode<K,T> index, int first, int last) {
+        int i = last;
+        while (i >= first) {
+            if (!isOutOfBounds(index.children.get(i))) {
+                i--;
+                continue;
+            }
+            int runEnd = i;
+            boolean underflow = false;
+            while (i >= first && isOutOfBounds(index.children.get(i))) {
+                underflow |= isUnderflow(index.children.get(i));
+                i--;
+            }
+            int runStart = i + 1;
+            if (underflow) {
+                if (runStart > 0) {
+                    runStart--;
+                } else if (runEnd + 1 < index.children.size()) {
+                    runEnd++;
+                }
+            }
+            rebuildRun(index, runStart, runEnd);
+            i = runStart - 1;
+        }
+    }
+
+    private boolean isOutOfBounds(Node<K,T> node) {
+        int d = orderOf(node);
+        return node.isOverflowed(d) || node.isUnderflowed(d);
+    }
+
+    /**
+     * Merge the sorted operations [from, to) into the leaf: in place when
+     * they are few compared to the leaf, in one pass into new lists otherwise
+     */
+    private void mergeIntoLeaf(LeafNode<K,T> leaf, K[] keys, T[] values, int from, int to) {
+        int size = leaf.keys.size();
+        if ((to - from) * 8 <= size) {
+            for (int j = from; j < to; j++) {
+                int index = Collections.binarySearch(leaf.keys, keys[j]);
+                if (index >= 0) {
+                    if (values[j] != null) {
+                        leaf.values.set(index, values[j]);
+                    } else {
+                        leaf.keys.remove(index);
+                        leaf.values.remove(index);
+                    }
+                } else if (values[j] != null) {
+                    leaf.keys.add(-index - 1, keys[j]);
+                    leaf.values.add(-index - 1, values[j]);
+                }
+            }
+            return;
+        }
+        ArrayList<K> mergedKeys = new ArrayList<K>(Math.max(size + to - from, 2 * leafD + 1));
+        ArrayList<T> mergedValues = new ArrayList<T>(Math.max(size + to - from, 2 * leafD + 1));
+        int i = 0;
+        int j = from;
+        while (i < size || j < to) {
+            int cmp = i == size ? 1 : j == to ? -1 : leaf.keys.get(i).compareTo(keys[j]);
+            if (cmp < 0) {
+                mergedKeys.add(leaf.keys.get(i));
+                mergedValues.add(leaf.values.get(i));
+                i++;
+            } else {
+                if (values[j] != null) {
+                    mergedKeys.add(keys[j]);
+                    mergedValues.add(values[j]);
+                }
+                if (cmp == 0) {
+                    i++;
+                }
+                j++;
+            }
+        }
+        leaf.keys = mergedKeys;
+        leaf.values = mergedValues;
+    }
+
+    /**
+     * Replace the children [start, end] of parent by as few nodes of d..2d
+     * keys as hold their contents. A run holding nothing is removed.
+     */
+    private void rebuildRun(IndexNode<K,T> parent, int start, int end) {
+        if (metrics != null) {
+            metrics.rebuiltRuns.increment();
+        }
+        List<Node<K,T>> rebuilt = new ArrayList<Node<K,T>>();
+        List<K> separators = new ArrayList<K>();
+        if (parent.children.get(start).isLeafNode) {
+            rebuildLeafRun(parent, start, end, rebuilt, separators);
+        } else {
+            rebuildIndexRun(parent, start, end, rebuilt, separators);
+        }
+
+        int keyStart = start;
+        int keyEnd = end;  // the run's inner separators are keys [start, end)
+        if (rebuilt.isEmpty()) {
+            // drop one of the run's outer separators too
+            if (start > 0) {
+                keyStart--;
+            } else if (end < parent.keys.size()) {
+                keyEnd++;
+            }
+        }
+        parent.keys.subList(keyStart, keyEnd).clear();
+        parent.keys.addAll(keyStart, separators);
+        parent.children.subList(start, end + 1).clear();
+        parent.children.addAll(start, rebuilt);
+    }
+
+    private void rebuildLeafRun(IndexNode<K,T> parent, int start, int end, List<Node<K,T>> rebuilt, List<K> separators) {
+        ArrayList<K> keys = new ArrayList<K>();
+        ArrayList<T> values = new ArrayList<T>();
+        for (int j = start; j <= end; j++) {
+            LeafNode<K,T> leaf = (LeafNode<K,T>) parent.children.get(j);
+            keys.addAll(leaf.keys);
+            values.addAll(leaf.values);
+        }
+        LeafNode<K,T> previous = ((LeafNode<K,T>) parent.children.get(start)).previousLeaf;
+        LeafNode<K,T> after = ((LeafNode<K,T>) parent.children.get(end)).nextLeaf;
+
+        int n = keys.size();
+        int pieces = (n + 2 * leafD - 1) / (2 * leafD);
+        int offset = 0;
+        for (int p = 0; p < pieces; p++) {
+            int size = n / pieces + (p < n % pieces ? 1 : 0);
+            LeafNode<K,T> leaf = new LeafNode<K,T>(keys.subList(offset, offset + size), values.subList(offset, offset + size));
+            initNode(leaf);
+            if (p > 0) {
+                separators.add(keys.get(offset));
+            }
+            leaf.previousLeaf = previous;
+            if (previous != null) {
+                previous.nextLeaf = leaf;
+            }
+            previous = leaf;
+            rebuilt.add(leaf);
+            offset += size;
+        }
+        if (previous != null) {
+            previous.nextLeaf = after;
+        }
+        if (after != null) {
+            after.previousLeaf = previous;
+        }
+    }
+
+    private void rebuildIndexRun(IndexNode<K,T> parent, int start, int end, List<Node<K,T>> rebuilt, List<K> separators) {
+        ArrayList<K> keys = new ArrayList<K>();
+        ArrayList<Node<K,T>> children = new ArrayList<Node<K,T>>();
+        for (int j = start; j <= end; j++) {
+            IndexNode<K,T> index = (IndexNode<K,T>) parent.children.get(j);
+            if (index.children.isEmpty()) {
+                continue;
+            }
+            if (!children.isEmpty()) {
+                keys.add(parent.keys.get(j - 1));
+            }
+            keys.addAll(index.keys);
+            children.addAll(index.children);
+        }
+        if (children.isEmpty()) {
+            return;
+        }
+
+        // children that could not be fixed under their old parent, for lack of
+        // siblings, can be fixed now that they sit next to the others
+        IndexNode<K,T> merged = new IndexNode<K,T>(keys, children);
+        fixChildren(merged, 0, children.size() - 1);
+        keys = merged.keys;
+        children = merged.children;
+
+        int n = children.size();
+        int pieces = (n + 2 * indexD) / (2 * indexD + 1);
+        int offset = 0;
+        for (int p = 0; p < pieces; p++) {
+            int size = n / pieces + (p < n % pieces ? 1 : 0);  // children in this piece
+            IndexNode<K,T> index = new IndexNode<K,T>(keys.subList(offset, offset + size - 1), children.subList(offset, offset + size));
+            initNode(index);
+            if (orderStatistics) {
+                recount(index);
+            }
+            if (p > 0) {
+                separators.add(keys.get(offset - 1));
+            }
+            rebuilt.add(index);
+            offset += size;
+        }
+    }
+
     // delete
     /**
-     * Delete a key/value pair from this B+Tree
+     * Delete a key/value pair from this B+Tree. Like insert, the descent is
+     * iterative and the underflow handling walks back up the recorded path.
      * 
      * @param key
      */
     public void delete(K key) {
-    	if (root == null) {
-    		return;
-    	} else {
-    		delete(null, root, key, 0);
-    	}
+        if (metrics == null) {
+            deleteKey(key);
+            return;
+        }
+        long start = System.nanoTime();
+        deleteKey(key);
+        metrics.deleteLatency.record(System.nanoTime() - start);
     }
-  
-    private int delete(IndexNode<K, T> parentNode, Node<K,T> currentNode, K key, int currentIndex) {
-    	if (!currentNode.isLeafNode) {  // current node is index node
-    		return deleteIndexNode(parentNode, currentNode, key, currentIndex);
-    	} else { // current node is leaf node
-    		return deleteLeafNode(parentNode, currentNode, key, currentIndex);
-    	}
-    }
-
-    private int deleteIndexNode(IndexNode<K, T> parentNode, Node<K,T> currentNode, K key, int currentIndex) {
-    	IndexNode<K, T> currIndexNode = (IndexNode<K, T>)currentNode;
-    	int childIndex = new FindKeyIndex(currIndexNode, key).find();
-    	Node<K,T> child = currIndexNode.children.get(childIndex);
-    	int oldChildIndex = delete(currIndexNode, child, key, childIndex);
-    	if (oldChildIndex < 0) {
-    		return -1;
-    	} else {
-    		// delete the splitkey position in parent if the child is merged
-    		currIndexNode.keys.remove(oldChildIndex);
-    		currIndexNode.children.remove(oldChildIndex);
-        
-    		// if index node is not underflowed
-    		if (!isUnderflow(currIndexNode)) {
-    			return -1;
-    		} else { // if the node is underflowed
-    			// Current node is the root node
-    			if (currIndexNode == this.root) {
-    				if (currIndexNode.children.size() == 1) {
-    					this.root = currIndexNode.children.get(0);
-    				}
-    				return 0;
-    			}
-            
-    			// select the suitable sibling, and handle node underflow.
-    			IndexNode<K, T> sibling;
-    			oldChildIndex = -1; // init with no key to delete.
-    			if (currentIndex != 0) {
-    				sibling = (IndexNode<K, T>)parentNode.children.get(currentIndex - 1);
-    				oldChildIndex = handleIndexNodeUnderflow(sibling, currIndexNode, parentNode);
-    			} else {  // current node does not have left sibling
-    				sibling = (IndexNode<K, T>)parentNode.children.get(currentIndex + 1);
-    				oldChildIndex = handleIndexNodeUnderflow(currIndexNode, sibling, parentNode);
-    			}
-    			return oldChildIndex;
-    		}
-    	}
-    }
-
-    private int deleteLeafNode(IndexNode<K, T> parentNode, Node<K,T> currentNode, K key, int currentIndex) {
-    	LeafNode<K, T> currLeafNode = (LeafNode<K, T>)currentNode;
-    	removeEntry(currLeafNode, key);
-        
-    	// Check underflow
-    	if (!isUnderflow(currLeafNode)) {
-    		return -1;
-    	} else {
-    		if (currLeafNode == this.root) { // Current node is the root node
-    			if (currLeafNode.keys.size() == 0) {
-    				this.root = null;
-    			}
-    			return 0;
-    		} 
-    		// select the suitable sibling, and handle leaf node underflow
-    		LeafNode<K, T> sibling = currLeafNode.previousLeaf;
-    		int oldChildIndex = -1; // initially indicate no key to delete
-    		if (sibling != null && currentIndex != 0) {
-    			oldChildIndex = handleLeafNodeUnderflow(sibling, currLeafNode, parentNode);
-    		} else {  // current node does not have left sibling.
-    			sibling = currLeafNode.nextLeaf;
-    			oldChildIndex = handleLeafNodeUnderflow(currLeafNode, sibling, parentNode);
-    		}
-    		return oldChildIndex;
-    	}
-    }
-    
-    private void removeEntry(LeafNode<K, T> currLeafNode, K key) {
-	    int index = Collections.binarySearch(currLeafNode.keys, key);
-	    if (index < 0) {return;}
-	    currLeafNode.keys.remove(index);
-	    currLeafNode.values.remove(index);
-	}
-	    
+
+    private void deleteKey(K key) {
+        if (root == null) {
+            return;
+        }
+
+        LeafNode<K,T> leaf = orderStatistics ? null : fingerFor(key);
+        if (leaf != null && (leaf.keys.size() > leafD || leaf == root || deferRebalancing)) {
+            int index = Collections.binarySearch(leaf.keys, key);
+            if (index >= 0) {
+                leaf.keys.remove(index);
+                leaf.values.remove(index);
+                if (bloomFilter != null) {
+                    bloomFilter.removed();
+                }
+                if (leaf != root && isUnderflow(leaf)) {
+                    deferUnderflow(key);
+                }
+                if (root != null && root.keys.isEmpty()) {
+                    root = null;
+                    dropFinger();
+                    if (metrics != null) {
+                        metrics.rootCollapses.increment();
+                    }
+                }
+            }
+            return;
+        }
+
+        int depth = 0;
+        K low = null;
+        K high = null;
+        Node<K,T> node = root;
+        while (!node.isLeafNode) {
+            int childIndex = node.upperBound(key);
+            if (fingerEnabled) {
+                if (childIndex > 0) {
+                    low = node.keys.get(childIndex - 1);
+                }
+                if (childIndex < node.keys.size()) {
+                    high = node.keys.get(childIndex);
+                }
+            }
+            push(depth++, (IndexNode<K,T>) node, childIndex);
+            node = ((IndexNode<K,T>) node).children.get(childIndex);
+        }
+
+        leaf = (LeafNode<K,T>) node;
+        int index = Collections.binarySearch(leaf.keys, key);
+        if (index < 0) {
+            clearPath(depth);
+            moveFinger(leaf, low, high);
+            return;
+        }
+        leaf.keys.remove(index);
+        leaf.values.remove(index);
+        if (bloomFilter != null) {
+            bloomFilter.removed();
+        }
+        if (orderStatistics) {
+            for (int i = 0; i < depth; i++) {
+                pathNodes[i].counts[pathIndexes[i]]--;
+                pathNodes[i].total--;
+            }
+        }
+        if (deferRebalancing) {
+            moveFinger(leaf, low, high);
+            if (depth > 0 && isUnderflow(node)) {
+                clearPath(depth);
+                deferUnderflow(key);
+                return;
+            }
+        } else if (depth > 0 && isUnderflow(node)) {
+            dropFinger();  // merges and redistributions move the separators
+        } else {
+            moveFinger(leaf, low, high);
+        }
+
+        while (depth > 0 && isUnderflow(node)) {
+            depth--;
+            IndexNode<K,T> parent = pathNodes[depth];
+            int childIndex = pathIndexes[depth];
+            pathNodes[depth] = null;
+
+            // select the suitable sibling, and handle node underflow.
+            // The left sibling is preferred, the leftmost child uses its right sibling.
+            int leftIndex = childIndex != 0 ? childIndex - 1 : childIndex;
+            int oldChildIndex;
+            if (node.isLeafNode) {
+                oldChildIndex = handleLeafNodeUnderflow((LeafNode<K,T>) parent.children.get(leftIndex),
+                        (LeafNode<K,T>) parent.children.get(leftIndex + 1), parent, leftIndex);
+            } else {
+                IndexNode<K,T> left = (IndexNode<K,T>) parent.children.get(leftIndex);
+                IndexNode<K,T> right = (IndexNode<K,T>) parent.children.get(leftIndex + 1);
+                oldChildIndex = handleIndexNodeUnderflow(left, right, parent, leftIndex);
+                if (orderStatistics) {
+                    recount(left);
+                    recount(right);
+                }
+            }
+            if (oldChildIndex >= 0) {
+                // delete the splitkey position in parent if the child is merged
+                parent.keys.remove(oldChildIndex);
+                parent.children.remove(oldChildIndex);
+            }
+            if (orderStatistics) {
+                recount(parent);
+            }
+            if (oldChildIndex < 0) {
+                break;
+            }
+            node = parent;
+        }
+        clearPath(depth);
+
+        // shrink the tree if the root ran empty
+        if (root.keys.isEmpty()) {
+            root = root.isLeafNode ? null : ((IndexNode<K,T>) root).children.get(0);
+            if (root == null) {
+                dropFinger();
+            }
+            if (metrics != null) {
+                metrics.rootCollapses.increment();
+            }
+        }
+    }
+
+    /**
+     * Remember a key whose leaf a delete left underflowed, and rebalance
+     * once enough have been collected
+     */
+    private void deferUnderflow(K key) {
+        underflowKeys.add(key);
+        if (underflowKeys.size() >= rebalanceThreshold) {
+            rebalance();
+        }
+    }
+
 	private boolean isUnderflow(Node<K, T> node) {
-	    return (node.keys.size() < D);
+	    return node.isUnderflowed(orderOf(node));
 	}
 
 	/**
@@ -301,17 +1626,18 @@ public class BPlusTree<K extends Comparable<K>, T> {
 	 * @param left: the smaller node
 	 * @param right: the bigger node
 	 * @param parent: their parent index node
+	 * @param leftIndex: position of left among the parent's children
 	 * @return the splitkey position in parent if merged so that parent can
 	 *         delete the splitkey later on. -1 otherwise
 	 */
-	public int handleLeafNodeUnderflow(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleLeafNodeUnderflow(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
 		// The merge condition
 		if (isLeafMergable(left, right)) {
-			return handleLeafNodeUnderflowMerge(left, right, parent);
+			return handleLeafNodeUnderflowMerge(left, right, parent, leftIndex);
 		} 
 		
-		// The redistribution condition (cannot merge -> left.size + right.size > 2D)
-		return handleLeafNodeUnderflowRedistribution(left, right, parent);   
+		// The redistribution condition (cannot merge -> left.size + right.size > 2*leafD)
+		return handleLeafNodeUnderflowRedistribution(left, right, parent, leftIndex);   
 	}
 	
 	/**
@@ -319,9 +1645,13 @@ public class BPlusTree<K extends Comparable<K>, T> {
 	 * @param left leftnode
 	 * @param right rightnode
 	 * @param parent parent node
+	 * @param leftIndex position of left among the parent's children
 	 * @return
 	 */
-	public int handleLeafNodeUnderflowMerge(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleLeafNodeUnderflowMerge(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
+		if (metrics != null) {
+			metrics.leafMerges.increment();
+		}
 		right.keys.addAll(0, left.keys);
 		right.values.addAll(0, left.values);
       
@@ -330,43 +1660,42 @@ public class BPlusTree<K extends Comparable<K>, T> {
 		if (left.previousLeaf != null) {
 			left.previousLeaf.nextLeaf = right;
 		}
-		return new FindKeyIndex(parent , right.keys.get(0)).find();
+		return leftIndex;
 	}
 	
-	public int handleLeafNodeUnderflowRedistribution(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleLeafNodeUnderflowRedistribution(LeafNode<K,T> left, LeafNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
+		if (metrics != null) {
+			metrics.leafRedistributions.increment();
+		}
 	    int leftSize = left.keys.size();
-	    if (leftSize < D) {  // left is the underflowed node
-	      /* locate the key index for the right node in the parent node.
-	       * Note that the index for the key to find the right node
+	    if (leftSize < leafD) {  // left is the underflowed node
+	      /* the index for the key to find the right node
 	       * is the child index of it's left sibling.
 	       */
-	    	int rightIndex = new FindKeyIndex(parent, left.keys.get(0)).find();
 	      left.keys.add(right.keys.get(0));
 	      left.values.add(right.values.get(0));
 	      right.keys.remove(0);
 	      right.values.remove(0);
 	      
 	      // change the key of right node in the parent node. 
-	      parent.keys.set(rightIndex, right.keys.get(0));     
+	      parent.keys.set(leftIndex, right.keys.get(0));     
 	    } else { //right is the underflowed node
-	      /* locate the key index for the right node in the parent node.
-	       * Note that the index for the key to find the right node
+	      /* the index for the key to find the right node
 	       * is the child index of it's left sibling.
 	       */
-	    	int rightIndex = new FindKeyIndex(parent, left.keys.get(0)).find();
-	      right.keys.addAll(0, left.keys.subList(D, leftSize));
-	      right.values.addAll(0, left.values.subList(D, leftSize));
-	      left.keys.subList(D, leftSize).clear();
-	      left.values.subList(D, leftSize).clear();
+	      right.keys.addAll(0, left.keys.subList(leafD, leftSize));
+	      right.values.addAll(0, left.values.subList(leafD, leftSize));
+	      left.keys.subList(leafD, leftSize).clear();
+	      left.values.subList(leafD, leftSize).clear();
 	          
 	      // change the key of right node in the parent node. 
-	      parent.keys.set(rightIndex, right.keys.get(0));
+	      parent.keys.set(leftIndex, right.keys.get(0));
 	    }
 	    return -1;
 	}
   
 	private boolean isLeafMergable(Node<K,T> left, Node<K,T> right) {
-		return (left.keys.size() + right.keys.size() <= D * 2);
+		return (left.keys.size() + right.keys.size() <= leafD * 2);
 	}
 
 	/**
@@ -375,61 +1704,64 @@ public class BPlusTree<K extends Comparable<K>, T> {
 	 * @param left: the smaller node
 	 * @param right: the bigger node
 	 * @param parent: their parent index node
+	 * @param leftIndex: position of left among the parent's children
 	 * @return the splitkey position in parent if merged so that parent can
 	 *         delete the splitkey later on. -1 otherwise
 	 */
-	public int handleIndexNodeUnderflow(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleIndexNodeUnderflow(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
 		// The merge condition
 		if (isIndexMergable(left, right)) {
-			return handleIndexNodeUnderflowMerge(left, right, parent);
+			return handleIndexNodeUnderflowMerge(left, right, parent, leftIndex);
 		}
         
 		// The redistribution condition
-		return handleIndexNodeUnderflowRedistribution(left, right, parent);
+		return handleIndexNodeUnderflowRedistribution(left, right, parent, leftIndex);
 	}
 	
-	public int handleIndexNodeUnderflowMerge(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleIndexNodeUnderflowMerge(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
+		if (metrics != null) {
+			metrics.indexMerges.increment();
+		}
 		// add the key from parent to the end of the left node, so that
     	// the index of the key equals the index of the last child. 
-    	int parentKeyIdx = new FindKeyIndex(parent, left.keys.get(0)).find();
-    	left.keys.add(parent.keys.get(parentKeyIdx));
+    	left.keys.add(parent.keys.get(leftIndex));
     	right.keys.addAll(0, left.keys);
     	right.children.addAll(0, left.children);
-    	return parentKeyIdx;
+    	return leftIndex;
 	}
 	
-	public int handleIndexNodeUnderflowRedistribution(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent) {
+	public int handleIndexNodeUnderflowRedistribution(IndexNode<K,T> left, IndexNode<K,T> right, IndexNode<K,T> parent, int leftIndex) {
+		if (metrics != null) {
+			metrics.indexRedistributions.increment();
+		}
 		int leftKeySize = left.keys.size();
 	    int leftChildrenSize = left.children.size(); 
 	    
-	    if (leftKeySize < D) { // if the left node is underflowed
-	    	int parentKeyIndex = new FindKeyIndex(parent, left.keys.get(0)).find();
-	    	left.keys.add(parent.keys.get(parentKeyIndex));
+	    if (leftKeySize < indexD) { // if the left node is underflowed
+	    	left.keys.add(parent.keys.get(leftIndex));
 	    	left.children.add(right.children.get(0)); 
 	    	// change the key in the parent node. 
-	    	parent.keys.set(parentKeyIndex, right.keys.get(0));
+	    	parent.keys.set(leftIndex, right.keys.get(0));
 	    	// remove the left most key-value pair in the right node.
 	    	right.keys.remove(0);
 	    	right.children.remove(0);
 	    } else { //right is the underflowed node
-	    	/* locate the key index for the right node in the parent node.
-	    	 * Note that the index for the key to find the right node
+	    	/* the index for the key to find the right node
 	    	 * is the child index of it's left sibling.
 	    	 */
-	    	int parentKeyIndex = new FindKeyIndex(parent, left.keys.get(0)).find(); 
-	    	right.keys.add(0, parent.keys.get(parentKeyIndex));   
-	    	right.keys.addAll(0, left.keys.subList(D + 1, leftKeySize));
-	    	right.children.addAll(0, left.children.subList(D + 1, leftChildrenSize));
-	    	left.keys.subList(D + 1, leftKeySize).clear();
-	    	left.children.subList(D + 1, leftChildrenSize).clear();
+	    	right.keys.add(0, parent.keys.get(leftIndex));   
+	    	right.keys.addAll(0, left.keys.subList(indexD + 1, leftKeySize));
+	    	right.children.addAll(0, left.children.subList(indexD + 1, leftChildrenSize));
+	    	left.keys.subList(indexD + 1, leftKeySize).clear();
+	    	left.children.subList(indexD + 1, leftChildrenSize).clear();
 	    	// change the key of left node in the parent node, and remove it from the left node
-	    	parent.keys.set(parentKeyIndex, left.keys.get(D));
-	    	left.keys.remove(D);    
+	    	parent.keys.set(leftIndex, left.keys.get(indexD));
+	    	left.keys.remove(indexD);    
 	    }
 	    return -1;
 	}
   
 	private boolean isIndexMergable(Node<K,T> left, Node<K,T> right) {
-		return (left.keys.size() + 1 + right.keys.size() <= D * 2);
+		return (left.keys.size() + 1 + right.keys.size() <= indexD * 2);
 	}
 }
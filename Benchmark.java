@@ -0,0 +1,1348 @@
+package BPlusTree;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+
+/**
+ * Simple throughput benchmarks for the BPlusTree
+ *
+ * Usage: java BPlusTree.Benchmark fanout|heap|load|threads|latency|wal|snapshot|batch|finger|apply|strings|offheap|metrics|multimap|order|churn|split|bloom|parallel|sharded [entries]
+ *        java BPlusTree.Benchmark compare [entries...]
+ */
+public class Benchmark {
+
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int MEASURE_ROUNDS = 5;
+
+  // sink for the lookup results so the JIT cannot drop the searches
+  private static long blackhole;
+
+  public static void main(String[] args) {
+    String name = args.length > 0 ? args[0] : "fanout";
+    if (name.equals("compare")) {
+      WorkloadBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    int entries = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    if (name.equals("fanout")) {
+      fanout(entries);
+    } else if (name.equals("heap")) {
+      heap(entries);
+    } else if (name.equals("load")) {
+      load(entries);
+    } else if (name.equals("threads")) {
+      threads(entries);
+    } else if (name.equals("latency")) {
+      latency(entries);
+    } else if (name.equals("wal")) {
+      wal(entries);
+    } else if (name.equals("snapshot")) {
+      snapshot(entries);
+    } else if (name.equals("batch")) {
+      batch(entries);
+    } else if (name.equals("finger")) {
+      finger(entries);
+    } else if (name.equals("apply")) {
+      apply(entries);
+    } else if (name.equals("strings")) {
+      strings(entries);
+    } else if (name.equals("offheap")) {
+      offheap(entries);
+    } else if (name.equals("metrics")) {
+      metrics(entries);
+    } else if (name.equals("multimap")) {
+      multimap(entries);
+    } else if (name.equals("order")) {
+      order(entries);
+    } else if (name.equals("churn")) {
+      churn(entries);
+    } else if (name.equals("split")) {
+      split(entries);
+    } else if (name.equals("bloom")) {
+      bloom(entries);
+    } else if (name.equals("parallel")) {
+      parallel(entries);
+    } else if (name.equals("sharded")) {
+      sharded(entries);
+    } else {
+      System.err.println("unknown benchmark: " + name);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Measure insert and lookup throughput for fanouts (maximum keys per node)
+   * from 4 to 512
+   *
+   * @param entries number of keys inserted per round
+   */
+  public static void fanout(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    System.out.printf("%8s %6s %14s %14s%n", "fanout", "depth", "insert ops/s", "search ops/s");
+    for (int fanout = 4; fanout <= 512; fanout *= 2) {
+      int d = fanout / 2;
+      double insert = 0;
+      double search = 0;
+      int depth = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(d);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+          tree.insert(keys[i], keys[i]);
+        }
+        long inserted = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+          sum += tree.search(keys[i]);
+        }
+        long searched = System.nanoTime();
+        blackhole += sum;
+
+        if (round >= WARMUP_ROUNDS) {
+          insert += opsPerSecond(keys.length, inserted - start);
+          search += opsPerSecond(keys.length, searched - inserted);
+        }
+        depth = depth(tree.root);
+      }
+      System.out.printf("%8d %6d %14.0f %14.0f%n", fanout, depth,
+          insert / MEASURE_ROUNDS, search / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Compare the heap retained per entry and the lookup throughput of
+   * BPlusTree<Long,Long> and LongBPlusTree of the same order
+   *
+   * @param entries number of keys in each tree
+   */
+  public static void heap(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    System.out.printf("%-22s %16s %14s%n", "tree", "bytes/entry", "search ops/s");
+
+    long before = usedHeap();
+    BPlusTree<Long, Long> boxed = new BPlusTree<Long, Long>(32);
+    for (int i = 0; i < keys.length; i++) {
+      boxed.insert((long) keys[i], (long) keys[i]);
+    }
+    long boxedBytes = usedHeap() - before;
+    double boxedSearch = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < keys.length; i++) {
+        sum += boxed.search((long) keys[i]);
+      }
+      blackhole += sum;
+      if (round >= WARMUP_ROUNDS) {
+        boxedSearch += opsPerSecond(keys.length, System.nanoTime() - start);
+      }
+    }
+    System.out.printf("%-22s %16.1f %14.0f%n", "BPlusTree<Long,Long>",
+        (double) boxedBytes / entries, boxedSearch / MEASURE_ROUNDS);
+    boxed = null;
+
+    before = usedHeap();
+    LongBPlusTree primitive = new LongBPlusTree(32);
+    for (int i = 0; i < keys.length; i++) {
+      primitive.insert(keys[i], keys[i]);
+    }
+    long primitiveBytes = usedHeap() - before;
+    double primitiveSearch = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < keys.length; i++) {
+        sum += primitive.search(keys[i], 0);
+      }
+      blackhole += sum;
+      if (round >= WARMUP_ROUNDS) {
+        primitiveSearch += opsPerSecond(keys.length, System.nanoTime() - start);
+      }
+    }
+    System.out.printf("%-22s %16.1f %14.0f%n", "LongBPlusTree",
+        (double) primitiveBytes / entries, primitiveSearch / MEASURE_ROUNDS);
+  }
+
+  /**
+   * Measure what order statistics cost on insert and delete, and what they
+   * save when paging: fetching 50 rows at a random position by
+   * rows(from, to) against skipping to the position along the leaf chain
+   *
+   * @param entries number of keys in the tree
+   */
+  public static void order(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    System.out.printf("%-12s %14s %14s %14s%n", "statistics", "insert ops/s", "delete ops/s", "pages/s");
+    Random random = new Random(7);
+    for (int on = 0; on < 2; on++) {
+      double insert = 0;
+      double delete = 0;
+      double pages = 0;
+      int pageCount = on == 1 ? 100000 : 20;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+        tree.setOrderStatisticsEnabled(on == 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+          tree.insert(keys[i], keys[i]);
+        }
+        long inserted = System.nanoTime();
+        long sum = 0;
+        for (int p = 0; p < pageCount; p++) {
+          long from = random.nextInt(entries);
+          if (on == 1) {
+            for (Map.Entry<Integer, Integer> e : tree.rows(from, from + 50)) {
+              sum += e.getKey();
+            }
+          } else {
+            Cursor<Integer, Integer> cursor = tree.cursor();
+            cursor.seekFirst();
+            for (long skip = 0; skip < from; skip++) {
+              cursor.next();
+            }
+            for (int r = 0; r < 50 && cursor.isValid(); r++) {
+              sum += cursor.key();
+              cursor.next();
+            }
+          }
+        }
+        long paged = System.nanoTime();
+        for (int i = 0; i < keys.length; i += 2) {
+          tree.delete(keys[i]);
+        }
+        long deleted = System.nanoTime();
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          insert += opsPerSecond(keys.length, inserted - start);
+          pages += opsPerSecond(pageCount, paged - inserted);
+          delete += opsPerSecond((keys.length + 1) / 2, deleted - paged);
+        }
+      }
+      System.out.printf("%-12s %14.0f %14.0f %14.0f%n", on == 1 ? "on" : "off",
+          insert / MEASURE_ROUNDS, delete / MEASURE_ROUNDS, pages / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Sum the values of the whole tree: walking the leaf chain with a
+   * cursor, through sequential and parallel streams, and with
+   * TreeAggregates.sum on the common fork-join pool
+   *
+   * @param entries number of keys in the tree
+   */
+  public static void parallel(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+    for (int i = 0; i < keys.length; i++) {
+      tree.insert(keys[i], keys[i]);
+    }
+    ToLongFunction<Map.Entry<Integer, Integer>> entryValue = new ToLongFunction<Map.Entry<Integer, Integer>>() {
+      public long applyAsLong(Map.Entry<Integer, Integer> e) {
+        return e.getValue();
+      }
+    };
+    ToLongFunction<Integer> value = new ToLongFunction<Integer>() {
+      public long applyAsLong(Integer v) {
+        return v;
+      }
+    };
+    System.out.println("threads in the common pool: " + ForkJoinPool.commonPool().getParallelism()
+        + ", processors: " + Runtime.getRuntime().availableProcessors());
+    System.out.printf("%-20s %16s%n", "scan", "entries/s");
+    String[] scans = {"cursor", "stream", "parallelStream", "TreeAggregates.sum"};
+    for (String scan : scans) {
+      double rate = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        long start = System.nanoTime();
+        long sum = 0;
+        if (scan.equals("cursor")) {
+          Cursor<Integer, Integer> cursor = tree.cursor();
+          for (boolean valid = cursor.seekFirst(); valid; valid = cursor.next()) {
+            sum += cursor.value();
+          }
+        } else if (scan.equals("stream")) {
+          sum = tree.stream().mapToLong(entryValue).sum();
+        } else if (scan.equals("parallelStream")) {
+          sum = tree.parallelStream().mapToLong(entryValue).sum();
+        } else {
+          sum = TreeAggregates.sum(tree, null, null, value);
+        }
+        long elapsed = System.nanoTime() - start;
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          rate += opsPerSecond(entries, elapsed);
+        }
+      }
+      System.out.printf("%-20s %16.0f%n", scan, rate / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Ingest throughput of 1 to 2 * nproc writer threads inserting disjoint
+   * shuffled keys: one ConcurrentBPlusTree against 16 range partitions
+   * that split online and 16 hash partitions
+   *
+   * @param entries number of keys inserted
+   */
+  public static void sharded(int entries) {
+    final int[] keys = shuffledKeys(entries, 42);
+    int partitions = 16;
+    Integer[] splitKeys = new Integer[partitions - 1];
+    for (int i = 0; i < splitKeys.length; i++) {
+      splitKeys[i] = (int) ((long) entries * (i + 1) / partitions);
+    }
+    int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+    System.out.printf("%8s %18s %18s %18s %12s%n", "threads", "crabbing ops/s", "range ops/s", "hash ops/s",
+        "partitions");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double crabbing = 0;
+      double range = 0;
+      double hash = 0;
+      int split = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        double crabbingRate = runIngest(subject(new ConcurrentBPlusTree<Integer, Integer>(32)), keys, threads);
+        ShardedBPlusTree<Integer, Integer> ranges = new ShardedBPlusTree<Integer, Integer>(splitKeys, 32);
+        ranges.setSplitThreshold(Math.max(1024, entries / 32));
+        double rangeRate = runIngest(subject(ranges), keys, threads);
+        double hashRate = runIngest(subject(new ShardedBPlusTree<Integer, Integer>(partitions, 32)), keys, threads);
+        if (round >= WARMUP_ROUNDS) {
+          crabbing += crabbingRate;
+          range += rangeRate;
+          hash += hashRate;
+          split = ranges.partitions();
+        }
+      }
+      System.out.printf("%8d %18.0f %18.0f %18.0f %12d%n", threads, crabbing / MEASURE_ROUNDS, range / MEASURE_ROUNDS,
+          hash / MEASURE_ROUNDS, split);
+    }
+  }
+
+  /**
+   * @return inserts per second of the threads, thread t inserting keys t,
+   *         t + threads, ...
+   */
+  static double runIngest(final WorkloadBenchmark.Subject tree, final int[] keys, final int threads) {
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = id; i < keys.length; i += threads) {
+            tree.insert(keys[i]);
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+    }
+    return opsPerSecond(keys.length, System.nanoTime() - start);
+  }
+
+  /**
+   * Measure search throughput with 70% of the lookups for absent keys,
+   * without a Bloom filter and with filters of several false positive rates
+   *
+   * @param entries number of keys in the tree
+   */
+  public static void bloom(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    Random random = new Random(7);
+    int[] lookups = new int[entries];
+    for (int i = 0; i < lookups.length; i++) {
+      // the tree holds the even numbers below 2 * entries
+      int key = random.nextInt(entries);
+      lookups[i] = random.nextInt(10) < 7 ? 2 * key + 1 : 2 * key;
+    }
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+    for (int i = 0; i < keys.length; i++) {
+      tree.insert(2 * keys[i], keys[i]);
+    }
+    System.out.printf("%-10s %14s %12s %12s%n", "filter", "search ops/s", "filter KB", "observed fpp");
+    double[] rates = {0, 0.1, 0.01, 0.001};
+    for (double rate : rates) {
+      BloomFilter<Integer> filter = rate == 0 ? null : new BloomFilter<Integer>(rate, 256L << 20);
+      tree.setBloomFilter(filter);
+      double search = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        if (filter != null) {
+          filter.resetStatistics();
+        }
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups.length; i++) {
+          Integer value = tree.search(lookups[i]);
+          if (value != null) {
+            sum += value;
+          }
+        }
+        long elapsed = System.nanoTime() - start;
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          search += opsPerSecond(lookups.length, elapsed);
+        }
+      }
+      System.out.printf("%-10s %14.0f %12d %12.4f%n", rate == 0 ? "none" : String.valueOf(rate),
+          search / MEASURE_ROUNDS, filter == null ? 0 : filter.sizeBytes() / 1024,
+          filter == null ? 0 : filter.observedFalsePositiveRate());
+    }
+  }
+
+  /**
+   * Compare the split policies on increasing keys, on four interleaved
+   * increasing runs and on random keys: leaf fill factor, nodes, height,
+   * heap per entry and insert throughput
+   *
+   * @param entries number of keys inserted per round
+   */
+  public static void split(int entries) {
+    int[] random = shuffledKeys(entries, 42);
+    SplitPolicy[] policies = {SplitPolicy.MIDPOINT, SplitPolicy.RIGHTMOST, SplitPolicy.ADAPTIVE};
+    String[] workloads = {"increasing", "4 runs", "random"};
+    System.out.printf("%-12s %-10s %8s %10s %7s %12s %14s%n", "keys", "policy", "leaf fill", "nodes", "height",
+        "heap B/entry", "insert ops/s");
+    for (String workload : workloads) {
+      int[] keys = new int[entries];
+      for (int i = 0; i < entries; i++) {
+        if (workload.equals("increasing")) {
+          keys[i] = i;
+        } else if (workload.equals("4 runs")) {
+          keys[i] = (i % 4) * entries + i / 4;
+        } else {
+          keys[i] = random[i];
+        }
+      }
+      for (SplitPolicy policy : policies) {
+        double insert = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+          BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+          tree.setSplitPolicy(policy);
+          long start = System.nanoTime();
+          for (int i = 0; i < keys.length; i++) {
+            tree.insert(keys[i], keys[i]);
+          }
+          long elapsed = System.nanoTime() - start;
+          if (round >= WARMUP_ROUNDS) {
+            insert += opsPerSecond(keys.length, elapsed);
+          }
+        }
+        long before = usedHeap();
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+        tree.setSplitPolicy(policy);
+        for (int i = 0; i < keys.length; i++) {
+          tree.insert(keys[i], keys[i]);
+        }
+        double heap = (double) (usedHeap() - before) / entries;
+        TreeInspector.Stats stats = TreeInspector.inspect(tree);
+        System.out.printf("%-12s %-10s %8.2f %10d %7d %12.1f %14.0f%n", workload, policy, stats.leafFillFactor(32),
+            stats.nodes(), stats.height, heap, insert / MEASURE_ROUNDS);
+      }
+    }
+  }
+
+  /**
+   * Compare eager and deferred rebalancing under churn: keys drawn from a
+   * window twice the size of the tree are inserted when absent and deleted
+   * when present, so the leaves keep emptying and refilling. Prints the
+   * throughput, the delete latencies and the structural changes made.
+   *
+   * @param entries number of keys in the tree
+   */
+  public static void churn(int entries) {
+    int operations = 4 * entries;
+    System.out.printf("%-16s %12s %12s %12s %12s %10s %10s %10s%n", "rebalancing", "ops/s", "delete mean",
+        "delete p99", "delete max", "splits", "merges", "rebuilds");
+    int[] thresholds = {0, 1024, Integer.MAX_VALUE};
+    for (int threshold : thresholds) {
+      double ops = 0;
+      TreeMetrics.Snapshot measured = null;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(8);
+        boolean[] present = new boolean[2 * entries];
+        Random random = new Random(round);
+        for (int i = 0; i < entries; i++) {
+          int key = random.nextInt(present.length);
+          if (!present[key]) {
+            tree.insert(key, key);
+            present[key] = true;
+          }
+        }
+        if (threshold > 0) {
+          tree.setDeferredRebalancing(true, threshold);
+        }
+        TreeMetrics metrics = new TreeMetrics();
+        tree.setMetrics(metrics);
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+          int key = random.nextInt(present.length);
+          if (present[key]) {
+            tree.delete(key);
+          } else {
+            tree.insert(key, key);
+          }
+          present[key] = !present[key];
+        }
+        tree.rebalance();
+        long elapsed = System.nanoTime() - start;
+        if (round >= WARMUP_ROUNDS) {
+          ops += opsPerSecond(operations, elapsed);
+          measured = metrics.snapshot();
+        }
+      }
+      System.out.printf("%-16s %12.0f %10dns %10dns %10dns %10d %10d %10d%n",
+          threshold == 0 ? "eager" : threshold == Integer.MAX_VALUE ? "deferred, end" : "deferred, " + threshold,
+          ops / MEASURE_ROUNDS, measured.deleteLatency.meanNanos(), measured.deleteLatency.percentileNanos(0.99),
+          measured.deleteLatency.maxNanos(), measured.leafSplits + measured.indexSplits,
+          measured.leafMerges + measured.leafRedistributions + measured.indexMerges + measured.indexRedistributions,
+          measured.rebuiltRuns);
+    }
+  }
+
+  /**
+   * Compare a BPlusTree holding an ArrayList of values per key with
+   * BPlusMultimap and BPlusLongMultimap: heap per value and insert
+   * throughput, for row ids spread over entries/8 keys with a skewed
+   * distribution
+   *
+   * @param entries number of key/value pairs
+   */
+  public static void multimap(int entries) {
+    int keyCount = Math.max(1, entries / 8);
+    int[] keys = new int[entries];
+    Random random = new Random(42);
+    for (int i = 0; i < entries; i++) {
+      // squaring skews the keys: low keys get many values, most keys a few
+      double r = random.nextDouble();
+      keys[i] = (int) (r * r * keyCount);
+    }
+    System.out.printf("%-30s %14s %14s%n", "tree", "bytes/value", "insert ops/s");
+
+    long before = usedHeap();
+    long start = System.nanoTime();
+    BPlusTree<Integer, ArrayList<Integer>> lists = new BPlusTree<Integer, ArrayList<Integer>>(32);
+    for (int i = 0; i < entries; i++) {
+      ArrayList<Integer> values = lists.search(keys[i]);
+      if (values == null) {
+        values = new ArrayList<Integer>();
+        lists.insert(keys[i], values);
+      }
+      values.add(i);
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%-30s %14.1f %14.0f%n", "BPlusTree<K,ArrayList<T>>",
+        (double) (usedHeap() - before) / entries, opsPerSecond(entries, elapsed));
+    lists = null;
+
+    before = usedHeap();
+    start = System.nanoTime();
+    BPlusMultimap<Integer, Integer> multimap = new BPlusMultimap<Integer, Integer>(32);
+    for (int i = 0; i < entries; i++) {
+      multimap.insert(keys[i], i);
+    }
+    elapsed = System.nanoTime() - start;
+    System.out.printf("%-30s %14.1f %14.0f%n", "BPlusMultimap",
+        (double) (usedHeap() - before) / entries, opsPerSecond(entries, elapsed));
+    blackhole += multimap.size();
+    multimap = null;
+
+    before = usedHeap();
+    start = System.nanoTime();
+    BPlusLongMultimap<Integer> rowIds = new BPlusLongMultimap<Integer>(32);
+    for (int i = 0; i < entries; i++) {
+      rowIds.insert(keys[i], i);
+    }
+    elapsed = System.nanoTime() - start;
+    System.out.printf("%-30s %14.1f %14.0f%n", "BPlusLongMultimap",
+        (double) (usedHeap() - before) / entries, opsPerSecond(entries, elapsed));
+    blackhole += rowIds.size();
+  }
+
+  /**
+   * Measure the cost of recording TreeMetrics: insert and search throughput
+   * with the metrics switched off and on, then print what was recorded
+   *
+   * @param entries number of keys inserted per round
+   */
+  public static void metrics(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    System.out.printf("%-8s %14s %14s%n", "metrics", "insert ops/s", "search ops/s");
+    TreeMetrics metrics = new TreeMetrics();
+    for (int on = 0; on < 2; on++) {
+      double insert = 0;
+      double search = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        metrics.reset();
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(16);
+        tree.setMetrics(on == 1 ? metrics : null);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+          tree.insert(keys[i], keys[i]);
+        }
+        long inserted = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+          sum += tree.search(keys[i]);
+        }
+        long searched = System.nanoTime();
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          insert += opsPerSecond(keys.length, inserted - start);
+          search += opsPerSecond(keys.length, searched - inserted);
+        }
+      }
+      System.out.printf("%-8s %14.0f %14.0f%n", on == 1 ? "on" : "off",
+          insert / MEASURE_ROUNDS, search / MEASURE_ROUNDS);
+    }
+    System.out.println();
+    System.out.println(metrics.snapshot());
+  }
+
+  /**
+   * Compare LongBPlusTree and OffHeapBPlusTree of the same order: heap and
+   * direct memory per entry, collector time while inserting, the duration
+   * of a full collection with the tree alive, and lookup throughput
+   *
+   * @param entries number of keys in each tree
+   */
+  public static void offheap(int entries) {
+    int[] keys = shuffledKeys(entries, 42);
+    System.out.printf("%-18s %12s %14s %12s %12s %14s%n", "tree", "heap B/entry", "direct B/entry",
+        "insert gc ms", "full gc ms", "search ops/s");
+
+    long before = usedHeap();
+    long gcBefore = gcMillis();
+    LongBPlusTree heapTree = new LongBPlusTree(32);
+    for (int i = 0; i < keys.length; i++) {
+      heapTree.insert(keys[i], keys[i]);
+    }
+    long insertGc = gcMillis() - gcBefore;
+    long heapBytes = usedHeap() - before;
+    long fullGc = fullGcMillis();
+    double search = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < keys.length; i++) {
+        sum += heapTree.search(keys[i], 0);
+      }
+      blackhole += sum;
+      if (round >= WARMUP_ROUNDS) {
+        search += opsPerSecond(keys.length, System.nanoTime() - start);
+      }
+    }
+    System.out.printf("%-18s %12.1f %14.1f %12d %12d %14.0f%n", "LongBPlusTree",
+        (double) heapBytes / entries, 0.0, insertGc, fullGc, search / MEASURE_ROUNDS);
+    heapTree = null;
+
+    before = usedHeap();
+    gcBefore = gcMillis();
+    OffHeapBPlusTree offHeapTree = new OffHeapBPlusTree(32);
+    for (int i = 0; i < keys.length; i++) {
+      offHeapTree.insert(keys[i], keys[i]);
+    }
+    insertGc = gcMillis() - gcBefore;
+    heapBytes = usedHeap() - before;
+    fullGc = fullGcMillis();
+    search = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < keys.length; i++) {
+        sum += offHeapTree.search(keys[i], 0);
+      }
+      blackhole += sum;
+      if (round >= WARMUP_ROUNDS) {
+        search += opsPerSecond(keys.length, System.nanoTime() - start);
+      }
+    }
+    System.out.printf("%-18s %12.1f %14.1f %12d %12d %14.0f%n", "OffHeapBPlusTree",
+        (double) heapBytes / entries, (double) offHeapTree.allocatedBytes() / entries,
+        insertGc, fullGc, search / MEASURE_ROUNDS);
+    offHeapTree.close();
+  }
+
+  /**
+   * @return milliseconds spent in the collectors since the JVM started
+   */
+  static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+
+  /**
+   * @return milliseconds taken by one full collection
+   */
+  static long fullGcMillis() {
+    long start = System.nanoTime();
+    System.gc();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /**
+   * Compare building a tree from sorted input by repeated insert
+   * (Utils.bulkInsert) and by the bottom-up BPlusTree.bulkLoad
+   *
+   * @param entries number of keys loaded per round
+   */
+  public static void load(int entries) {
+    Integer[] keys = new Integer[entries];
+    for (int i = 0; i < entries; i++) {
+      keys[i] = i;
+    }
+    System.out.printf("%-12s %14s %8s%n", "loader", "entries/s", "leaves");
+    double insert = 0;
+    double bulk = 0;
+    int insertLeaves = 0;
+    int bulkLeaves = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+      long start = System.nanoTime();
+      Utils.bulkInsert(tree, keys, keys);
+      long inserted = System.nanoTime();
+      insertLeaves = leaves(tree);
+
+      tree = new BPlusTree<Integer, Integer>(32);
+      long loadStart = System.nanoTime();
+      tree.bulkLoad(keys, keys, 1.0);
+      long loaded = System.nanoTime();
+      bulkLeaves = leaves(tree);
+
+      if (round >= WARMUP_ROUNDS) {
+        insert += opsPerSecond(entries, inserted - start);
+        bulk += opsPerSecond(entries, loaded - loadStart);
+      }
+    }
+    System.out.printf("%-12s %14.0f %8d%n", "bulkInsert", insert / MEASURE_ROUNDS, insertLeaves);
+    System.out.printf("%-12s %14.0f %8d%n", "bulkLoad", bulk / MEASURE_ROUNDS, bulkLeaves);
+  }
+
+  /**
+   * Throughput versus thread count for a read-mostly workload (95% search,
+   * 5% insert/delete): a BPlusTree behind one global lock, the
+   * latch-crabbing ConcurrentBPlusTree and the latch-free-read BLinkTree
+   *
+   * @param entries number of keys preloaded into each tree
+   */
+  public static void threads(int entries) {
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%8s %18s %18s %18s%n", "threads", "global lock ops/s", "crabbing ops/s", "b-link ops/s");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double locked = runThreads(synchronizedSubject(new BPlusTree<Integer, Integer>(32)), threads, entries);
+      double crabbing = runThreads(subject(new ConcurrentBPlusTree<Integer, Integer>(32)), threads, entries);
+      double blink = runThreads(subject(new BLinkTree<Integer, Integer>(32)), threads, entries);
+      System.out.printf("%8d %18.0f %18.0f %18.0f%n", threads, locked, crabbing, blink);
+    }
+  }
+
+  /**
+   * Search latency of one reader while 0..nproc writer threads insert and
+   * delete, for the ConcurrentBPlusTree and the BLinkTree
+   *
+   * @param entries number of keys preloaded into each tree
+   */
+  public static void latency(int entries) {
+    int maxWriters = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%-10s %8s %10s %10s %10s%n", "tree", "writers", "p50 ns", "p99 ns", "p99.9 ns");
+    for (int writers = 0; writers <= maxWriters; writers = writers == 0 ? 1 : writers * 2) {
+      printLatency("crabbing", writers, readLatencies(subject(new ConcurrentBPlusTree<Integer, Integer>(32)), writers, entries));
+      printLatency("b-link", writers, readLatencies(subject(new BLinkTree<Integer, Integer>(32)), writers, entries));
+    }
+  }
+
+  private static void printLatency(String tree, int writers, long[] latencies) {
+    Arrays.sort(latencies);
+    System.out.printf("%-10s %8d %10d %10d %10d%n", tree, writers, latencies[latencies.length / 2],
+        latencies[(int) (latencies.length * 0.99)], latencies[(int) (latencies.length * 0.999)]);
+  }
+
+  /**
+   * @return the latency of each of 1M searches made while the writers run
+   */
+  static long[] readLatencies(final WorkloadBenchmark.Subject tree, int writers, final int entries) {
+    for (int i = 0; i < entries; i += 2) {
+      tree.insert(i);
+    }
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread[] workers = new Thread[writers];
+    for (int t = 0; t < writers; t++) {
+      final int id = t;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(id);
+          while (!done.get()) {
+            int key = random.nextInt(entries);
+            if (random.nextBoolean()) {
+              tree.insert(key);
+            } else {
+              tree.delete(key);
+            }
+          }
+        }
+      });
+      workers[t].setDaemon(true);
+      workers[t].start();
+    }
+    Random random = new Random(-1);
+    long[] latencies = new long[1000000];
+    long sum = 0;
+    for (int i = 0; i < latencies.length; i++) {
+      Integer key = random.nextInt(entries);
+      long start = System.nanoTime();
+      sum += tree.search(key);
+      latencies[i] = System.nanoTime() - start;
+    }
+    blackhole += sum;
+    done.set(true);
+    return latencies;
+  }
+
+  static WorkloadBenchmark.Subject subject(final BPlusTree<Integer, Integer> tree) {
+    return new WorkloadBenchmark.Subject() {
+      public void insert(Integer key) { tree.insert(key, key); }
+      public int search(Integer key) { Integer v = tree.search(key); return v == null ? 0 : v; }
+      public void delete(Integer key) { tree.delete(key); }
+    };
+  }
+
+  static WorkloadBenchmark.Subject subject(final BLinkTree<Integer, Integer> tree) {
+    return new WorkloadBenchmark.Subject() {
+      public void insert(Integer key) { tree.insert(key, key); }
+      public int search(Integer key) { Integer v = tree.search(key); return v == null ? 0 : v; }
+      public void delete(Integer key) { tree.delete(key); }
+    };
+  }
+
+  static WorkloadBenchmark.Subject subject(final ShardedBPlusTree<Integer, Integer> tree) {
+    return new WorkloadBenchmark.Subject() {
+      public void insert(Integer key) { tree.insert(key, key); }
+      public int search(Integer key) { Integer v = tree.search(key); return v == null ? 0 : v; }
+      public void delete(Integer key) { tree.delete(key); }
+    };
+  }
+
+  /**
+   * The baseline of the threads benchmark: every call holds one lock
+   */
+  static WorkloadBenchmark.Subject synchronizedSubject(final BPlusTree<Integer, Integer> tree) {
+    return new WorkloadBenchmark.Subject() {
+      public synchronized void insert(Integer key) { tree.insert(key, key); }
+      public synchronized int search(Integer key) { Integer v = tree.search(key); return v == null ? 0 : v; }
+      public synchronized void delete(Integer key) { tree.delete(key); }
+    };
+  }
+
+  /**
+   * Measure heap use, separator length and lookup speed for URL-like
+   * String keys with long shared prefixes: the generic tree versus the byte
+   * string tree without and with separator truncation
+   *
+   * @param entries number of keys
+   */
+  public static void strings(int entries) {
+    String[] keys = new String[entries];
+    byte[][] encoded = new byte[entries][];
+    int[] order = shuffledKeys(entries, 42);
+    for (int i = 0; i < entries; i++) {
+      int n = order[i];
+      keys[i] = String.format("https://shop.example.com/catalog/category-%03d/products/item-%08d.html", n % 997, n);
+      encoded[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+    }
+    System.out.printf("%-26s %12s %16s %14s %14s%n", "tree", "bytes/entry", "separator bytes", "String ops/s", "byte[] ops/s");
+
+    long before = usedHeap();
+    BPlusTree<String, Integer> generic = new BPlusTree<String, Integer>(32);
+    for (int i = 0; i < entries; i++) {
+      generic.insert(new String(keys[i].toCharArray()), i);  // the tree owns its keys, as the byte tree does
+    }
+    long genericBytes = usedHeap() - before;
+    double genericSearch = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < entries; i++) {
+        sum += generic.search(keys[i]);
+      }
+      blackhole += sum;
+      if (round >= WARMUP_ROUNDS) {
+        genericSearch += opsPerSecond(entries, System.nanoTime() - start);
+      }
+    }
+    System.out.printf("%-26s %12.1f %16.1f %14.0f %14s%n", "BPlusTree<String,Integer>",
+        (double) genericBytes / entries, averageSeparator(generic.root), genericSearch / MEASURE_ROUNDS, "-");
+    generic = null;
+
+    for (boolean truncate : new boolean[] { false, true }) {
+      before = usedHeap();
+      BytesBPlusTree<Integer> tree = new BytesBPlusTree<Integer>(32, 32, truncate);
+      for (int i = 0; i < entries; i++) {
+        tree.insert(encoded[i], i);
+      }
+      long bytes = usedHeap() - before;
+      double stringSearch = 0;
+      double bytesSearch = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < entries; i++) {
+          sum += tree.search(keys[i]);
+        }
+        long searched = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+          sum += tree.search(encoded[i]);
+        }
+        long searchedBytes = System.nanoTime();
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          stringSearch += opsPerSecond(entries, searched - start);
+          bytesSearch += opsPerSecond(entries, searchedBytes - searched);
+        }
+      }
+      System.out.printf("%-26s %12.1f %16.1f %14.0f %14.0f%n",
+          truncate ? "BytesBPlusTree" : "BytesBPlusTree, full seps", (double) bytes / entries,
+          averageSeparator(tree.root), stringSearch / MEASURE_ROUNDS, bytesSearch / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * @return average length in bytes (UTF-8 for Strings) of the separators in the index nodes
+   */
+  private static double averageSeparator(Object root) {
+    long[] totals = new long[2];  // bytes, separators
+    averageSeparator(root, totals);
+    return totals[1] == 0 ? 0 : (double) totals[0] / totals[1];
+  }
+
+  private static void averageSeparator(Object node, long[] totals) {
+    if (node instanceof IndexNode) {
+      IndexNode<?, ?> index = (IndexNode<?, ?>) node;
+      for (Object key : index.keys) {
+        totals[0] += key.toString().getBytes(StandardCharsets.UTF_8).length;
+        totals[1]++;
+      }
+      for (Object child : index.children) {
+        averageSeparator(child, totals);
+      }
+    } else if (node instanceof BytesIndexNode) {
+      BytesIndexNode index = (BytesIndexNode) node;
+      for (int i = 0; i < index.size; i++) {
+        totals[0] += index.keys[i].length;
+        totals[1]++;
+      }
+      for (int i = 0; i <= index.size; i++) {
+        averageSeparator(index.children[i], totals);
+      }
+    }
+  }
+
+  /**
+   * Measure micro-batches of 10k operations, about half inserts of new keys
+   * and half deletes of existing ones, applied one at a time versus as one
+   * sorted applyBatch, spread over the whole tree and clustered in 1% of it
+   *
+   * @param entries number of entries in the tree before the batches
+   */
+  public static void apply(int entries) {
+    int batchSize = 10000;
+    int batches = 20;
+    Integer[] initial = new Integer[entries];
+    for (int i = 0; i < entries; i++) {
+      initial[i] = 2 * i;  // even keys exist, odd keys are new
+    }
+    Random random = new Random(11);
+    System.out.printf("%-10s %16s %16s%n", "keys", "per-key ops/s", "batch ops/s");
+    for (boolean clustered : new boolean[] { false, true }) {
+      Integer[][] keys = new Integer[batches][];
+      Integer[][] values = new Integer[batches][];
+      for (int b = 0; b < batches; b++) {
+        int span = clustered ? Math.max(batchSize * 4, entries / 50) : 2 * entries;
+        int base = random.nextInt(2 * entries - span + 1);
+        TreeMap<Integer, Integer> ops = new TreeMap<Integer, Integer>();
+        while (ops.size() < batchSize) {
+          int key = base + random.nextInt(span);
+          ops.put(key, key % 2 == 0 ? null : key);
+        }
+        keys[b] = ops.keySet().toArray(new Integer[0]);
+        values[b] = ops.values().toArray(new Integer[0]);
+      }
+      double single = 0;
+      double batched = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+        tree.bulkLoad(initial, initial, 0.75);
+        long start = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+          for (int i = 0; i < keys[b].length; i++) {
+            if (values[b][i] == null) {
+              tree.delete(keys[b][i]);
+            } else {
+              tree.insert(keys[b][i], values[b][i]);
+            }
+          }
+        }
+        long applied = System.nanoTime();
+        blackhole += leaves(tree);
+
+        tree = new BPlusTree<Integer, Integer>(32);
+        tree.bulkLoad(initial, initial, 0.75);
+        long batchStart = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+          tree.applyBatch(keys[b], values[b]);
+        }
+        long batchedAt = System.nanoTime();
+        blackhole += leaves(tree);
+
+        if (round >= WARMUP_ROUNDS) {
+          single += opsPerSecond(batches * batchSize, applied - start);
+          batched += opsPerSecond(batches * batchSize, batchedAt - batchStart);
+        }
+      }
+      System.out.printf("%-10s %16.0f %16.0f%n", clustered ? "clustered" : "random",
+          single / MEASURE_ROUNDS, batched / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Measure appends of increasing keys, lookups of nearby keys and random
+   * lookups with the finger off and on
+   *
+   * @param entries number of keys appended per round
+   */
+  public static void finger(int entries) {
+    int[] random = shuffledKeys(entries, 42);
+    System.out.printf("%-8s %14s %14s %14s%n", "finger", "append ops/s", "nearby ops/s", "random ops/s");
+    for (boolean enabled : new boolean[] { false, true }) {
+      double append = 0;
+      double nearby = 0;
+      double scattered = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+        tree.setFingerEnabled(enabled);
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+          tree.insert(i, i);
+        }
+        long appended = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < entries; i++) {
+          sum += tree.search(i ^ 7);
+        }
+        long searched = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+          sum += tree.search(random[i]);
+        }
+        long scatteredAt = System.nanoTime();
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          append += opsPerSecond(entries, appended - start);
+          nearby += opsPerSecond(entries, searched - appended);
+          scattered += opsPerSecond(entries, scatteredAt - searched);
+        }
+      }
+      System.out.printf("%-8s %14.0f %14.0f %14.0f%n", enabled ? "on" : "off",
+          append / MEASURE_ROUNDS, nearby / MEASURE_ROUNDS, scattered / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Measure lookups of 256 keys per request, one search per key versus one
+   * searchBatch per request, for random and for clustered keys
+   *
+   * @param entries number of entries in the tree
+   */
+  public static void batch(int entries) {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+    int[] shuffled = shuffledKeys(entries, 42);
+    for (int i = 0; i < shuffled.length; i++) {
+      tree.insert(shuffled[i], shuffled[i]);
+    }
+    int batchSize = 256;
+    int requests = Math.max(1, 2000000 / batchSize);
+    Random random = new Random(7);
+    System.out.printf("%-10s %16s %16s%n", "keys", "search keys/s", "batch keys/s");
+    for (boolean clustered : new boolean[] { false, true }) {
+      Integer[][] batches = new Integer[requests][batchSize];
+      for (Integer[] keys : batches) {
+        int base = random.nextInt(entries);
+        for (int i = 0; i < batchSize; i++) {
+          keys[i] = clustered ? (base + random.nextInt(4 * batchSize)) % entries : random.nextInt(entries);
+        }
+        Arrays.sort(keys);
+      }
+      Integer[] values = new Integer[batchSize];
+      double single = 0;
+      double batched = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (Integer[] keys : batches) {
+          for (int i = 0; i < batchSize; i++) {
+            sum += tree.search(keys[i]);
+          }
+        }
+        long searched = System.nanoTime();
+        for (Integer[] keys : batches) {
+          tree.searchBatch(keys, values);
+          sum += values[batchSize - 1];
+        }
+        long batchedAt = System.nanoTime();
+        blackhole += sum;
+        if (round >= WARMUP_ROUNDS) {
+          single += opsPerSecond(requests * batchSize, searched - start);
+          batched += opsPerSecond(requests * batchSize, batchedAt - searched);
+        }
+      }
+      System.out.printf("%-10s %16.0f %16.0f%n", clustered ? "clustered" : "random",
+          single / MEASURE_ROUNDS, batched / MEASURE_ROUNDS);
+    }
+  }
+
+  /**
+   * Measure restart paths: writing a snapshot to a file, restoring it into
+   * a packed tree, and rebuilding the tree with one insert per entry
+   *
+   * @param entries number of entries in the tree
+   */
+  public static void snapshot(int entries) {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+    int[] keys = shuffledKeys(entries, 42);
+    for (int i = 0; i < keys.length; i++) {
+      tree.insert(keys[i], keys[i]);
+    }
+    try {
+      Path file = Files.createTempFile("bplustree", ".snapshot");
+      double write = 0;
+      double read = 0;
+      double insert = 0;
+      for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          Snapshot.write(tree, channel, Serializer.INTEGER, Serializer.INTEGER);
+        }
+        long written = System.nanoTime();
+        BPlusTree<Integer, Integer> restored = new BPlusTree<Integer, Integer>(32);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          Snapshot.read(channel, Serializer.INTEGER, Serializer.INTEGER, restored, 1.0);
+        }
+        long readAt = System.nanoTime();
+        BPlusTree<Integer, Integer> rebuilt = new BPlusTree<Integer, Integer>(32);
+        for (Map.Entry<Integer, Integer> entry : restored.range(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+          rebuilt.insert(entry.getKey(), entry.getValue());
+        }
+        long rebuiltAt = System.nanoTime();
+        blackhole += leaves(restored) + leaves(rebuilt);
+
+        if (round >= WARMUP_ROUNDS) {
+          write += opsPerSecond(entries, written - start);
+          read += opsPerSecond(entries, readAt - written);
+          insert += opsPerSecond(entries, rebuiltAt - readAt);
+        }
+      }
+      double megabytes = Files.size(file) / 1e6;
+      Files.delete(file);
+      System.out.printf("snapshot size: %.1f MB%n", megabytes);
+      System.out.printf("%-16s %14s %10s%n", "path", "entries/s", "MB/s");
+      System.out.printf("%-16s %14.0f %10.1f%n", "snapshot write", write / MEASURE_ROUNDS, write / MEASURE_ROUNDS / entries * megabytes);
+      System.out.printf("%-16s %14.0f %10.1f%n", "snapshot read", read / MEASURE_ROUNDS, read / MEASURE_ROUNDS / entries * megabytes);
+      System.out.printf("%-16s %14.0f %10s%n", "insert per entry", insert / MEASURE_ROUNDS, "-");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Measure durable insert throughput of the write-ahead-logged tree as
+   * writer threads are added, with and without a group commit delay. Every
+   * insert waits for its force(), so only group commit lets throughput grow
+   * beyond one insert per disk flush.
+   *
+   * @param entries key range of the inserts
+   */
+  public static void wal(final int entries) {
+    System.out.printf("%8s %18s %18s%n", "threads", "no delay ops/s", "1 ms delay ops/s");
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      System.out.printf("%8d %18.0f %18.0f%n", threads,
+          runDurable(threads, entries, 0), runDurable(threads, entries, 1000000));
+    }
+  }
+
+  /**
+   * @return inserts/s of the given number of threads writing for one second
+   */
+  private static double runDurable(int threads, final int entries, long maxDelayNanos) {
+    try {
+      final Path dir = Files.createTempDirectory("bplustree-wal");
+      final DurableBPlusTree<Integer, Integer> tree = DurableBPlusTree.open(dir, 32,
+          Serializer.INTEGER, Serializer.INTEGER, maxDelayNanos, 64L << 20);
+      final long durationNanos = 1000000000L;
+      final long[] ops = new long[threads];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        final int id = t;
+        workers[t] = new Thread(new Runnable() {
+          public void run() {
+            Random random = new Random(id);
+            long count = 0;
+            long end = System.nanoTime() + durationNanos;
+            try {
+              while (System.nanoTime() < end) {
+                tree.insert(random.nextInt(entries), id);
+                count++;
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            ops[id] = count;
+          }
+        });
+      }
+      for (Thread worker : workers) {
+        worker.start();
+      }
+      long total = 0;
+      for (int t = 0; t < threads; t++) {
+        workers[t].join();
+        total += ops[t];
+      }
+      tree.close();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+        for (Path file : files) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(dir);
+      return opsPerSecond((int) total, durationNanos);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return total ops/s of the given number of threads running for one second
+   */
+  static double runThreads(final WorkloadBenchmark.Subject tree, int threads, final int entries) {
+    for (int i = 0; i < entries; i += 2) {
+      tree.insert(i);
+    }
+    final long durationNanos = 1000000000L;
+    final long[] ops = new long[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(id);
+          long sum = 0;
+          long count = 0;
+          long end = System.nanoTime() + durationNanos;
+          while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+              Integer key = random.nextInt(entries);
+              int op = random.nextInt(100);
+              if (op < 95) {
+                sum += tree.search(key);
+              } else if (op < 98) {
+                tree.insert(key);
+              } else {
+                tree.delete(key);
+              }
+            }
+            count += 1000;
+          }
+          ops[id] = count;
+          blackhole += sum;
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    long total = 0;
+    for (int t = 0; t < threads; t++) {
+      try {
+        workers[t].join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+      total += ops[t];
+    }
+    return total * 1e9 / durationNanos;
+  }
+
+  static <K extends Comparable<K>, T> int leaves(BPlusTree<K,T> tree) {
+    Node<K,T> node = tree.root;
+    while (!node.isLeafNode) {
+      node = ((IndexNode<K,T>) node).children.get(0);
+    }
+    int leaves = 0;
+    for (LeafNode<K,T> leaf = (LeafNode<K,T>) node; leaf != null; leaf = leaf.nextLeaf) {
+      leaves++;
+    }
+    return leaves;
+  }
+
+  static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static int[] shuffledKeys(int n, long seed) {
+    int[] keys = new int[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = i;
+    }
+    Random random = new Random(seed);
+    for (int i = n - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = keys[i];
+      keys[i] = keys[j];
+      keys[j] = tmp;
+    }
+    return keys;
+  }
+
+  static double opsPerSecond(int ops, long nanos) {
+    return ops * 1e9 / nanos;
+  }
+
+  static <K extends Comparable<K>, T> int depth(Node<K,T> node) {
+    int depth = 0;
+    while (node != null) {
+      depth++;
+      node = node.isLeafNode ? null : ((IndexNode<K,T>) node).children.get(0);
+    }
+    return depth;
+  }
+}
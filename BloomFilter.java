@@ -0,0 +1,236 @@
+package BPlusTree;
+
+import java.util.Arrays;
+
+/**
+ * Membership filter in front of a BPlusTree's search, see
+ * BPlusTree.setBloomFilter(). A search for a key the filter has never seen
+ * returns null without descending the tree; any other key is searched as
+ * usual, and is then present except for a small false positive rate.
+ *
+ * The filter is blocked: all bits of a key lie in one 512-bit block, a
+ * cache line, so a rejected lookup costs one hash and one cache line read.
+ * This costs a slightly higher false positive rate than spreading the bits
+ * over the whole array would at the same size.
+ *
+ * A plain Bloom filter cannot remove keys. Deleted keys stay in the filter
+ * until the tree rebuilds it from its leaves, which happens once more keys
+ * have been added than the filter was sized for. The filter is sized for
+ * twice the entries of the tree at the last rebuild, within the memory
+ * budget; beyond the budget its false positive rate rises instead.
+ *
+ * Like the tree it belongs to, the filter is not thread-safe.
+ */
+public class BloomFilter<K> {
+    private static final int BLOCK_WORDS = 8;  // 8 longs, 64 bytes
+    private static final int MIN_CAPACITY = 1024;
+
+    private final double falsePositiveRate;
+    private final long maxBytes;
+    private final int hashes;          // bits set per key
+    private final double bitsPerKey;
+    private final int maxBlocks;
+
+    private long[] words = new long[0];
+    private int blocks;
+    private long capacity;  // keys the current size was chosen for
+    private long added;     // keys added since the last rebuild
+    private long removed;   // keys deleted from the tree since the last rebuild
+
+    private long lookups;
+    private long negatives;
+    private long falsePositives;
+    private long rebuilds;
+
+    /**
+     * @param falsePositiveRate target fraction of absent keys let through, in (0, 1)
+     * @param maxBytes most memory the bits may take
+     */
+    public BloomFilter(double falsePositiveRate, long maxBytes) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("false positive rate must be in (0, 1): " + falsePositiveRate);
+        }
+        if (maxBytes < BLOCK_WORDS * 8) {
+            throw new IllegalArgumentException("memory budget below one block: " + maxBytes);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+        double ln2 = Math.log(2);
+        bitsPerKey = -Math.log(falsePositiveRate) / (ln2 * ln2);
+        hashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerKey * ln2)));
+        maxBlocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_WORDS, maxBytes / (BLOCK_WORDS * 8));
+    }
+
+    /**
+     * Clear the filter and size it for the given number of keys
+     *
+     * @param entries keys about to be added
+     */
+    void reset(long entries) {
+        long wanted = Math.max(MIN_CAPACITY, 2 * entries);
+        long bits = (long) Math.ceil(wanted * bitsPerKey);
+        blocks = (int) Math.min(maxBlocks, (bits + 511) / 512);
+        capacity = (long) (blocks * 512L / bitsPerKey);
+        if (words.length == blocks * BLOCK_WORDS) {
+            Arrays.fill(words, 0);
+        } else {
+            words = new long[blocks * BLOCK_WORDS];
+        }
+        added = 0;
+        removed = 0;
+        rebuilds++;
+    }
+
+    void add(K key) {
+        long hash = hash(key);
+        int base = block(hash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & 511;
+            words[base + (bit >>> 6)] |= 1L << bit;
+        }
+        added++;
+    }
+
+    /**
+     * @return false if the key was never added, true if it may have been
+     */
+    boolean mightContain(K key) {
+        lookups++;
+        long hash = hash(key);
+        int base = block(hash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & 511;
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                negatives++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Note a key let through that the tree did not hold
+     */
+    void falsePositive() {
+        falsePositives++;
+    }
+
+    /**
+     * Note a key deleted from the tree, whose bits stay set
+     */
+    void removed() {
+        removed++;
+    }
+
+    /**
+     * @return true if the keys added outgrew the size of the filter and a
+     *         rebuild would help: the filter can still grow, or enough of
+     *         its keys are deleted ones
+     */
+    boolean needsRebuild() {
+        if (added <= capacity) {
+            return false;
+        }
+        return blocks < maxBlocks || removed * 2 > added;
+    }
+
+    private int block(long hash) {
+        // the high bits pick the block, multiplying instead of taking a remainder
+        return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+    }
+
+    private static long hash(Object key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return memory taken by the bits
+     */
+    public long sizeBytes() {
+        return words.length * 8L;
+    }
+
+    /**
+     * @return keys added since the last rebuild, deleted ones included
+     */
+    public long keys() {
+        return added;
+    }
+
+    /**
+     * @return false positive rate to expect for the keys added so far
+     */
+    public double expectedFalsePositiveRate() {
+        if (blocks == 0) {
+            return 0;
+        }
+        double fill = 1 - Math.exp(-hashes * (double) added / (blocks * 512L));
+        return Math.pow(fill, hashes);
+    }
+
+    /**
+     * @return searches that consulted the filter
+     */
+    public long lookups() {
+        return lookups;
+    }
+
+    /**
+     * @return searches answered by the filter without a descent
+     */
+    public long negatives() {
+        return negatives;
+    }
+
+    /**
+     * @return searches let through for keys the tree did not hold
+     */
+    public long falsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return fraction of the searches for absent keys that were let through
+     */
+    public double observedFalsePositiveRate() {
+        long absent = negatives + falsePositives;
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+
+    /**
+     * @return times the filter was built, the first time included
+     */
+    public long rebuilds() {
+        return rebuilds;
+    }
+
+    public void resetStatistics() {
+        lookups = 0;
+        negatives = 0;
+        falsePositives = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "lookups=" + lookups + " negatives=" + negatives + " falsePositives=" + falsePositives
+                + " observedFpp=" + observedFalsePositiveRate() + " expectedFpp=" + expectedFalsePositiveRate()
+                + " keys=" + added + " bytes=" + sizeBytes() + " rebuilds=" + rebuilds;
+    }
+}
@@ -0,0 +1,387 @@
+package BPlusTree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * B+ tree specialized for byte string keys such as URLs and paths, which
+ * tend to share long prefixes. Two things keep its nodes small:
+ *
+ * - Suffix truncation: a split puts into the parent not the first key of
+ *   the right node but its shortest prefix that is still greater than the
+ *   last key of the left node, so separators are often a few bytes long.
+ * - Prefix compression: each leaf stores the prefix common to its keys once
+ *   and packs the rest of the keys into one array (see BytesLeafNode).
+ *
+ * Keys are ordered by their unsigned bytes. String keys are encoded as
+ * UTF-8, so they are ordered by code point, which differs from
+ * String.compareTo only for characters outside the Basic Multilingual Plane.
+ *
+ * BytesBPlusTree Class Assumptions:
+ * 1. Inserting an existing key replaces its value
+ * 2. Order D: D <= number of keys in a node <= 2*D
+ *    (leaf and index nodes may use different orders)
+ */
+public class BytesBPlusTree<T> {
+
+    public BytesNode root;
+
+    protected final int leafD;   // order of the leaf nodes
+    protected final int indexD;  // order of the index nodes
+    private final boolean truncate;  // shorten the separators of leaf splits
+
+    // the helper entry for insert: separator key and new right node of a split
+    private byte[] splitKey;
+    private BytesNode splitNode;
+
+    /**
+     * Create a tree of the default order BPlusTree.D
+     */
+    public BytesBPlusTree() {
+        this(BPlusTree.D);
+    }
+
+    /**
+     * Create a tree whose leaf and index nodes both hold d..2*d keys
+     *
+     * @param d order of the tree
+     */
+    public BytesBPlusTree(int d) {
+        this(d, d, true);
+    }
+
+    /**
+     * Create a tree with separate orders for leaf and index nodes
+     *
+     * @param leafD leaf nodes hold leafD..2*leafD key/value pairs
+     * @param indexD index nodes hold indexD..2*indexD keys
+     * @param truncate whether separators are cut to the shortest distinguishing prefix
+     */
+    public BytesBPlusTree(int leafD, int indexD, boolean truncate) {
+        if (leafD < 1 || indexD < 1) {
+            throw new IllegalArgumentException("order must be positive: leafD=" + leafD + ", indexD=" + indexD);
+        }
+        this.leafD = leafD;
+        this.indexD = indexD;
+        this.truncate = truncate;
+    }
+
+    public int getLeafOrder() {
+        return leafD;
+    }
+
+    public int getIndexOrder() {
+        return indexD;
+    }
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // search
+    /**
+     * Search the value for a specific key
+     *
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    @SuppressWarnings("unchecked")
+    public T search(byte[] key) {
+        if (root == null) {
+            return null;
+        }
+        BytesLeafNode leaf = searchLeafNode(key);
+        int index = leaf.indexOf(key);
+        return index < 0 ? null : (T) leaf.values[index];
+    }
+
+    public T search(String key) {
+        return search(bytes(key));
+    }
+
+    /**
+     * Find the leaf node which may contain the key
+     *
+     * @param key
+     * @return leaf node
+     */
+    public BytesLeafNode searchLeafNode(byte[] key) {
+        BytesNode node = root;
+        while (!node.isLeafNode) {
+            BytesIndexNode index = (BytesIndexNode) node;
+            node = index.children[index.childIndex(key)];
+        }
+        return (BytesLeafNode) node;
+    }
+
+    /**
+     * Shortest separator s with left < s <= right: the prefix of right one
+     * byte longer than its common prefix with left
+     *
+     * @param left last key of the left node
+     * @param right first key of the right node
+     */
+    private byte[] separator(byte[] left, byte[] right) {
+        if (!truncate) {
+            return right;
+        }
+        return Arrays.copyOf(right, BytesNode.commonPrefix(left, right) + 1);
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the BytesBPlusTree
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(byte[] key, T value) {
+        if (root == null) {
+            root = new BytesLeafNode(leafD);
+        }
+        if (insertHelper(root, key, value)) {
+            root = new BytesIndexNode(indexD, splitKey, root, splitNode);
+            splitKey = null;
+            splitNode = null;
+        }
+    }
+
+    public void insert(String key, T value) {
+        insert(bytes(key), value);
+    }
+
+    /**
+     * Helper function for insert
+     *
+     * @param node
+     * @param key
+     * @param value
+     * @return true if node was split; splitKey and splitNode then hold the
+     *         separator and the new right node
+     */
+    private boolean insertHelper(BytesNode node, byte[] key, T value) {
+        if (node.isLeafNode) {
+            BytesLeafNode leaf = (BytesLeafNode) node;
+            int index = leaf.indexOf(key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+                return false;
+            }
+            leaf.insertAt(-(index + 1), key, value);
+            if (!leaf.isOverflowed(leafD)) {
+                return false;
+            }
+            splitLeafNode(leaf);
+            return true;
+        }
+
+        BytesIndexNode indexNode = (BytesIndexNode) node;
+        int childIndex = indexNode.childIndex(key);
+        if (!insertHelper(indexNode.children[childIndex], key, value)) {
+            return false;
+        }
+        indexNode.insertAt(childIndex, splitKey, splitNode);
+        if (!indexNode.isOverflowed(indexD)) {
+            splitKey = null;
+            splitNode = null;
+            return false;
+        }
+        splitIndexNode(indexNode);
+        return true;
+    }
+
+    /**
+     * Split an overflowed leaf node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param leaf
+     */
+    private void splitLeafNode(BytesLeafNode leaf) {
+        byte[][] keys = leaf.keys();
+        BytesLeafNode right = new BytesLeafNode(leafD);
+        right.load(keys, leaf.values, leafD, keys.length);
+        leaf.load(keys, leaf.values, 0, leafD);
+
+        right.nextLeaf = leaf.nextLeaf;
+        if (right.nextLeaf != null) {
+            right.nextLeaf.previousLeaf = right;
+        }
+        right.previousLeaf = leaf;
+        leaf.nextLeaf = right;
+
+        splitKey = separator(keys[leafD - 1], keys[leafD]);
+        splitNode = right;
+    }
+
+    /**
+     * Split an overflowed index node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param index
+     */
+    private void splitIndexNode(BytesIndexNode index) {
+        BytesIndexNode right = new BytesIndexNode(indexD);
+        int rightSize = index.size - indexD - 1;
+        System.arraycopy(index.keys, indexD + 1, right.keys, 0, rightSize);
+        System.arraycopy(index.children, indexD + 1, right.children, 0, rightSize + 1);
+        splitKey = index.keys[indexD];
+        for (int i = indexD; i < index.size; i++) {
+            index.keys[i] = null;
+            index.children[i + 1] = null;
+        }
+        right.size = rightSize;
+        index.size = indexD;
+        splitNode = right;
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from this BytesBPlusTree
+     *
+     * @param key
+     */
+    public void delete(byte[] key) {
+        if (root == null) {
+            return;
+        }
+        deleteHelper(root, key);
+        if (root.size == 0) {
+            root = root.isLeafNode ? null : ((BytesIndexNode) root).children[0];
+        }
+    }
+
+    public void delete(String key) {
+        delete(bytes(key));
+    }
+
+    /**
+     * Helper function for delete
+     *
+     * @param node
+     * @param key
+     * @return true if node is underflowed after the delete
+     */
+    private boolean deleteHelper(BytesNode node, byte[] key) {
+        if (node.isLeafNode) {
+            BytesLeafNode leaf = (BytesLeafNode) node;
+            int index = leaf.indexOf(key);
+            if (index < 0) {
+                return false;
+            }
+            leaf.removeAt(index);
+            return leaf.isUnderflowed(leafD);
+        }
+
+        BytesIndexNode indexNode = (BytesIndexNode) node;
+        int childIndex = indexNode.childIndex(key);
+        if (deleteHelper(indexNode.children[childIndex], key)) {
+            handleUnderflow(indexNode, childIndex);
+            return indexNode.isUnderflowed(indexD);
+        }
+        return false;
+    }
+
+    /**
+     * Handle the underflow of a child (merge or redistribution) with its left
+     * sibling, or with its right sibling if it is the leftmost child
+     *
+     * @param parent
+     * @param childIndex index of the underflowed child in parent
+     */
+    private void handleUnderflow(BytesIndexNode parent, int childIndex) {
+        int keyIndex = childIndex == 0 ? 0 : childIndex - 1;
+        BytesNode left = parent.children[keyIndex];
+        BytesNode right = parent.children[keyIndex + 1];
+        if (left.isLeafNode) {
+            handleLeafNodeUnderflow((BytesLeafNode) left, (BytesLeafNode) right, parent, keyIndex);
+        } else {
+            handleIndexNodeUnderflow((BytesIndexNode) left, (BytesIndexNode) right, parent, keyIndex);
+        }
+    }
+
+    /**
+     * Handle BytesLeafNode underflow (merge or redistribution). Both leaves
+     * are rebuilt, which also re-chooses their prefixes.
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleLeafNodeUnderflow(BytesLeafNode left, BytesLeafNode right, BytesIndexNode parent, int keyIndex) {
+        int total = left.size + right.size;
+        byte[][] keys = new byte[total][];
+        Object[] values = new Object[total];
+        System.arraycopy(left.keys(), 0, keys, 0, left.size);
+        System.arraycopy(right.keys(), 0, keys, left.size, right.size);
+        System.arraycopy(left.values, 0, values, 0, left.size);
+        System.arraycopy(right.values, 0, values, left.size, right.size);
+
+        if (total <= 2 * leafD) {  // merge right into left
+            left.load(keys, values, 0, total);
+            left.nextLeaf = right.nextLeaf;
+            if (right.nextLeaf != null) {
+                right.nextLeaf.previousLeaf = left;
+            }
+            parent.removeAt(keyIndex);
+            return;
+        }
+
+        int leftSize = total / 2;
+        left.load(keys, values, 0, leftSize);
+        right.load(keys, values, leftSize, total);
+        parent.keys[keyIndex] = separator(keys[leftSize - 1], keys[leftSize]);
+    }
+
+    /**
+     * Handle BytesIndexNode underflow (merge or redistribution)
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleIndexNodeUnderflow(BytesIndexNode left, BytesIndexNode right, BytesIndexNode parent, int keyIndex) {
+        int total = left.size + 1 + right.size;
+        if (total <= 2 * indexD) {  // pull down the separator and merge right into left
+            left.keys[left.size] = parent.keys[keyIndex];
+            System.arraycopy(right.keys, 0, left.keys, left.size + 1, right.size);
+            System.arraycopy(right.children, 0, left.children, left.size + 1, right.size + 1);
+            left.size = total;
+            parent.removeAt(keyIndex);
+            return;
+        }
+
+        // rotate through the parent so that both nodes hold about half the keys
+        int leftSize = (total - 1) / 2;
+        if (left.size < leftSize) {
+            int moved = leftSize - left.size;
+            left.keys[left.size] = parent.keys[keyIndex];
+            System.arraycopy(right.keys, 0, left.keys, left.size + 1, moved - 1);
+            System.arraycopy(right.children, 0, left.children, left.size + 1, moved);
+            parent.keys[keyIndex] = right.keys[moved - 1];
+            System.arraycopy(right.keys, moved, right.keys, 0, right.size - moved);
+            System.arraycopy(right.children, moved, right.children, 0, right.size - moved + 1);
+            for (int i = right.size - moved; i < right.size; i++) {
+                right.keys[i] = null;
+                right.children[i + 1] = null;
+            }
+            left.size += moved;
+            right.size -= moved;
+        } else {
+            int moved = left.size - leftSize;
+            System.arraycopy(right.keys, 0, right.keys, moved, right.size);
+            System.arraycopy(right.children, 0, right.children, moved, right.size + 1);
+            right.keys[moved - 1] = parent.keys[keyIndex];
+            System.arraycopy(left.keys, leftSize + 1, right.keys, 0, moved - 1);
+            System.arraycopy(left.children, leftSize + 1, right.children, 0, moved);
+            parent.keys[keyIndex] = left.keys[leftSize];
+            for (int i = leftSize; i < left.size; i++) {
+                left.keys[i] = null;
+                left.children[i + 1] = null;
+            }
+            left.size -= moved;
+            right.size += moved;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package BPlusTree;
+
+import java.util.Arrays;
+
+public class BytesIndexNode extends BytesNode {
+
+  // size separator keys
+  protected byte[][] keys;
+  protected BytesNode[] children; // size+1 children
+
+  /**
+   * @param d order of the tree
+   */
+  public BytesIndexNode(int d) {
+    isLeafNode = false;
+    keys = new byte[2 * d + 1][];
+    children = new BytesNode[2 * d + 2];
+  }
+
+  public BytesIndexNode(int d, byte[] key, BytesNode child0, BytesNode child1) {
+    this(d);
+    keys[0] = key;
+    children[0] = child0;
+    children[1] = child1;
+    size = 1;
+  }
+
+  /**
+   * find the child which may contain the key. Keys equal to a separator
+   * belong to the child on its right.
+   *
+   * @param key
+   * @return index of the child
+   */
+  public int childIndex(byte[] key) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (Arrays.compareUnsigned(keys[mid], key) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * insert a separator key and the child on its right at the given position
+   *
+   * @param index
+   * @param key
+   * @param rightChild
+   */
+  public void insertAt(int index, byte[] key, BytesNode rightChild) {
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(children, index + 1, children, index + 2, size - index);
+    keys[index] = key;
+    children[index + 1] = rightChild;
+    size++;
+  }
+
+  /**
+   * remove the separator key at the given position and the child on its right
+   *
+   * @param index
+   */
+  public void removeAt(int index) {
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    System.arraycopy(children, index + 2, children, index + 1, size - index - 1);
+    size--;
+    keys[size] = null;
+    children[size + 1] = null;
+  }
+}
@@ -0,0 +1,198 @@
+package BPlusTree;
+
+import java.util.Arrays;
+
+/**
+ * Leaf of a BytesBPlusTree. The prefix shared by all keys of the leaf is
+ * stored once, and the rest of each key is packed back to back into one
+ * array, so a leaf of similar keys costs a few bytes per key and a lookup
+ * compares the shared prefix only once.
+ */
+public class BytesLeafNode extends BytesNode {
+  private static final byte[] EMPTY = new byte[0];
+
+  protected byte[] prefix = EMPTY;  // common prefix of every key in the node
+  protected byte[] suffixes;        // the keys without the prefix, back to back
+  protected int[] ends;             // key i ends at suffixes[ends[i]]
+  protected Object[] values;
+  protected BytesLeafNode nextLeaf;
+  protected BytesLeafNode previousLeaf;
+
+  /**
+   * @param d order of the tree
+   */
+  public BytesLeafNode(int d) {
+    isLeafNode = true;
+    suffixes = new byte[8 * (2 * d + 1)];
+    ends = new int[2 * d + 1];
+    values = new Object[2 * d + 1];
+  }
+
+  private int start(int i) {
+    return i == 0 ? 0 : ends[i - 1];
+  }
+
+  /**
+   * binary search the key among the keys in use
+   *
+   * @param key
+   * @return index of the key, or -(insertion point) - 1 if not present
+   */
+  public int indexOf(byte[] key) {
+    int p = prefix.length;
+    int c = Arrays.compareUnsigned(prefix, 0, p, key, 0, Math.min(p, key.length));
+    if (c > 0) {
+      return -1;  // before every key
+    }
+    if (c < 0) {
+      return -(size + 1);  // after every key
+    }
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = Arrays.compareUnsigned(suffixes, start(mid), ends[mid], key, p, key.length);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * @param i
+   * @return a copy of the full key at the given position
+   */
+  public byte[] key(int i) {
+    int from = start(i);
+    byte[] key = Arrays.copyOf(prefix, prefix.length + ends[i] - from);
+    System.arraycopy(suffixes, from, key, prefix.length, ends[i] - from);
+    return key;
+  }
+
+  /**
+   * @return copies of all full keys in order
+   */
+  public byte[][] keys() {
+    byte[][] keys = new byte[size][];
+    for (int i = 0; i < size; i++) {
+      keys[i] = key(i);
+    }
+    return keys;
+  }
+
+  /**
+   * insert key/value at the given position, shortening the prefix first if
+   * the key does not share all of it
+   *
+   * @param index
+   * @param key
+   * @param value
+   */
+  public void insertAt(int index, byte[] key, Object value) {
+    if (size == 0) {
+      prefix = key.clone();
+    } else {
+      int common = commonPrefix(prefix, key);
+      if (common < prefix.length) {
+        shortenPrefix(common);
+      }
+    }
+    int p = prefix.length;
+    int length = key.length - p;
+    int used = size == 0 ? 0 : ends[size - 1];
+    ensureRoom(used + length);
+    int at = start(index);
+    System.arraycopy(suffixes, at, suffixes, at + length, used - at);
+    System.arraycopy(key, p, suffixes, at, length);
+    System.arraycopy(ends, index, ends, index + 1, size - index);
+    System.arraycopy(values, index, values, index + 1, size - index);
+    ends[index] = at + length;
+    for (int i = index + 1; i <= size; i++) {
+      ends[i] += length;
+    }
+    values[index] = value;
+    size++;
+  }
+
+  /**
+   * remove the key/value at the given position
+   *
+   * @param index
+   */
+  public void removeAt(int index) {
+    int from = start(index);
+    int length = ends[index] - from;
+    int used = ends[size - 1];
+    System.arraycopy(suffixes, ends[index], suffixes, from, used - ends[index]);
+    System.arraycopy(ends, index + 1, ends, index, size - index - 1);
+    System.arraycopy(values, index + 1, values, index, size - index - 1);
+    size--;
+    for (int i = index; i < size; i++) {
+      ends[i] -= length;
+    }
+    values[size] = null;
+  }
+
+  /**
+   * Replace the contents of the node by keys/values [from, to), choosing
+   * the longest prefix they share
+   *
+   * @param keys full keys in ascending order
+   * @param values
+   */
+  public void load(byte[][] keys, Object[] values, int from, int to) {
+    int n = to - from;
+    prefix = n == 0 ? EMPTY : Arrays.copyOf(keys[from], commonPrefix(keys[from], keys[to - 1]));
+    int p = prefix.length;
+    int used = 0;
+    for (int i = from; i < to; i++) {
+      used += keys[i].length - p;
+    }
+    if (suffixes.length < used || suffixes.length > 2 * used + 16) {
+      suffixes = new byte[used + used / 4 + 8];
+    }
+    int at = 0;
+    for (int i = 0; i < n; i++) {
+      byte[] key = keys[from + i];
+      System.arraycopy(key, p, suffixes, at, key.length - p);
+      at += key.length - p;
+      ends[i] = at;
+    }
+    System.arraycopy(values, from, this.values, 0, n);
+    Arrays.fill(this.values, n, this.values.length, null);
+    size = n;
+  }
+
+  /**
+   * Drop the tail of the prefix from position n on, moving it to the front
+   * of every suffix
+   */
+  private void shortenPrefix(int n) {
+    int dropped = prefix.length - n;
+    int used = size == 0 ? 0 : ends[size - 1];
+    byte[] packed = new byte[Math.max(suffixes.length, used + size * dropped)];
+    int at = 0;
+    int from = 0;
+    for (int i = 0; i < size; i++) {
+      int end = ends[i];
+      System.arraycopy(prefix, n, packed, at, dropped);
+      System.arraycopy(suffixes, from, packed, at + dropped, end - from);
+      at += dropped + end - from;
+      ends[i] = at;
+      from = end;
+    }
+    suffixes = packed;
+    prefix = Arrays.copyOf(prefix, n);
+  }
+
+  private void ensureRoom(int bytes) {
+    if (suffixes.length < bytes) {
+      suffixes = Arrays.copyOf(suffixes, Math.max(bytes, suffixes.length + suffixes.length / 4 + 8));
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package BPlusTree;
+
+import java.util.Arrays;
+
+/**
+ * Node of a BytesBPlusTree. Keys are byte strings ordered by their unsigned
+ * bytes, which for UTF-8 encoded strings is code point order.
+ */
+public class BytesNode {
+  protected boolean isLeafNode;
+  protected int size;  // number of keys in use
+
+  /**
+   * @param d order of the node
+   * @return true if the node holds more than 2*d keys
+   */
+  public boolean isOverflowed(int d) {
+    return size > 2 * d;
+  }
+
+  /**
+   * @param d order of the node
+   * @return true if the node holds fewer than d keys
+   */
+  public boolean isUnderflowed(int d) {
+    return size < d;
+  }
+
+  /**
+   * @return the length of the longest common prefix of a and b
+   */
+  static int commonPrefix(byte[] a, byte[] b) {
+    int mismatch = Arrays.mismatch(a, b);
+    return mismatch < 0 ? a.length : mismatch;
+  }
+}
@@ -0,0 +1,500 @@
+package BPlusTree;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe BPlusTree using latch crabbing. Every node carries a
+ * read/write latch, and a separate latch guards the root reference.
+ *
+ * search couples read latches down the tree, so readers never block each
+ * other. insert and delete first try optimistically: they couple read
+ * latches down to the leaf, write-latch only the leaf, and finish there if
+ * the leaf will not split or underflow. Otherwise they restart and couple
+ * write latches, releasing every ancestor as soon as a node is safe. Only
+ * the part of the path that a split or merge can reach stays latched.
+ *
+ * searchBatch and getAll hold the read latches of the path down to the
+ * node whose part of the batch they are resolving.
+ *
+ * Leaf chain pointers of neighbours outside that path are updated under a
+ * short chain lock. Cursors, range scans, spliterators and the streams and
+ * TreeAggregates built on them, and bulkLoad are not latched; use them only
+ * while no writer is active.
+ */
+public class ConcurrentBPlusTree<K extends Comparable<K>, T> extends BPlusTree<K, T> {
+
+    private static final int MAX_DEPTH = 64;
+
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+    private final ReentrantLock chainLock = new ReentrantLock();  // guards nextLeaf/previousLeaf updates
+
+    public ConcurrentBPlusTree() {
+        super();
+    }
+
+    public ConcurrentBPlusTree(int d) {
+        super(d);
+    }
+
+    public ConcurrentBPlusTree(int leafD, int indexD) {
+        super(leafD, indexD);
+    }
+
+    /**
+     * Not supported: a finger shared by concurrent writers would race with
+     * their splits
+     */
+    @Override
+    public void setFingerEnabled(boolean enabled) {
+        if (enabled) {
+            throw new UnsupportedOperationException("ConcurrentBPlusTree has no finger");
+        }
+    }
+
+    /**
+     * Not supported: a change to a leaf would have to update the counts on
+     * its whole path, so every insert and delete would latch the root
+     */
+    @Override
+    public void setOrderStatisticsEnabled(boolean enabled) {
+        if (enabled) {
+            throw new UnsupportedOperationException("ConcurrentBPlusTree keeps no order statistics");
+        }
+    }
+
+    /**
+     * Not supported: the rebalancing pass rebuilds runs of siblings, like
+     * applyBatch
+     */
+    @Override
+    public void setDeferredRebalancing(boolean enabled, int threshold) {
+        if (enabled) {
+            throw new UnsupportedOperationException("ConcurrentBPlusTree rebalances eagerly");
+        }
+    }
+
+    /**
+     * Only SplitPolicy.MIDPOINT is supported: the crabbing insert does not
+     * track whether its nodes are the last of their level
+     */
+    @Override
+    public void setSplitPolicy(SplitPolicy policy) {
+        if (policy != SplitPolicy.MIDPOINT) {
+            throw new UnsupportedOperationException("ConcurrentBPlusTree splits in the middle");
+        }
+    }
+
+    /**
+     * Not supported: the filter's bits and counters are not thread-safe
+     */
+    @Override
+    public void setBloomFilter(BloomFilter<K> filter) {
+        if (filter != null) {
+            throw new UnsupportedOperationException("ConcurrentBPlusTree has no Bloom filter");
+        }
+    }
+
+    /**
+     * Not supported: rebuilding runs of siblings would need every latch
+     * below the root
+     */
+    @Override
+    public void applyBatch(K[] keys, T[] values) {
+        throw new UnsupportedOperationException("ConcurrentBPlusTree does not apply batches");
+    }
+
+    @Override
+    protected void initNode(Node<K,T> node) {
+        super.initNode(node);
+        node.latch = new ReentrantReadWriteLock();
+    }
+
+    // search
+    /**
+     * Search the value for a specific key, coupling read latches from the
+     * root down to the leaf
+     *
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    @Override
+    public T search(K key) {
+        if (key == null) {
+            return null;
+        }
+        TreeMetrics metrics = this.metrics;  // read once, so a search is either measured or not
+        long start = metrics != null ? System.nanoTime() : 0;
+        int nodes = 0;
+        int comparisons = 0;
+        Lock held = rootLatch.readLock();
+        held.lock();
+        try {
+            Node<K,T> node = root;
+            if (node == null) {
+                return null;
+            }
+            node.latch.readLock().lock();
+            held.unlock();
+            held = node.latch.readLock();
+            while (!node.isLeafNode) {
+                Node<K,T> child = ((IndexNode<K,T>) node).children.get(node.upperBound(key));
+                if (metrics != null) {
+                    nodes++;
+                    comparisons += TreeMetrics.probes(node.keys.size());
+                }
+                child.latch.readLock().lock();
+                held.unlock();
+                held = child.latch.readLock();
+                node = child;
+            }
+            LeafNode<K,T> leaf = (LeafNode<K,T>) node;
+            int index = Collections.binarySearch(leaf.keys, key);
+            if (metrics != null) {
+                nodes++;
+                comparisons += TreeMetrics.probes(leaf.keys.size());
+            }
+            return index < 0 ? null : leaf.values.get(index);
+        } finally {
+            held.unlock();
+            if (metrics != null && nodes > 0) {
+                metrics.recordSearch(nodes, comparisons, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Resolve a batch from the root: the root reference is read under the
+     * root latch, held until the root node is read-latched
+     */
+    @Override
+    protected void searchBatchFromRoot(K[] keys, T[] values) {
+        Lock rootRead = rootLatch.readLock();
+        rootRead.lock();
+        Node<K,T> node;
+        try {
+            node = root;
+            if (node == null) {
+                Arrays.fill(values, 0, keys.length, null);
+                return;
+            }
+            node.latch.readLock().lock();
+        } finally {
+            rootRead.unlock();
+        }
+        try {
+            super.searchBatch(node, keys, 0, keys.length, values);
+        } finally {
+            node.latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read-latch the node while its part of the batch is resolved. The
+     * parent stays latched meanwhile, so a batch holds the read latches of
+     * the path down to the node it is in, taken top-down like every latch.
+     */
+    @Override
+    protected void searchBatch(Node<K,T> node, K[] keys, int from, int to, T[] values) {
+        node.latch.readLock().lock();
+        try {
+            super.searchBatch(node, keys, from, to, values);
+        } finally {
+            node.latch.readLock().unlock();
+        }
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the tree
+     *
+     * @param key
+     * @param value
+     */
+    @Override
+    public void insert(K key, T value) {
+        TreeMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (!insertOptimistic(key, value)) {
+            insertPessimistic(key, value);
+        }
+        if (metrics != null) {
+            metrics.insertLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Insert into the leaf if it has room, latching only the leaf for writing
+     *
+     * @return false if the leaf would split, nothing has been changed then
+     */
+    private boolean insertOptimistic(K key, T value) {
+        LeafNode<K,T> leaf = latchLeafForWrite(key);
+        if (leaf == null) {
+            return false;
+        }
+        try {
+            if (leaf.keys.size() >= 2 * leafD) {
+                return false;
+            }
+            leaf.insertSorted(key, value);
+            return true;
+        } finally {
+            leaf.latch.writeLock().unlock();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K extends Comparable<K>, T> Node<K,T>[] newPath() {
+        return (Node<K,T>[]) new Node[MAX_DEPTH];
+    }
+
+    /**
+     * Insert with write latches, keeping the latches from the last node that
+     * cannot split downwards
+     */
+    private void insertPessimistic(K key, T value) {
+        Node<K,T>[] path = newPath();
+        int[] childIndexes = new int[MAX_DEPTH];
+        int top = 0;    // first latched node on the path
+        int depth = 0;  // number of nodes on the path
+        boolean rootHeld = true;
+        rootLatch.writeLock().lock();
+        try {
+            if (root == null) {
+                LeafNode<K,T> leaf = new LeafNode<K,T>(key, value);
+                initNode(leaf);
+                root = leaf;
+                return;
+            }
+
+            Node<K,T> node = root;
+            node.latch.writeLock().lock();
+            path[depth++] = node;
+            if (isInsertSafe(node)) {
+                rootLatch.writeLock().unlock();
+                rootHeld = false;
+            }
+            while (!node.isLeafNode) {
+                int childIndex = node.upperBound(key);
+                childIndexes[depth - 1] = childIndex;
+                Node<K,T> child = ((IndexNode<K,T>) node).children.get(childIndex);
+                child.latch.writeLock().lock();
+                path[depth++] = child;
+                if (isInsertSafe(child)) {
+                    top = release(path, top, depth - 1, rootHeld);
+                    rootHeld = false;
+                }
+                node = child;
+            }
+
+            LeafNode<K,T> leaf = (LeafNode<K,T>) node;
+            leaf.insertSorted(key, value);
+            if (!leaf.isOverflowed(leafD)) {
+                return;
+            }
+            Entry<K, Node<K,T>> newChildEntry;
+            chainLock.lock();
+            try {
+                newChildEntry = splitLeafNode(leaf);
+            } finally {
+                chainLock.unlock();
+            }
+            for (int level = depth - 2; level >= top && newChildEntry != null; level--) {
+                IndexNode<K,T> parent = (IndexNode<K,T>) path[level];
+                parent.insertSorted(newChildEntry, childIndexes[level]);
+                newChildEntry = parent.isOverflowed(indexD) ? splitIndexNode(parent) : null;
+            }
+            if (newChildEntry != null) {  // the root was split, so its latch is still held
+                IndexNode<K,T> newRoot = new IndexNode<K,T>(newChildEntry.getKey(), root, newChildEntry.getValue());
+                initNode(newRoot);
+                root = newRoot;
+                if (metrics != null) {
+                    metrics.rootSplits.increment();
+                }
+            }
+        } finally {
+            release(path, top, depth, rootHeld);
+        }
+    }
+
+    private boolean isInsertSafe(Node<K,T> node) {
+        return node.keys.size() < 2 * orderOf(node);
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from the tree
+     *
+     * @param key
+     */
+    @Override
+    public void delete(K key) {
+        TreeMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (!deleteOptimistic(key)) {
+            deletePessimistic(key);
+        }
+        if (metrics != null) {
+            metrics.deleteLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Delete from the leaf if it cannot underflow, latching only the leaf
+     * for writing
+     *
+     * @return false if the leaf would underflow, nothing has been changed then
+     */
+    private boolean deleteOptimistic(K key) {
+        LeafNode<K,T> leaf = latchLeafForWrite(key);
+        if (leaf == null) {
+            return true;  // empty tree, nothing to delete
+        }
+        try {
+            int index = Collections.binarySearch(leaf.keys, key);
+            if (index < 0) {
+                return true;
+            }
+            if (leaf.keys.size() <= leafD) {
+                return false;
+            }
+            leaf.keys.remove(index);
+            leaf.values.remove(index);
+            return true;
+        } finally {
+            leaf.latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete with write latches, keeping the latches from the last node that
+     * cannot underflow downwards
+     */
+    private void deletePessimistic(K key) {
+        Node<K,T>[] path = newPath();
+        int[] childIndexes = new int[MAX_DEPTH];
+        int top = 0;
+        int depth = 0;
+        boolean rootHeld = true;
+        rootLatch.writeLock().lock();
+        try {
+            if (root == null) {
+                return;
+            }
+
+            Node<K,T> node = root;
+            node.latch.writeLock().lock();
+            path[depth++] = node;
+            if (node.keys.size() > 1) {  // the root only shrinks when its last key goes
+                rootLatch.writeLock().unlock();
+                rootHeld = false;
+            }
+            while (!node.isLeafNode) {
+                int childIndex = node.upperBound(key);
+                childIndexes[depth - 1] = childIndex;
+                Node<K,T> child = ((IndexNode<K,T>) node).children.get(childIndex);
+                child.latch.writeLock().lock();
+                path[depth++] = child;
+                if (child.keys.size() > orderOf(child)) {
+                    top = release(path, top, depth - 1, rootHeld);
+                    rootHeld = false;
+                }
+                node = child;
+            }
+
+            LeafNode<K,T> leaf = (LeafNode<K,T>) node;
+            int index = Collections.binarySearch(leaf.keys, key);
+            if (index < 0) {
+                return;
+            }
+            leaf.keys.remove(index);
+            leaf.values.remove(index);
+
+            for (int level = depth - 1; level > top && node.isUnderflowed(orderOf(node)); level--) {
+                IndexNode<K,T> parent = (IndexNode<K,T>) path[level - 1];
+                int childIndex = childIndexes[level - 1];
+                int leftIndex = childIndex != 0 ? childIndex - 1 : childIndex;
+                Node<K,T> sibling = parent.children.get(childIndex != 0 ? childIndex - 1 : childIndex + 1);
+                int oldChildIndex;
+                sibling.latch.writeLock().lock();
+                try {
+                    if (node.isLeafNode) {
+                        chainLock.lock();
+                        try {
+                            oldChildIndex = handleLeafNodeUnderflow((LeafNode<K,T>) parent.children.get(leftIndex),
+                                    (LeafNode<K,T>) parent.children.get(leftIndex + 1), parent, leftIndex);
+                        } finally {
+                            chainLock.unlock();
+                        }
+                    } else {
+                        oldChildIndex = handleIndexNodeUnderflow((IndexNode<K,T>) parent.children.get(leftIndex),
+                                (IndexNode<K,T>) parent.children.get(leftIndex + 1), parent, leftIndex);
+                    }
+                } finally {
+                    sibling.latch.writeLock().unlock();
+                }
+                if (oldChildIndex < 0) {
+                    break;
+                }
+                // delete the splitkey position in parent if the child is merged
+                parent.keys.remove(oldChildIndex);
+                parent.children.remove(oldChildIndex);
+                node = parent;
+            }
+
+            if (rootHeld && root.keys.isEmpty()) {
+                root = root.isLeafNode ? null : ((IndexNode<K,T>) root).children.get(0);
+                if (metrics != null) {
+                    metrics.rootCollapses.increment();
+                }
+            }
+        } finally {
+            release(path, top, depth, rootHeld);
+        }
+    }
+
+    /**
+     * Couple read latches down to the leaf which may contain the key and
+     * latch that leaf for writing
+     *
+     * @return the write-latched leaf, null if the tree is empty
+     */
+    private LeafNode<K,T> latchLeafForWrite(K key) {
+        Lock held = rootLatch.readLock();
+        held.lock();
+        Node<K,T> node = root;
+        if (node == null) {
+            held.unlock();
+            return null;
+        }
+        while (!node.isLeafNode) {
+            node.latch.readLock().lock();
+            held.unlock();
+            held = node.latch.readLock();
+            node = ((IndexNode<K,T>) node).children.get(node.upperBound(key));
+        }
+        node.latch.writeLock().lock();
+        held.unlock();
+        return (LeafNode<K,T>) node;
+    }
+
+    /**
+     * Release the write latches of path[from..to) and, if held, of the root
+     *
+     * @return to, the new first latched node on the path
+     */
+    private int release(Node<K,T>[] path, int from, int to, boolean rootHeld) {
+        if (rootHeld) {
+            rootLatch.writeLock().unlock();
+        }
+        for (int i = from; i < to; i++) {
+            path[i].latch.writeLock().unlock();
+        }
+        return to;
+    }
+}
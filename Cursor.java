@@ -0,0 +1,191 @@
+package BPlusTree;
+
+import java.util.Collections;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over the leaf chain of a BPlusTree. A cursor descends from the root
+ * once per seek and then walks nextLeaf/previousLeaf, so scanning k entries
+ * costs O(log n + k) and allocates nothing per entry.
+ *
+ * A cursor is reusable: seek it again to start a new scan. Modifying the
+ * tree invalidates every open cursor.
+ */
+public class Cursor<K extends Comparable<K>, T> {
+  private final BPlusTree<K,T> tree;
+  private LeafNode<K,T> leaf;  // current leaf, null if the cursor is not on an entry
+  private int index;           // position of the current entry in leaf
+
+  public Cursor(BPlusTree<K,T> tree) {
+    this.tree = tree;
+  }
+
+  /**
+   * Position the cursor on the smallest key
+   *
+   * @return true if the tree is not empty
+   */
+  public boolean seekFirst() {
+    Node<K,T> node = tree.root;
+    if (node == null) {
+      return invalidate();
+    }
+    while (!node.isLeafNode) {
+      node = ((IndexNode<K,T>) node).children.get(0);
+    }
+    return moveTo((LeafNode<K,T>) node, 0);
+  }
+
+  /**
+   * Position the cursor on the largest key
+   *
+   * @return true if the tree is not empty
+   */
+  public boolean seekLast() {
+    Node<K,T> node = tree.root;
+    if (node == null) {
+      return invalidate();
+    }
+    while (!node.isLeafNode) {
+      IndexNode<K,T> index = (IndexNode<K,T>) node;
+      node = index.children.get(index.children.size() - 1);
+    }
+    return moveTo((LeafNode<K,T>) node, node.keys.size() - 1);
+  }
+
+  /**
+   * Position the cursor on the entry at the given position in key order,
+   * using the subtree counts of the index nodes to skip whole subtrees
+   *
+   * @param position 0 for the smallest key
+   * @return true if there is such an entry
+   * @throws IllegalStateException if the tree does not keep order statistics
+   */
+  public boolean seekPosition(long position) {
+    tree.checkOrderStatistics();
+    Node<K,T> node = tree.root;
+    if (node == null || position < 0) {
+      return invalidate();
+    }
+    while (!node.isLeafNode) {
+      IndexNode<K,T> index = (IndexNode<K,T>) node;
+      int last = index.children.size() - 1;
+      int child = 0;
+      while (child < last && position >= index.counts[child]) {
+        position -= index.counts[child];
+        child++;
+      }
+      node = index.children.get(child);
+    }
+    if (position >= node.keys.size()) {
+      return invalidate();
+    }
+    return moveTo((LeafNode<K,T>) node, (int) position);
+  }
+
+  /**
+   * Position the cursor on the smallest key >= key
+   *
+   * @param key
+   * @return true if there is such a key
+   */
+  public boolean seek(K key) {
+    LeafNode<K,T> target = tree.searchLeafNode(key);
+    if (target == null) {
+      return invalidate();
+    }
+    int position = Collections.binarySearch(target.keys, key);
+    return moveTo(target, position < 0 ? -(position + 1) : position);
+  }
+
+  /**
+   * Position the cursor on the largest key <= key
+   *
+   * @param key
+   * @return true if there is such a key
+   */
+  public boolean seekFloor(K key) {
+    LeafNode<K,T> target = tree.searchLeafNode(key);
+    if (target == null) {
+      return invalidate();
+    }
+    int position = Collections.binarySearch(target.keys, key);
+    return moveTo(target, position < 0 ? -(position + 1) - 1 : position);
+  }
+
+  /**
+   * Move the cursor to the next key
+   *
+   * @return false if the cursor moved past the largest key
+   */
+  public boolean next() {
+    if (leaf == null) {
+      return false;
+    }
+    return moveTo(leaf, index + 1);
+  }
+
+  /**
+   * Move the cursor to the previous key
+   *
+   * @return false if the cursor moved before the smallest key
+   */
+  public boolean previous() {
+    if (leaf == null) {
+      return false;
+    }
+    return moveTo(leaf, index - 1);
+  }
+
+  /**
+   * @return true if the cursor is positioned on an entry
+   */
+  public boolean isValid() {
+    return leaf != null;
+  }
+
+  public K key() {
+    checkValid();
+    return leaf.keys.get(index);
+  }
+
+  public T value() {
+    checkValid();
+    return leaf.values.get(index);
+  }
+
+  /**
+   * Position the cursor on the given slot, following the leaf chain if the
+   * slot lies before the start or past the end of the leaf
+   */
+  private boolean moveTo(LeafNode<K,T> target, int position) {
+    while (target != null && position >= target.keys.size()) {
+      position -= target.keys.size();
+      target = target.nextLeaf;
+    }
+    while (target != null && position < 0) {
+      target = target.previousLeaf;
+      if (target != null) {
+        position += target.keys.size();
+      }
+    }
+    if (target == null) {
+      return invalidate();
+    }
+    leaf = target;
+    index = position;
+    return true;
+  }
+
+  private boolean invalidate() {
+    leaf = null;
+    index = 0;
+    return false;
+  }
+
+  private void checkValid() {
+    if (leaf == null) {
+      throw new NoSuchElementException("cursor is not positioned on an entry");
+    }
+  }
+}
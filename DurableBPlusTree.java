@@ -0,0 +1,310 @@
+package BPlusTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Heap BPlusTree made durable by a WriteAheadLog. Every insert and delete
+ * is logged before it is applied and returns once the log record is on
+ * disk; the log's group commit lets concurrent writers share one force().
+ *
+ * A checkpoint writes a Snapshot of all entries and starts a new
+ * log file, after which older checkpoints and log files are deleted.
+ * Recovery loads the newest checkpoint and replays only the log files
+ * written after it. If the checkpoint cannot be read, recovery falls back to
+ * an older one only while all the log files written since still exist, and
+ * fails with the IOException otherwise; a checkpoint that could not be read
+ * is renamed to checkpoint-<seq>.ckpt.corrupt, never deleted. Checkpoints
+ * are taken by checkpoint(), automatically once the current log file grows
+ * beyond checkpointBytes, and on open after replaying a log.
+ *
+ * A change is logged and applied to the tree under one lock, so the tree
+ * follows the order of the log, and the writer then waits for the record
+ * outside the lock. Readers can therefore see a change before it is
+ * durable. If forcing the log fails, the writer gets the IOException and
+ * the tree may keep changes the log never got; the log refuses every later
+ * append and checkpoint, and reopening the directory recovers the durable
+ * state.
+ *
+ * Files in the directory: wal-<seq>.log and checkpoint-<seq>.ckpt, where a
+ * checkpoint with sequence number s covers every log file before wal-s.
+ * Inserting an existing key replaces its value.
+ */
+public class DurableBPlusTree<K extends Comparable<K>, T> implements Closeable {
+
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final long FIRST_SEQUENCE = 1;  // of the first log file of a new directory
+
+    private final Path directory;
+    private final BPlusTree<K,T> tree;
+    private final Serializer<K> keySerializer;
+    private final Serializer<T> valueSerializer;
+    private final WriteAheadLog<K,T> log;
+    private final long checkpointBytes;
+    private long sequence;  // sequence number of the current log file
+
+    private DurableBPlusTree(Path directory, BPlusTree<K,T> tree, Serializer<K> keySerializer,
+            Serializer<T> valueSerializer, long sequence, long maxDelayNanos, long checkpointBytes) throws IOException {
+        this.directory = directory;
+        this.tree = tree;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.sequence = sequence;
+        this.checkpointBytes = checkpointBytes;
+        this.log = new WriteAheadLog<K,T>(logFile(sequence), keySerializer, valueSerializer, maxDelayNanos, 1 << 20);
+    }
+
+    /**
+     * Open the tree stored in a directory, recovering it from the newest
+     * checkpoint and the log written after it
+     *
+     * @param directory created if missing
+     * @param d order of the tree
+     * @param maxDelayNanos group commit latency budget of the log
+     * @param checkpointBytes log file size that triggers a checkpoint
+     */
+    public static <K extends Comparable<K>, T> DurableBPlusTree<K,T> open(Path directory, int d,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer,
+            long maxDelayNanos, long checkpointBytes) throws IOException {
+        Files.createDirectories(directory);
+
+        // load the newest readable checkpoint; an older one is only a valid
+        // fallback while every log file it needs is still there, and
+        // checkpoint() deletes them
+        List<Long> logs = sequences(directory, LOG_PREFIX, LOG_SUFFIX);
+        List<Long> checkpoints = sequences(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        BPlusTree<K,T> loaded = null;
+        long checkpoint = 0;
+        long needed = Long.MAX_VALUE;  // oldest checkpoint that failed to load
+        IOException failure = null;
+        List<Long> unreadable = new ArrayList<Long>();
+        for (int i = checkpoints.size() - 1; i >= 0 && loaded == null; i--) {
+            long candidate = checkpoints.get(i);
+            if (failure != null && !hasLogs(logs, candidate, needed)) {
+                throw failure;
+            }
+            BPlusTree<K,T> restored = new BPlusTree<K,T>(d);
+            try (FileChannel channel = FileChannel.open(checkpointFile(directory, candidate), StandardOpenOption.READ)) {
+                Snapshot.read(channel, keySerializer, valueSerializer, restored, 1.0);
+                loaded = restored;
+                checkpoint = candidate;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                needed = candidate;
+                unreadable.add(candidate);
+            }
+        }
+        // without a checkpoint, the logs from the first one on are needed
+        if (loaded == null && failure != null && !hasLogs(logs, FIRST_SEQUENCE, needed)) {
+            throw failure;
+        }
+        final BPlusTree<K,T> tree = loaded != null ? loaded : new BPlusTree<K,T>(d);
+
+        // replay the log written after it
+        class Replay implements WriteAheadLog.RecordHandler<K,T> {
+            long records;
+
+            public void insert(K key, T value) {
+                put(tree, key, value);
+                records++;
+            }
+
+            public void delete(K key) {
+                tree.delete(key);
+                records++;
+            }
+        }
+        Replay replay = new Replay();
+        long last = Math.max(checkpoint, FIRST_SEQUENCE - 1);
+        for (long sequence : logs) {
+            if (sequence >= checkpoint) {
+                WriteAheadLog.replay(logFile(directory, sequence), keySerializer, valueSerializer, replay);
+            }
+            last = Math.max(last, sequence);
+        }
+
+        // keep the checkpoints that failed to load for inspection, out of
+        // the way of recovery and of checkpoint()'s cleanup
+        for (long sequence : unreadable) {
+            Path file = checkpointFile(directory, sequence);
+            Files.move(file, file.resolveSibling(file.getFileName() + CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        DurableBPlusTree<K,T> durable = new DurableBPlusTree<K,T>(directory, tree, keySerializer, valueSerializer,
+                last + 1, maxDelayNanos, checkpointBytes);
+        if (replay.records > 0 || !unreadable.isEmpty()) {
+            // fold the replayed records into a checkpoint, so that the next
+            // open need not replay them again
+            durable.checkpoint();
+        }
+        return durable;
+    }
+
+    /**
+     * @return true if the log files from..to-1 all exist
+     */
+    private static boolean hasLogs(List<Long> logs, long from, long to) {
+        long count = 0;
+        for (long sequence : logs) {
+            if (sequence >= from && sequence < to) {
+                count++;
+            }
+        }
+        return count == to - from;
+    }
+
+    // search
+    public T search(K key) {
+        synchronized (tree) {
+            return tree.search(key);
+        }
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair and wait until it is durable. The pair is
+     * visible to readers before that, see the class comment.
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(K key, T value) throws IOException {
+        long lsn;
+        synchronized (tree) {
+            lsn = log.logInsert(key, value);
+            put(tree, key, value);
+        }
+        log.awaitDurable(lsn);
+        checkpointIfDue();
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair and wait until the delete is durable. Readers
+     * miss the pair before that, see the class comment.
+     *
+     * @param key
+     */
+    public void delete(K key) throws IOException {
+        long lsn;
+        synchronized (tree) {
+            lsn = log.logDelete(key);
+            tree.delete(key);
+        }
+        log.awaitDurable(lsn);
+        checkpointIfDue();
+    }
+
+    private static <K extends Comparable<K>, T> void put(BPlusTree<K,T> tree, K key, T value) {
+        if (tree.search(key) != null) {
+            tree.delete(key);
+        }
+        tree.insert(key, value);
+    }
+
+    private void checkpointIfDue() throws IOException {
+        if (log.segmentBytes() > checkpointBytes) {
+            synchronized (tree) {
+                if (log.segmentBytes() > checkpointBytes) {
+                    checkpoint();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all entries to a new checkpoint and drop the log files it covers.
+     * Writers wait while the checkpoint is written.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (tree) {
+            long covered = sequence + 1;
+            log.switchTo(logFile(covered));
+            sequence = covered;
+
+            Path file = checkpointFile(directory, covered);
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Snapshot.write(tree, channel, keySerializer, valueSerializer);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(directory);  // the checkpoint must survive before the logs go
+
+            for (long old : sequences(directory, LOG_PREFIX, LOG_SUFFIX)) {
+                if (old < covered) {
+                    Files.deleteIfExists(logFile(old));
+                }
+            }
+            for (long old : sequences(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+                if (old < covered) {
+                    Files.deleteIfExists(checkpointFile(directory, old));
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for all logged operations and close the log
+     */
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private Path logFile(long sequence) {
+        return logFile(directory, sequence);
+    }
+
+    private static Path logFile(Path directory, long sequence) {
+        return directory.resolve(LOG_PREFIX + format(sequence) + LOG_SUFFIX);
+    }
+
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static Path checkpointFile(Path directory, long sequence) {
+        return directory.resolve(CHECKPOINT_PREFIX + format(sequence) + CHECKPOINT_SUFFIX);
+    }
+
+    private static String format(long sequence) {
+        return String.format("%016d", sequence);
+    }
+
+    /**
+     * @return the sequence numbers of the files named prefix + seq + suffix, ascending
+     */
+    private static List<Long> sequences(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> sequences = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+}
@@ -8,6 +8,8 @@ public class IndexNode<K extends Comparable<K>, T> extends Node<K,T> {
 
   // m nodes
   protected ArrayList<Node<K,T>> children; // m+1 children
+  protected long[] counts;  // entries below each child, kept only with order statistics
+  protected long total;     // entries below this node, the sum of counts
 
   public IndexNode(K key, Node<K,T> child0, Node<K,T> child1) {
     isLeafNode = false;
@@ -36,9 +38,11 @@ public class IndexNode<K extends Comparable<K>, T> extends Node<K,T> {
     K key = e.getKey();
     Node<K,T> child = e.getValue();
     if (index >= keys.size()) {
+      inserted(keys.size());
       keys.add(key);
       children.add(child);
     } else {
+      inserted(index);
       keys.add(index, key);
       children.add(index+1, child);
     }
@@ -0,0 +1,144 @@
+package BPlusTree;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of operation latencies in power-of-two buckets of nanoseconds:
+ * bucket b counts the latencies in [2^(b-1), 2^b), bucket 0 the latencies
+ * of 0. Recording is one LongAdder increment, so concurrent threads do not
+ * contend, and percentiles are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos latency of one operation
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;  // nanoTime is monotonic, but be safe
+        }
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return number of recorded operations
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return mean latency in nanoseconds, 0 if nothing was recorded
+     */
+    public long meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99
+     * @return upper bound of the bucket holding the given percentile, 0 if
+     *         nothing was recorded
+     */
+    public long percentileNanos(double fraction) {
+        long[] counts = bucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= Math.max(1, rank)) {
+                return b == 0 ? 0 : b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the count of every bucket, see the class comment
+     */
+    public long[] bucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = buckets[b].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return a histogram holding the current counts, which later records
+     *         to this one do not change
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int b = 0; b < BUCKETS; b++) {
+            copy.buckets[b].add(buckets[b].sum());
+        }
+        copy.totalNanos.add(totalNanos.sum());
+        copy.maxNanos.set(maxNanos.get());
+        return copy;
+    }
+
+    /**
+     * @param earlier a copy taken before this one
+     * @return the operations recorded between the two; the max is the max of this histogram
+     */
+    public LatencyHistogram minus(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        for (int b = 0; b < BUCKETS; b++) {
+            delta.buckets[b].add(buckets[b].sum() - earlier.buckets[b].sum());
+        }
+        delta.totalNanos.add(totalNanos.sum() - earlier.totalNanos.sum());
+        delta.maxNanos.set(maxNanos.get());
+        return delta;
+    }
+
+    /**
+     * Forget all recorded operations. Records running at the same time may
+     * be lost or kept.
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + " mean=" + meanNanos() + "ns p50<=" + percentileNanos(0.5)
+                + "ns p99<=" + percentileNanos(0.99) + "ns max=" + maxNanos() + "ns";
+    }
+}
@@ -2,7 +2,6 @@ package BPlusTree;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 
 public class LeafNode<K extends Comparable<K>, T> extends Node<K, T> {
   protected ArrayList<T> values;
@@ -28,24 +27,13 @@ public class LeafNode<K extends Comparable<K>, T> extends Node<K, T> {
    * 
    * @param key
    * @param value
+   * @return the position the key was inserted at
    */
-  public void insertSorted(K key, T value) {
-    if (key.compareTo(keys.get(0)) < 0) {
-      keys.add(0, key);
-      values.add(0, value);
-    } else if (key.compareTo(keys.get(keys.size() - 1)) > 0) {
-      keys.add(key);
-      values.add(value);
-    } else {
-      ListIterator<K> iterator = keys.listIterator();
-      while (iterator.hasNext()) {
-        if (iterator.next().compareTo(key) > 0) {
-          int position = iterator.previousIndex();
-          keys.add(position, key);
-          values.add(position, value);
-          break;
-        }
-      }
-    }
+  public int insertSorted(K key, T value) {
+    int position = upperBound(key);
+    inserted(position);
+    keys.add(position, key);
+    values.add(position, value);
+    return position;
   }
 }
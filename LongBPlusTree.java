@@ -0,0 +1,357 @@
+package BPlusTree;
+
+/**
+ * B+ tree specialized for long keys and long values. Nodes keep their keys,
+ * values and children in arrays, so there is no boxing and no ArrayList in
+ * the way of a key comparison.
+ *
+ * LongBPlusTree Class Assumptions:
+ * 1. Inserting an existing key replaces its value
+ * 2. Order D: D <= number of keys in a node <= 2*D
+ *    (leaf and index nodes may use different orders)
+ */
+public class LongBPlusTree {
+
+    public LongNode root;
+
+    protected final int leafD;   // order of the leaf nodes
+    protected final int indexD;  // order of the index nodes
+
+    // the helper entry for insert: separator key and new right node of a split
+    private long splitKey;
+    private LongNode splitNode;
+
+    /**
+     * Create a tree of the default order BPlusTree.D
+     */
+    public LongBPlusTree() {
+        this(BPlusTree.D);
+    }
+
+    /**
+     * Create a tree whose leaf and index nodes both hold d..2*d keys
+     *
+     * @param d order of the tree
+     */
+    public LongBPlusTree(int d) {
+        this(d, d);
+    }
+
+    /**
+     * Create a tree with separate orders for leaf and index nodes
+     *
+     * @param leafD leaf nodes hold leafD..2*leafD key/value pairs
+     * @param indexD index nodes hold indexD..2*indexD keys
+     */
+    public LongBPlusTree(int leafD, int indexD) {
+        if (leafD < 1 || indexD < 1) {
+            throw new IllegalArgumentException("order must be positive: leafD=" + leafD + ", indexD=" + indexD);
+        }
+        this.leafD = leafD;
+        this.indexD = indexD;
+    }
+
+    public int getLeafOrder() {
+        return leafD;
+    }
+
+    public int getIndexOrder() {
+        return indexD;
+    }
+
+    // search
+    /**
+     * Search the value for a specific key
+     *
+     * @param key
+     * @param notFound value returned if the key is not in the tree
+     * @return value
+     */
+    public long search(long key, long notFound) {
+        if (root == null) {
+            return notFound;
+        }
+        LongLeafNode leaf = searchLeafNode(key);
+        int index = leaf.indexOf(key);
+        return index < 0 ? notFound : leaf.values[index];
+    }
+
+    /**
+     * @param key
+     * @return true if the key is in the tree
+     */
+    public boolean containsKey(long key) {
+        return root != null && searchLeafNode(key).indexOf(key) >= 0;
+    }
+
+    /**
+     * Find the leaf node which may contain the key
+     *
+     * @param key
+     * @return leaf node
+     */
+    public LongLeafNode searchLeafNode(long key) {
+        LongNode node = root;
+        while (!node.isLeafNode) {
+            LongIndexNode index = (LongIndexNode) node;
+            node = index.children[index.childIndex(key)];
+        }
+        return (LongLeafNode) node;
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the LongBPlusTree
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(long key, long value) {
+        if (root == null) {
+            root = new LongLeafNode(leafD);
+        }
+        if (insertHelper(root, key, value)) {
+            root = new LongIndexNode(indexD, splitKey, root, splitNode);
+            splitNode = null;
+        }
+    }
+
+    /**
+     * Helper function for insert
+     *
+     * @param node
+     * @param key
+     * @param value
+     * @return true if node was split; splitKey and splitNode then hold the
+     *         separator and the new right node
+     */
+    private boolean insertHelper(LongNode node, long key, long value) {
+        if (node.isLeafNode) {
+            LongLeafNode leaf = (LongLeafNode) node;
+            int index = leaf.indexOf(key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+                return false;
+            }
+            leaf.insertAt(-(index + 1), key, value);
+            if (!leaf.isOverflowed(leafD)) {
+                return false;
+            }
+            splitLeafNode(leaf);
+            return true;
+        }
+
+        LongIndexNode indexNode = (LongIndexNode) node;
+        int childIndex = indexNode.childIndex(key);
+        if (!insertHelper(indexNode.children[childIndex], key, value)) {
+            return false;
+        }
+        indexNode.insertAt(childIndex, splitKey, splitNode);
+        if (!indexNode.isOverflowed(indexD)) {
+            splitNode = null;
+            return false;
+        }
+        splitIndexNode(indexNode);
+        return true;
+    }
+
+    /**
+     * Split an overflowed leaf node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param leaf
+     */
+    private void splitLeafNode(LongLeafNode leaf) {
+        LongLeafNode right = new LongLeafNode(leafD);
+        int rightSize = leaf.size - leafD;
+        System.arraycopy(leaf.keys, leafD, right.keys, 0, rightSize);
+        System.arraycopy(leaf.values, leafD, right.values, 0, rightSize);
+        right.size = rightSize;
+        leaf.size = leafD;
+
+        right.nextLeaf = leaf.nextLeaf;
+        if (right.nextLeaf != null) {
+            right.nextLeaf.previousLeaf = right;
+        }
+        right.previousLeaf = leaf;
+        leaf.nextLeaf = right;
+
+        splitKey = right.keys[0];
+        splitNode = right;
+    }
+
+    /**
+     * Split an overflowed index node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param index
+     */
+    private void splitIndexNode(LongIndexNode index) {
+        LongIndexNode right = new LongIndexNode(indexD);
+        int rightSize = index.size - indexD - 1;
+        System.arraycopy(index.keys, indexD + 1, right.keys, 0, rightSize);
+        System.arraycopy(index.children, indexD + 1, right.children, 0, rightSize + 1);
+        for (int i = indexD + 1; i <= index.size; i++) {
+            index.children[i] = null;
+        }
+        right.size = rightSize;
+        index.size = indexD;
+
+        splitKey = index.keys[indexD];
+        splitNode = right;
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from this LongBPlusTree
+     *
+     * @param key
+     */
+    public void delete(long key) {
+        if (root == null) {
+            return;
+        }
+        deleteHelper(root, key);
+        if (root.size == 0) {
+            root = root.isLeafNode ? null : ((LongIndexNode) root).children[0];
+        }
+    }
+
+    /**
+     * Helper function for delete
+     *
+     * @param node
+     * @param key
+     * @return true if node is underflowed after the delete
+     */
+    private boolean deleteHelper(LongNode node, long key) {
+        if (node.isLeafNode) {
+            LongLeafNode leaf = (LongLeafNode) node;
+            int index = leaf.indexOf(key);
+            if (index < 0) {
+                return false;
+            }
+            leaf.removeAt(index);
+            return leaf.isUnderflowed(leafD);
+        }
+
+        LongIndexNode indexNode = (LongIndexNode) node;
+        int childIndex = indexNode.childIndex(key);
+        if (deleteHelper(indexNode.children[childIndex], key)) {
+            handleUnderflow(indexNode, childIndex);
+            return indexNode.isUnderflowed(indexD);
+        }
+        return false;
+    }
+
+    /**
+     * Handle the underflow of a child (merge or redistribution) with its left
+     * sibling, or with its right sibling if it is the leftmost child
+     *
+     * @param parent
+     * @param childIndex index of the underflowed child in parent
+     */
+    private void handleUnderflow(LongIndexNode parent, int childIndex) {
+        int keyIndex = childIndex == 0 ? 0 : childIndex - 1;
+        LongNode left = parent.children[keyIndex];
+        LongNode right = parent.children[keyIndex + 1];
+        if (left.isLeafNode) {
+            handleLeafNodeUnderflow((LongLeafNode) left, (LongLeafNode) right, parent, keyIndex);
+        } else {
+            handleIndexNodeUnderflow((LongIndexNode) left, (LongIndexNode) right, parent, keyIndex);
+        }
+    }
+
+    /**
+     * Handle LongLeafNode underflow (merge or redistribution)
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleLeafNodeUnderflow(LongLeafNode left, LongLeafNode right, LongIndexNode parent, int keyIndex) {
+        int total = left.size + right.size;
+        if (total <= 2 * leafD) {  // merge right into left
+            System.arraycopy(right.keys, 0, left.keys, left.size, right.size);
+            System.arraycopy(right.values, 0, left.values, left.size, right.size);
+            left.size = total;
+            left.nextLeaf = right.nextLeaf;
+            if (right.nextLeaf != null) {
+                right.nextLeaf.previousLeaf = left;
+            }
+            parent.removeAt(keyIndex);
+            return;
+        }
+
+        int leftSize = total / 2;
+        if (left.size < leftSize) {  // move the head of right to the tail of left
+            int moved = leftSize - left.size;
+            System.arraycopy(right.keys, 0, left.keys, left.size, moved);
+            System.arraycopy(right.values, 0, left.values, left.size, moved);
+            System.arraycopy(right.keys, moved, right.keys, 0, right.size - moved);
+            System.arraycopy(right.values, moved, right.values, 0, right.size - moved);
+            left.size += moved;
+            right.size -= moved;
+        } else {  // move the tail of left to the head of right
+            int moved = left.size - leftSize;
+            System.arraycopy(right.keys, 0, right.keys, moved, right.size);
+            System.arraycopy(right.values, 0, right.values, moved, right.size);
+            System.arraycopy(left.keys, leftSize, right.keys, 0, moved);
+            System.arraycopy(left.values, leftSize, right.values, 0, moved);
+            left.size -= moved;
+            right.size += moved;
+        }
+        parent.keys[keyIndex] = right.keys[0];
+    }
+
+    /**
+     * Handle LongIndexNode underflow (merge or redistribution)
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleIndexNodeUnderflow(LongIndexNode left, LongIndexNode right, LongIndexNode parent, int keyIndex) {
+        int total = left.size + 1 + right.size;
+        if (total <= 2 * indexD) {  // pull down the separator and merge right into left
+            left.keys[left.size] = parent.keys[keyIndex];
+            System.arraycopy(right.keys, 0, left.keys, left.size + 1, right.size);
+            System.arraycopy(right.children, 0, left.children, left.size + 1, right.size + 1);
+            left.size = total;
+            parent.removeAt(keyIndex);
+            return;
+        }
+
+        // rotate through the parent so that both nodes hold about half the keys
+        int leftSize = (total - 1) / 2;
+        if (left.size < leftSize) {
+            int moved = leftSize - left.size;
+            left.keys[left.size] = parent.keys[keyIndex];
+            System.arraycopy(right.keys, 0, left.keys, left.size + 1, moved - 1);
+            System.arraycopy(right.children, 0, left.children, left.size + 1, moved);
+            parent.keys[keyIndex] = right.keys[moved - 1];
+            System.arraycopy(right.keys, moved, right.keys, 0, right.size - moved);
+            System.arraycopy(right.children, moved, right.children, 0, right.size - moved + 1);
+            for (int i = right.size - moved + 1; i <= right.size; i++) {
+                right.children[i] = null;
+            }
+            left.size += moved;
+            right.size -= moved;
+        } else {
+            int moved = left.size - leftSize;
+            System.arraycopy(right.keys, 0, right.keys, moved, right.size);
+            System.arraycopy(right.children, 0, right.children, moved, right.size + 1);
+            right.keys[moved - 1] = parent.keys[keyIndex];
+            System.arraycopy(left.keys, leftSize + 1, right.keys, 0, moved - 1);
+            System.arraycopy(left.children, leftSize + 1, right.children, 0, moved);
+            parent.keys[keyIndex] = left.keys[leftSize];
+            for (int i = leftSize + 1; i <= left.size; i++) {
+                left.children[i] = null;
+            }
+            left.size -= moved;
+            right.size += moved;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package BPlusTree;
+
+public class LongIndexNode extends LongNode {
+
+  // size keys
+  protected LongNode[] children; // size+1 children
+
+  /**
+   * @param d order of the tree
+   */
+  public LongIndexNode(int d) {
+    isLeafNode = false;
+    keys = new long[2 * d + 1];
+    children = new LongNode[2 * d + 2];
+  }
+
+  public LongIndexNode(int d, long key, LongNode child0, LongNode child1) {
+    this(d);
+    keys[0] = key;
+    children[0] = child0;
+    children[1] = child1;
+    size = 1;
+  }
+
+  /**
+   * find the child which may contain the key. Keys equal to a separator
+   * belong to the child on its right.
+   *
+   * @param key
+   * @return index of the child
+   */
+  public int childIndex(long key) {
+    int index = indexOf(key);
+    return index < 0 ? -(index + 1) : index + 1;
+  }
+
+  /**
+   * insert a separator key and the child on its right at the given position
+   *
+   * @param index
+   * @param key
+   * @param rightChild
+   */
+  public void insertAt(int index, long key, LongNode rightChild) {
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(children, index + 1, children, index + 2, size - index);
+    keys[index] = key;
+    children[index + 1] = rightChild;
+    size++;
+  }
+
+  /**
+   * remove the separator key at the given position and the child on its right
+   *
+   * @param index
+   */
+  public void removeAt(int index) {
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    System.arraycopy(children, index + 2, children, index + 1, size - index - 1);
+    size--;
+    children[size + 1] = null;
+  }
+}
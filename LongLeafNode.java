@@ -0,0 +1,43 @@
+package BPlusTree;
+
+public class LongLeafNode extends LongNode {
+  protected long[] values;
+  protected LongLeafNode nextLeaf;
+  protected LongLeafNode previousLeaf;
+
+  /**
+   * @param d order of the tree
+   */
+  public LongLeafNode(int d) {
+    isLeafNode = true;
+    keys = new long[2 * d + 1];
+    values = new long[2 * d + 1];
+  }
+
+  /**
+   * insert key/value at the given position, shifting the following entries
+   * one slot to the right
+   *
+   * @param index
+   * @param key
+   * @param value
+   */
+  public void insertAt(int index, long key, long value) {
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(values, index, values, index + 1, size - index);
+    keys[index] = key;
+    values[index] = value;
+    size++;
+  }
+
+  /**
+   * remove the key/value at the given position
+   *
+   * @param index
+   */
+  public void removeAt(int index) {
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    System.arraycopy(values, index + 1, values, index, size - index - 1);
+    size--;
+  }
+}
@@ -0,0 +1,51 @@
+package BPlusTree;
+
+/**
+ * Node of a LongBPlusTree. Keys live in a primitive array that is allocated
+ * once with room for 2*d+1 keys, so a node can overflow by one key before
+ * it is split.
+ */
+public class LongNode {
+  protected boolean isLeafNode;
+  protected long[] keys;
+  protected int size;  // number of keys in use
+
+  /**
+   * @param d order of the node
+   * @return true if the node holds more than 2*d keys
+   */
+  public boolean isOverflowed(int d) {
+    return size > 2 * d;
+  }
+
+  /**
+   * @param d order of the node
+   * @return true if the node holds fewer than d keys
+   */
+  public boolean isUnderflowed(int d) {
+    return size < d;
+  }
+
+  /**
+   * binary search the key among the keys in use
+   *
+   * @param key
+   * @return index of the key, or -(insertion point) - 1 if not present
+   */
+  public int indexOf(long key) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midKey = keys[mid];
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+}
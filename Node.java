@@ -1,16 +1,78 @@
 package BPlusTree;
 
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Node<K extends Comparable<K>, T> {
   protected boolean isLeafNode;
   protected ArrayList<K> keys;
+  protected ReentrantReadWriteLock latch;  // only set in a ConcurrentBPlusTree
+  protected int lastInsert = -1;  // position of the last key inserted
+  protected int sequentialRun;    // inserts in a row that landed just after the one before, see SplitPolicy
 
-  public boolean isOverflowed() {
-    return keys.size() > 2 * BPlusTree.D;
+  /**
+   * @param d order of the node
+   * @return true if the node holds more than 2*d keys
+   */
+  public boolean isOverflowed(int d) {
+    return keys.size() > 2 * d;
   }
 
-  public boolean isUnderflowed() {
-    return keys.size() < BPlusTree.D;
+  /**
+   * Track the runs of sequential inserts: a key inserted right after the
+   * previously inserted key extends the run, any other key ends it
+   *
+   * @param position position the key is inserted at
+   */
+  protected void inserted(int position) {
+    sequentialRun = position == lastInsert + 1 ? sequentialRun + 1 : 0;
+    lastInsert = position;
+  }
+
+  /**
+   * Hand the run over to the right half of a split if the last key
+   * inserted went there, so the run goes on in the new node
+   *
+   * @param right new right node
+   * @param offset position in this node of the first key of right
+   */
+  protected void splitRun(Node<K,T> right, int offset) {
+    // an index node's key in front of offset moves up, and a run ending
+    // there goes on at the start of the right node
+    if (lastInsert >= (isLeafNode ? offset : offset - 1)) {
+      right.lastInsert = lastInsert - offset;
+      right.sequentialRun = sequentialRun;
+      lastInsert = -1;
+      sequentialRun = 0;
+    }
+  }
+
+  /**
+   * @param d order of the node
+   * @return true if the node holds fewer than d keys
+   */
+  public boolean isUnderflowed(int d) {
+    return keys.size() < d;
+  }
+
+  /**
+   * binary search for the first key greater than the given key. In an
+   * index node this is the index of the child which may contain the key.
+   *
+   * @param key
+   * @return index of the first key > key, keys.size() if there is none
+   */
+  public int upperBound(K key) {
+    int low = 0;
+    int high = keys.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (keys.get(mid).compareTo(key) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
   }
 }
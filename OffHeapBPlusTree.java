@@ -0,0 +1,668 @@
+package BPlusTree;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * B+ tree for long keys and long values whose nodes live outside the Java
+ * heap. Nodes are fixed-size slots in direct ByteBuffer slabs and refer to
+ * each other by int slot ids, so the garbage collector sees a handful of
+ * slab objects however many entries the tree holds.
+ *
+ * Nodes emptied by a merge or by shrinking the root go to a free list and
+ * are handed out again before a new slab is allocated. clear() frees every
+ * node at once and keeps the slabs; close() drops the slabs, after which
+ * the tree cannot be used. Direct memory is returned to the operating
+ * system when the garbage collector reclaims the dropped slabs.
+ *
+ * Every node slot has the layout
+ *   type (byte) | size (int at 4) | next (int at 8) | previous (int at 12) | data (from 16)
+ * A leaf keeps its keys followed by its values in the data area, an index
+ * node its keys followed by its children. Free slots are chained through next.
+ *
+ * OffHeapBPlusTree Class Assumptions:
+ * 1. Inserting an existing key replaces its value
+ * 2. Order D: D <= number of keys in a node <= 2*D
+ *    (leaf and index nodes may use different orders)
+ * 3. The tree is not thread-safe
+ */
+public class OffHeapBPlusTree implements Closeable {
+
+    private static final int NO_NODE = 0;  // slot 0 is never handed out
+    private static final int SLAB_SIZE = 1 << 20;  // bytes allocated at a time
+
+    // node layout
+    private static final int N_TYPE = 0;
+    private static final int N_SIZE = 4;
+    private static final int N_NEXT = 8;
+    private static final int N_PREVIOUS = 12;
+    private static final int N_DATA = 16;
+
+    private static final byte LEAF = 1;
+    private static final byte INDEX = 2;
+    private static final byte FREE = 3;
+
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final int leafD;          // order of the leaf nodes
+    private final int indexD;         // order of the index nodes
+    private final int nodeSize;       // bytes per node slot
+    private final int slabShift;      // log2 of the slots per slab
+    private final int slabMask;
+    private final int leafValues;     // offset of the values in a leaf
+    private final int indexChildren;  // offset of the children in an index node
+
+    private int root = NO_NODE;
+    private int nodeCount = 1;  // slots handed out so far, including slot 0
+    private int freeNode = NO_NODE;
+    private int freeCount;
+    private long size;
+    private boolean closed;
+
+    // the helper entry for insert: separator key and new right node of a split
+    private long splitKey;
+    private int splitNode;
+
+    /**
+     * Create a tree of the default order BPlusTree.D
+     */
+    public OffHeapBPlusTree() {
+        this(BPlusTree.D);
+    }
+
+    /**
+     * Create a tree whose leaf and index nodes both hold d..2*d keys
+     *
+     * @param d order of the tree
+     */
+    public OffHeapBPlusTree(int d) {
+        this(d, d);
+    }
+
+    /**
+     * Create a tree with separate orders for leaf and index nodes
+     *
+     * @param leafD leaf nodes hold leafD..2*leafD key/value pairs
+     * @param indexD index nodes hold indexD..2*indexD keys
+     */
+    public OffHeapBPlusTree(int leafD, int indexD) {
+        if (leafD < 1 || indexD < 1) {
+            throw new IllegalArgumentException("order must be positive: leafD=" + leafD + ", indexD=" + indexD);
+        }
+        // one spare key in each node, which is split or merged right away;
+        // sizes in long so that huge orders do not overflow the check
+        long leafBytes = N_DATA + 16L * (2 * (long) leafD + 1);
+        long indexBytes = N_DATA + 8L * (2 * (long) indexD + 1) + 4L * (2 * (long) indexD + 2);
+        long bytes = (Math.max(leafBytes, indexBytes) + 7) & ~7L;
+        if (bytes > SLAB_SIZE) {
+            throw new IllegalArgumentException("a node of order " + Math.max(leafD, indexD) + " takes " + bytes
+                    + " bytes, more than a slab of " + SLAB_SIZE);
+        }
+        this.leafD = leafD;
+        this.indexD = indexD;
+        this.leafValues = N_DATA + 8 * (2 * leafD + 1);
+        this.indexChildren = N_DATA + 8 * (2 * indexD + 1);
+        this.nodeSize = (int) bytes;
+        int slotsPerSlab = Integer.highestOneBit(Math.max(1, SLAB_SIZE / nodeSize));
+        this.slabShift = Integer.numberOfTrailingZeros(slotsPerSlab);
+        this.slabMask = slotsPerSlab - 1;
+    }
+
+    public int getLeafOrder() {
+        return leafD;
+    }
+
+    public int getIndexOrder() {
+        return indexD;
+    }
+
+    /**
+     * @return number of key/value pairs in the tree
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return number of nodes in use
+     */
+    public int nodes() {
+        return nodeCount - 1 - freeCount;
+    }
+
+    /**
+     * @return number of freed node slots waiting to be reused
+     */
+    public int freeNodes() {
+        return freeCount;
+    }
+
+    /**
+     * @return bytes of direct memory held by the slabs
+     */
+    public long allocatedBytes() {
+        return (long) slabs.size() * (slabMask + 1) * nodeSize;
+    }
+
+    /**
+     * Remove every entry. The slabs are kept and reused by later inserts.
+     */
+    public void clear() {
+        checkOpen();
+        root = NO_NODE;
+        nodeCount = 1;
+        freeNode = NO_NODE;
+        freeCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Release the slabs. The tree cannot be used afterwards.
+     */
+    public void close() {
+        closed = true;
+        slabs.clear();
+        root = NO_NODE;
+        nodeCount = 1;
+        freeNode = NO_NODE;
+        freeCount = 0;
+        size = 0;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("tree is closed");
+        }
+    }
+
+    // search
+    /**
+     * Search the value for a specific key
+     *
+     * @param key
+     * @param notFound value returned if the key is not in the tree
+     * @return value
+     */
+    public long search(long key, long notFound) {
+        checkOpen();
+        if (root == NO_NODE) {
+            return notFound;
+        }
+        int id = searchLeafNode(key);
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        int index = indexOf(slab, base, key);
+        return index < 0 ? notFound : slab.getLong(base + leafValues + 8 * index);
+    }
+
+    /**
+     * @param key
+     * @return true if the key is in the tree
+     */
+    public boolean containsKey(long key) {
+        checkOpen();
+        if (root == NO_NODE) {
+            return false;
+        }
+        int id = searchLeafNode(key);
+        return indexOf(slab(id), base(id), key) >= 0;
+    }
+
+    /**
+     * Find the leaf node which may contain the key
+     *
+     * @param key
+     * @return id of the leaf node
+     */
+    private int searchLeafNode(long key) {
+        int id = root;
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        while (slab.get(base + N_TYPE) == INDEX) {
+            id = slab.getInt(base + indexChildren + 4 * childIndex(slab, base, key));
+            slab = slab(id);
+            base = base(id);
+        }
+        return id;
+    }
+
+    /**
+     * binary search the key among the keys of a leaf
+     *
+     * @return index of the key, or -(insertion point) - 1 if not present
+     */
+    private static int indexOf(ByteBuffer slab, int base, long key) {
+        int low = 0;
+        int high = slab.getInt(base + N_SIZE) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = slab.getLong(base + N_DATA + 8 * mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * find the child of an index node which may contain the key. Keys equal
+     * to a separator belong to the child on its right.
+     *
+     * @return index of the child
+     */
+    private static int childIndex(ByteBuffer slab, int base, long key) {
+        int low = 0;
+        int high = slab.getInt(base + N_SIZE);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (slab.getLong(base + N_DATA + 8 * mid) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the OffHeapBPlusTree
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(long key, long value) {
+        checkOpen();
+        if (root == NO_NODE) {
+            root = allocate(LEAF);
+        }
+        if (insertHelper(root, key, value)) {
+            int newRoot = allocate(INDEX);
+            setKey(newRoot, 0, splitKey);
+            setChild(newRoot, 0, root);
+            setChild(newRoot, 1, splitNode);
+            setSize(newRoot, 1);
+            root = newRoot;
+        }
+    }
+
+    /**
+     * Helper function for insert
+     *
+     * @param id
+     * @param key
+     * @param value
+     * @return true if the node was split; splitKey and splitNode then hold
+     *         the separator and the new right node
+     */
+    private boolean insertHelper(int id, long key, long value) {
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        int n = slab.getInt(base + N_SIZE);
+        if (slab.get(base + N_TYPE) == LEAF) {
+            int index = indexOf(slab, base, key);
+            if (index >= 0) {
+                slab.putLong(base + leafValues + 8 * index, value);
+                return false;
+            }
+            index = -(index + 1);
+            move(id, N_DATA + 8 * index, id, N_DATA + 8 * (index + 1), 8 * (n - index));
+            move(id, leafValues + 8 * index, id, leafValues + 8 * (index + 1), 8 * (n - index));
+            slab.putLong(base + N_DATA + 8 * index, key);
+            slab.putLong(base + leafValues + 8 * index, value);
+            slab.putInt(base + N_SIZE, n + 1);
+            size++;
+            if (n + 1 <= 2 * leafD) {
+                return false;
+            }
+            splitLeafNode(id);
+            return true;
+        }
+
+        int childIndex = childIndex(slab, base, key);
+        if (!insertHelper(slab.getInt(base + indexChildren + 4 * childIndex), key, value)) {
+            return false;
+        }
+        move(id, N_DATA + 8 * childIndex, id, N_DATA + 8 * (childIndex + 1), 8 * (n - childIndex));
+        move(id, indexChildren + 4 * (childIndex + 1), id, indexChildren + 4 * (childIndex + 2), 4 * (n - childIndex));
+        slab.putLong(base + N_DATA + 8 * childIndex, splitKey);
+        slab.putInt(base + indexChildren + 4 * (childIndex + 1), splitNode);
+        slab.putInt(base + N_SIZE, n + 1);
+        if (n + 1 <= 2 * indexD) {
+            return false;
+        }
+        splitIndexNode(id);
+        return true;
+    }
+
+    /**
+     * Split an overflowed leaf node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param leaf
+     */
+    private void splitLeafNode(int leaf) {
+        int right = allocate(LEAF);
+        int rightSize = sizeOf(leaf) - leafD;
+        move(leaf, N_DATA + 8 * leafD, right, N_DATA, 8 * rightSize);
+        move(leaf, leafValues + 8 * leafD, right, leafValues, 8 * rightSize);
+        setSize(right, rightSize);
+        setSize(leaf, leafD);
+
+        int next = slab(leaf).getInt(base(leaf) + N_NEXT);
+        slab(right).putInt(base(right) + N_NEXT, next);
+        if (next != NO_NODE) {
+            slab(next).putInt(base(next) + N_PREVIOUS, right);
+        }
+        slab(right).putInt(base(right) + N_PREVIOUS, leaf);
+        slab(leaf).putInt(base(leaf) + N_NEXT, right);
+
+        splitKey = keyAt(right, 0);
+        splitNode = right;
+    }
+
+    /**
+     * Split an overflowed index node, leaving the separator key in splitKey
+     * and the new right node in splitNode
+     *
+     * @param index
+     */
+    private void splitIndexNode(int index) {
+        int right = allocate(INDEX);
+        int rightSize = sizeOf(index) - indexD - 1;
+        move(index, N_DATA + 8 * (indexD + 1), right, N_DATA, 8 * rightSize);
+        move(index, indexChildren + 4 * (indexD + 1), right, indexChildren, 4 * (rightSize + 1));
+        setSize(right, rightSize);
+        setSize(index, indexD);
+
+        splitKey = keyAt(index, indexD);
+        splitNode = right;
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from this OffHeapBPlusTree
+     *
+     * @param key
+     */
+    public void delete(long key) {
+        checkOpen();
+        if (root == NO_NODE) {
+            return;
+        }
+        deleteHelper(root, key);
+        if (sizeOf(root) == 0) {
+            int oldRoot = root;
+            root = slab(root).get(base(root) + N_TYPE) == LEAF ? NO_NODE : childAt(root, 0);
+            free(oldRoot);
+        }
+    }
+
+    /**
+     * Helper function for delete
+     *
+     * @param id
+     * @param key
+     * @return true if the node is underflowed after the delete
+     */
+    private boolean deleteHelper(int id, long key) {
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        int n = slab.getInt(base + N_SIZE);
+        if (slab.get(base + N_TYPE) == LEAF) {
+            int index = indexOf(slab, base, key);
+            if (index < 0) {
+                return false;
+            }
+            move(id, N_DATA + 8 * (index + 1), id, N_DATA + 8 * index, 8 * (n - index - 1));
+            move(id, leafValues + 8 * (index + 1), id, leafValues + 8 * index, 8 * (n - index - 1));
+            slab.putInt(base + N_SIZE, n - 1);
+            size--;
+            return n - 1 < leafD;
+        }
+
+        int childIndex = childIndex(slab, base, key);
+        if (deleteHelper(slab.getInt(base + indexChildren + 4 * childIndex), key)) {
+            handleUnderflow(id, childIndex);
+            return sizeOf(id) < indexD;
+        }
+        return false;
+    }
+
+    /**
+     * Handle the underflow of a child (merge or redistribution) with its left
+     * sibling, or with its right sibling if it is the leftmost child
+     *
+     * @param parent
+     * @param childIndex index of the underflowed child in parent
+     */
+    private void handleUnderflow(int parent, int childIndex) {
+        int keyIndex = childIndex == 0 ? 0 : childIndex - 1;
+        int left = childAt(parent, keyIndex);
+        int right = childAt(parent, keyIndex + 1);
+        if (slab(left).get(base(left) + N_TYPE) == LEAF) {
+            handleLeafNodeUnderflow(left, right, parent, keyIndex);
+        } else {
+            handleIndexNodeUnderflow(left, right, parent, keyIndex);
+        }
+    }
+
+    /**
+     * Handle leaf node underflow (merge or redistribution)
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleLeafNodeUnderflow(int left, int right, int parent, int keyIndex) {
+        int leftSize = sizeOf(left);
+        int rightSize = sizeOf(right);
+        int total = leftSize + rightSize;
+        if (total <= 2 * leafD) {
+            handleLeafNodeUnderflowMerge(left, right, parent, keyIndex);
+            return;
+        }
+
+        int newLeftSize = total / 2;
+        if (leftSize < newLeftSize) {  // move the head of right to the tail of left
+            int moved = newLeftSize - leftSize;
+            move(right, N_DATA, left, N_DATA + 8 * leftSize, 8 * moved);
+            move(right, leafValues, left, leafValues + 8 * leftSize, 8 * moved);
+            move(right, N_DATA + 8 * moved, right, N_DATA, 8 * (rightSize - moved));
+            move(right, leafValues + 8 * moved, right, leafValues, 8 * (rightSize - moved));
+            setSize(left, leftSize + moved);
+            setSize(right, rightSize - moved);
+        } else {  // move the tail of left to the head of right
+            int moved = leftSize - newLeftSize;
+            move(right, N_DATA, right, N_DATA + 8 * moved, 8 * rightSize);
+            move(right, leafValues, right, leafValues + 8 * moved, 8 * rightSize);
+            move(left, N_DATA + 8 * newLeftSize, right, N_DATA, 8 * moved);
+            move(left, leafValues + 8 * newLeftSize, right, leafValues, 8 * moved);
+            setSize(left, leftSize - moved);
+            setSize(right, rightSize + moved);
+        }
+        setKey(parent, keyIndex, keyAt(right, 0));
+    }
+
+    /**
+     * Merge right into left, unlink right from the leaf chain and the parent
+     * and free its slot
+     */
+    private void handleLeafNodeUnderflowMerge(int left, int right, int parent, int keyIndex) {
+        int leftSize = sizeOf(left);
+        int rightSize = sizeOf(right);
+        move(right, N_DATA, left, N_DATA + 8 * leftSize, 8 * rightSize);
+        move(right, leafValues, left, leafValues + 8 * leftSize, 8 * rightSize);
+        setSize(left, leftSize + rightSize);
+
+        int next = slab(right).getInt(base(right) + N_NEXT);
+        slab(left).putInt(base(left) + N_NEXT, next);
+        if (next != NO_NODE) {
+            slab(next).putInt(base(next) + N_PREVIOUS, left);
+        }
+        removeSeparator(parent, keyIndex);
+        free(right);
+    }
+
+    /**
+     * Handle index node underflow (merge or redistribution)
+     *
+     * @param left the smaller node
+     * @param right the bigger node
+     * @param parent their parent index node
+     * @param keyIndex position of the separator between left and right in parent
+     */
+    private void handleIndexNodeUnderflow(int left, int right, int parent, int keyIndex) {
+        int leftSize = sizeOf(left);
+        int rightSize = sizeOf(right);
+        int total = leftSize + 1 + rightSize;
+        if (total <= 2 * indexD) {
+            handleIndexNodeUnderflowMerge(left, right, parent, keyIndex);
+            return;
+        }
+
+        // rotate through the parent so that both nodes hold about half the keys
+        int newLeftSize = (total - 1) / 2;
+        if (leftSize < newLeftSize) {
+            int moved = newLeftSize - leftSize;
+            setKey(left, leftSize, keyAt(parent, keyIndex));
+            move(right, N_DATA, left, N_DATA + 8 * (leftSize + 1), 8 * (moved - 1));
+            move(right, indexChildren, left, indexChildren + 4 * (leftSize + 1), 4 * moved);
+            setKey(parent, keyIndex, keyAt(right, moved - 1));
+            move(right, N_DATA + 8 * moved, right, N_DATA, 8 * (rightSize - moved));
+            move(right, indexChildren + 4 * moved, right, indexChildren, 4 * (rightSize - moved + 1));
+            setSize(left, leftSize + moved);
+            setSize(right, rightSize - moved);
+        } else {
+            int moved = leftSize - newLeftSize;
+            move(right, N_DATA, right, N_DATA + 8 * moved, 8 * rightSize);
+            move(right, indexChildren, right, indexChildren + 4 * moved, 4 * (rightSize + 1));
+            setKey(right, moved - 1, keyAt(parent, keyIndex));
+            move(left, N_DATA + 8 * (newLeftSize + 1), right, N_DATA, 8 * (moved - 1));
+            move(left, indexChildren + 4 * (newLeftSize + 1), right, indexChildren, 4 * moved);
+            setKey(parent, keyIndex, keyAt(left, newLeftSize));
+            setSize(left, leftSize - moved);
+            setSize(right, rightSize + moved);
+        }
+    }
+
+    /**
+     * Pull the separator down, merge right into left, remove right from the
+     * parent and free its slot
+     */
+    private void handleIndexNodeUnderflowMerge(int left, int right, int parent, int keyIndex) {
+        int leftSize = sizeOf(left);
+        int rightSize = sizeOf(right);
+        setKey(left, leftSize, keyAt(parent, keyIndex));
+        move(right, N_DATA, left, N_DATA + 8 * (leftSize + 1), 8 * rightSize);
+        move(right, indexChildren, left, indexChildren + 4 * (leftSize + 1), 4 * (rightSize + 1));
+        setSize(left, leftSize + 1 + rightSize);
+        removeSeparator(parent, keyIndex);
+        free(right);
+    }
+
+    /**
+     * remove the separator key at the given position and the child on its
+     * right from an index node
+     */
+    private void removeSeparator(int id, int keyIndex) {
+        int n = sizeOf(id);
+        move(id, N_DATA + 8 * (keyIndex + 1), id, N_DATA + 8 * keyIndex, 8 * (n - keyIndex - 1));
+        move(id, indexChildren + 4 * (keyIndex + 2), id, indexChildren + 4 * (keyIndex + 1), 4 * (n - keyIndex - 1));
+        setSize(id, n - 1);
+    }
+
+    // node slots
+    private ByteBuffer slab(int id) {
+        return slabs.get(id >>> slabShift);
+    }
+
+    private int base(int id) {
+        return (id & slabMask) * nodeSize;
+    }
+
+    /**
+     * Take a slot from the free list, or the next unused slot, allocating a
+     * new slab when the last one is full
+     *
+     * @param type LEAF or INDEX
+     * @return id of an empty node
+     */
+    private int allocate(byte type) {
+        int id;
+        if (freeNode != NO_NODE) {
+            id = freeNode;
+            freeNode = slab(id).getInt(base(id) + N_NEXT);
+            freeCount--;
+        } else {
+            if (nodeCount == Integer.MAX_VALUE) {
+                throw new IllegalStateException("too many nodes");
+            }
+            id = nodeCount++;
+            while (slabs.size() <= id >>> slabShift) {
+                slabs.add(ByteBuffer.allocateDirect((slabMask + 1) * nodeSize).order(ByteOrder.nativeOrder()));
+            }
+        }
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        slab.put(base + N_TYPE, type);
+        slab.putInt(base + N_SIZE, 0);
+        slab.putInt(base + N_NEXT, NO_NODE);
+        slab.putInt(base + N_PREVIOUS, NO_NODE);
+        return id;
+    }
+
+    /**
+     * Put a node slot on the free list
+     *
+     * @param id
+     */
+    private void free(int id) {
+        ByteBuffer slab = slab(id);
+        int base = base(id);
+        slab.put(base + N_TYPE, FREE);
+        slab.putInt(base + N_NEXT, freeNode);
+        freeNode = id;
+        freeCount++;
+    }
+
+    /**
+     * Copy bytes between two node slots, or within one; overlapping ranges
+     * are copied as if through a temporary buffer
+     */
+    private void move(int from, int fromOffset, int to, int toOffset, int bytes) {
+        if (bytes > 0) {
+            slab(to).put(base(to) + toOffset, slab(from), base(from) + fromOffset, bytes);
+        }
+    }
+
+    private int sizeOf(int id) {
+        return slab(id).getInt(base(id) + N_SIZE);
+    }
+
+    private void setSize(int id, int n) {
+        slab(id).putInt(base(id) + N_SIZE, n);
+    }
+
+    private long keyAt(int id, int i) {
+        return slab(id).getLong(base(id) + N_DATA + 8 * i);
+    }
+
+    private void setKey(int id, int i, long key) {
+        slab(id).putLong(base(id) + N_DATA + 8 * i, key);
+    }
+
+    private int childAt(int id, int i) {
+        return slab(id).getInt(base(id) + indexChildren + 4 * i);
+    }
+
+    private void setChild(int id, int i, int child) {
+        slab(id).putInt(base(id) + indexChildren + 4 * i, child);
+    }
+}
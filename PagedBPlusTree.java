@@ -0,0 +1,656 @@
+package BPlusTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * B+ tree stored in fixed-size pages of a memory-mapped file. Child and
+ * leaf chain pointers are page ids, so an existing index file can be opened
+ * and queried right away without loading it: a lookup binary searches the
+ * mapped pages on its root-to-leaf path and touches no other page.
+ *
+ * Keys and values need fixed-size serializers. The node capacities follow
+ * from the page size: a leaf holds as many key/value pairs as fit in a page,
+ * and a node underflows below half of its capacity.
+ *
+ * Changes are written to the mapped pages directly, the header included, so
+ * a file left behind by a process that exits without close() opens in the
+ * state of its last completed operation. Only flush() and close() force the
+ * pages to disk: a system crash between flushes, or a process dying in the
+ * middle of an insert or delete, can leave the file corrupt. The tree is not
+ * thread-safe.
+ *
+ * Page 0 holds the file header; every other page is a leaf, an index node or
+ * a free page:
+ *   type (byte) | count (int at 4) | next (int at 8) | previous (int at 12) | data (from 16)
+ * A leaf keeps its keys followed by its values in the data area, an index
+ * node its keys followed by its children. Free pages are chained through next.
+ */
+public class PagedBPlusTree<K extends Comparable<K>, T> implements Closeable {
+
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private static final int MAGIC = 0x42505431;  // "BPT1"
+    private static final int VERSION = 1;
+    private static final int NO_PAGE = 0;  // page 0 is the header, so it never is a node
+    private static final long CHUNK_SIZE = 64L << 20;  // bytes mapped at a time
+
+    // header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_PAGE_SIZE = 8;
+    private static final int H_KEY_SIZE = 12;
+    private static final int H_VALUE_SIZE = 16;
+    private static final int H_ROOT = 20;
+    private static final int H_PAGE_COUNT = 24;
+    private static final int H_FREE_PAGE = 28;
+    private static final int H_SIZE = 32;
+    private static final int HEADER_SIZE = 40;
+
+    // page layout
+    private static final int P_TYPE = 0;
+    private static final int P_COUNT = 4;
+    private static final int P_NEXT = 8;
+    private static final int P_PREVIOUS = 12;
+    private static final int P_DATA = 16;
+
+    private static final byte LEAF = 1;
+    private static final byte INDEX = 2;
+    private static final byte FREE = 3;
+
+    private static final int MAX_DEPTH = 64;
+
+    private final FileChannel channel;
+    private final ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+    private final int pageSize;
+    private final int pagesPerChunk;
+    private final Serializer<K> keySerializer;
+    private final Serializer<T> valueSerializer;
+    private final int keySize;
+    private final int valueSize;
+    private final int leafCapacity;   // key/value pairs per leaf
+    private final int indexCapacity;  // keys per index node
+
+    private int root = NO_PAGE;
+    private int pageCount = 1;
+    private int freePage = NO_PAGE;
+    private long size;
+
+    private PagedBPlusTree(FileChannel channel, int pageSize, Serializer<K> keySerializer, Serializer<T> valueSerializer) {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.pagesPerChunk = (int) Math.max(1, CHUNK_SIZE / pageSize);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.keySize = keySerializer.fixedSize();
+        this.valueSize = valueSerializer.fixedSize();
+        this.leafCapacity = (pageSize - P_DATA) / (keySize + valueSize);
+        this.indexCapacity = (pageSize - P_DATA - 4) / (keySize + 4);
+    }
+
+    /**
+     * Create a new, empty index file, replacing any existing file
+     *
+     * @param file
+     * @param pageSize bytes per page
+     * @param keySerializer fixed-size serializer for the keys
+     * @param valueSerializer fixed-size serializer for the values
+     */
+    public static <K extends Comparable<K>, T> PagedBPlusTree<K,T> create(Path file, int pageSize,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer) throws IOException {
+        checkSerializers(keySerializer, valueSerializer);
+        if (!isValidPageSize(pageSize, keySerializer, valueSerializer)) {
+            throw new IllegalArgumentException("page size " + pageSize + " holds fewer than 3 entries per node");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PagedBPlusTree<K,T> tree = new PagedBPlusTree<K,T>(channel, pageSize, keySerializer, valueSerializer);
+        tree.ensureMapped(0);
+        tree.flush();
+        return tree;
+    }
+
+    /**
+     * Open an existing index file. Nothing but the header is read up front.
+     *
+     * @param file
+     * @param keySerializer the key serializer the file was created with
+     * @param valueSerializer the value serializer the file was created with
+     */
+    public static <K extends Comparable<K>, T> PagedBPlusTree<K,T> open(Path file,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer) throws IOException {
+        checkSerializers(keySerializer, valueSerializer);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // read the whole header
+            }
+            if (header.hasRemaining() || header.getInt(H_MAGIC) != MAGIC) {
+                throw new IOException(file + " is not a B+ tree index file");
+            }
+            if (header.getInt(H_VERSION) != VERSION) {
+                throw new IOException("unsupported index file version " + header.getInt(H_VERSION));
+            }
+            if (header.getInt(H_KEY_SIZE) != keySerializer.fixedSize()
+                    || header.getInt(H_VALUE_SIZE) != valueSerializer.fixedSize()) {
+                throw new IOException("serializers do not match the key/value sizes of " + file);
+            }
+            int pageSize = header.getInt(H_PAGE_SIZE);
+            if (!isValidPageSize(pageSize, keySerializer, valueSerializer)) {
+                throw new IOException("corrupt page size " + pageSize + " in " + file);
+            }
+            PagedBPlusTree<K,T> tree = new PagedBPlusTree<K,T>(channel, pageSize, keySerializer, valueSerializer);
+            tree.root = header.getInt(H_ROOT);
+            tree.pageCount = header.getInt(H_PAGE_COUNT);
+            tree.freePage = header.getInt(H_FREE_PAGE);
+            tree.size = header.getLong(H_SIZE);
+            if (tree.pageCount < 1 || (long) tree.pageCount * pageSize > channel.size()
+                    || tree.root < 0 || tree.root >= tree.pageCount || (tree.root == NO_PAGE && tree.size != 0)
+                    || tree.freePage < 0 || tree.freePage >= tree.pageCount || tree.size < 0) {
+                throw new IOException("corrupt header in " + file + ": root=" + tree.root + " pageCount="
+                        + tree.pageCount + " freePage=" + tree.freePage + " size=" + tree.size);
+            }
+            tree.ensureMapped(tree.pageCount - 1);
+            return tree;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if pages of the given size hold the header and at least
+     *         3 entries per leaf and per index node
+     */
+    private static boolean isValidPageSize(int pageSize, Serializer<?> keySerializer, Serializer<?> valueSerializer) {
+        return pageSize >= HEADER_SIZE
+                && (pageSize - P_DATA) / (keySerializer.fixedSize() + valueSerializer.fixedSize()) >= 3
+                && (pageSize - P_DATA - 4) / (keySerializer.fixedSize() + 4) >= 3;
+    }
+
+    private static void checkSerializers(Serializer<?> keySerializer, Serializer<?> valueSerializer) {
+        if (keySerializer.fixedSize() <= 0 || valueSerializer.fixedSize() <= 0) {
+            throw new IllegalArgumentException("paged storage needs fixed-size key and value serializers");
+        }
+    }
+
+    /**
+     * Write the header and force all mapped pages to the file
+     */
+    public void flush() throws IOException {
+        ByteBuffer header = chunks.get(0);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_PAGE_SIZE, pageSize);
+        header.putInt(H_KEY_SIZE, keySize);
+        header.putInt(H_VALUE_SIZE, valueSize);
+        writeHeader();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Flush and close the file. The tree cannot be used afterwards.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            chunks.clear();
+            channel.close();
+        }
+    }
+
+    /**
+     * @return number of key/value pairs in the tree
+     */
+    public long size() {
+        return size;
+    }
+
+    public int getLeafCapacity() {
+        return leafCapacity;
+    }
+
+    public int getIndexCapacity() {
+        return indexCapacity;
+    }
+
+    // search
+    /**
+     * Search the value for a specific key, reading only the pages on the
+     * root-to-leaf path
+     *
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    public T search(K key) {
+        if (root == NO_PAGE || key == null) {
+            return null;
+        }
+        int id = root;
+        while (chunk(id).get(base(id) + P_TYPE) == INDEX) {
+            id = childAt(id, upperBound(id, key));
+        }
+        int index = indexOf(id, key);
+        if (index < 0) {
+            return null;
+        }
+        ByteBuffer chunk = chunk(id);
+        chunk.position(base(id) + P_DATA + leafCapacity * keySize + index * valueSize);
+        return valueSerializer.read(chunk);
+    }
+
+    // insert
+    /**
+     * Insert a key/value pair into the tree. Inserting an existing key
+     * replaces its value.
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(K key, T value) {
+        if (root == NO_PAGE) {
+            Page leaf = newPage(LEAF);
+            leaf.keys.add(key);
+            leaf.values.add(value);
+            write(leaf);
+            root = leaf.id;
+            size++;
+            writeHeader();
+            return;
+        }
+
+        int[] path = new int[MAX_DEPTH];
+        int[] childIndexes = new int[MAX_DEPTH];
+        int depth = 0;
+        int id = root;
+        while (chunk(id).get(base(id) + P_TYPE) == INDEX) {
+            int childIndex = upperBound(id, key);
+            path[depth] = id;
+            childIndexes[depth++] = childIndex;
+            id = childAt(id, childIndex);
+        }
+
+        Page leaf = read(id);
+        int index = Collections.binarySearch(leaf.keys, key);
+        if (index >= 0) {
+            leaf.values.set(index, value);
+            write(leaf);
+            return;
+        }
+        leaf.keys.add(-(index + 1), key);
+        leaf.values.add(-(index + 1), value);
+        size++;
+        writeHeader();
+        if (leaf.keys.size() <= leafCapacity) {
+            write(leaf);
+            return;
+        }
+
+        // split the leaf
+        Page right = newPage(LEAF);
+        int leftSize = leaf.keys.size() / 2;
+        moveTail(leaf.keys, leftSize, right.keys);
+        moveTail(leaf.values, leftSize, right.values);
+        right.next = leaf.next;
+        right.previous = leaf.id;
+        if (leaf.next != NO_PAGE) {
+            chunk(leaf.next).putInt(base(leaf.next) + P_PREVIOUS, right.id);
+        }
+        leaf.next = right.id;
+        write(leaf);
+        write(right);
+
+        // insert the separators upwards, splitting index nodes as needed
+        K splitKey = right.keys.get(0);
+        int splitPage = right.id;
+        while (depth > 0) {
+            depth--;
+            Page parent = read(path[depth]);
+            parent.keys.add(childIndexes[depth], splitKey);
+            parent.children.add(childIndexes[depth] + 1, splitPage);
+            if (parent.keys.size() <= indexCapacity) {
+                write(parent);
+                return;
+            }
+            Page newRight = newPage(INDEX);
+            int leftKeys = parent.keys.size() / 2;
+            splitKey = parent.keys.get(leftKeys);
+            moveTail(parent.keys, leftKeys + 1, newRight.keys);
+            moveTail(parent.children, leftKeys + 1, newRight.children);
+            parent.keys.remove(leftKeys);
+            write(parent);
+            write(newRight);
+            splitPage = newRight.id;
+        }
+        Page newRoot = newPage(INDEX);
+        newRoot.keys.add(splitKey);
+        newRoot.children.add(root);
+        newRoot.children.add(splitPage);
+        write(newRoot);
+        root = newRoot.id;
+        writeHeader();
+    }
+
+    // delete
+    /**
+     * Delete a key/value pair from the tree
+     *
+     * @param key
+     */
+    public void delete(K key) {
+        if (root == NO_PAGE) {
+            return;
+        }
+        int[] path = new int[MAX_DEPTH];
+        int[] childIndexes = new int[MAX_DEPTH];
+        int depth = 0;
+        int id = root;
+        while (chunk(id).get(base(id) + P_TYPE) == INDEX) {
+            int childIndex = upperBound(id, key);
+            path[depth] = id;
+            childIndexes[depth++] = childIndex;
+            id = childAt(id, childIndex);
+        }
+
+        Page node = read(id);
+        int index = Collections.binarySearch(node.keys, key);
+        if (index < 0) {
+            return;
+        }
+        node.keys.remove(index);
+        node.values.remove(index);
+        size--;
+        writeHeader();
+        write(node);
+
+        while (depth > 0 && isUnderflowed(node)) {
+            depth--;
+            Page parent = read(path[depth]);
+            int childIndex = childIndexes[depth];
+            int leftIndex = childIndex != 0 ? childIndex - 1 : 0;
+            Page left = leftIndex == childIndex ? node : read(parent.children.get(leftIndex));
+            Page right = leftIndex == childIndex ? read(parent.children.get(leftIndex + 1)) : node;
+            boolean merged = node.type == LEAF
+                    ? handleLeafUnderflow(left, right, parent, leftIndex)
+                    : handleIndexUnderflow(left, right, parent, leftIndex);
+            write(parent);
+            if (!merged) {
+                break;
+            }
+            node = parent;
+        }
+
+        // shrink the tree if the root ran empty
+        if (chunk(root).getInt(base(root) + P_COUNT) == 0) {
+            int oldRoot = root;
+            root = chunk(root).get(base(root) + P_TYPE) == LEAF ? NO_PAGE : childAt(root, 0);
+            free(oldRoot);  // writes the header
+        }
+    }
+
+    private boolean isUnderflowed(Page page) {
+        return page.keys.size() < (page.type == LEAF ? leafCapacity : indexCapacity) / 2;
+    }
+
+    /**
+     * Merge two sibling leaves or redistribute their entries
+     *
+     * @return true if right was merged into left and removed from parent
+     */
+    private boolean handleLeafUnderflow(Page left, Page right, Page parent, int leftIndex) {
+        int total = left.keys.size() + right.keys.size();
+        if (total <= leafCapacity) {
+            left.keys.addAll(right.keys);
+            left.values.addAll(right.values);
+            left.next = right.next;
+            if (right.next != NO_PAGE) {
+                chunk(right.next).putInt(base(right.next) + P_PREVIOUS, left.id);
+            }
+            parent.keys.remove(leftIndex);
+            parent.children.remove(leftIndex + 1);
+            write(left);
+            free(right.id);
+            return true;
+        }
+        int leftSize = total / 2;
+        if (left.keys.size() < leftSize) {
+            int moved = leftSize - left.keys.size();
+            left.keys.addAll(right.keys.subList(0, moved));
+            left.values.addAll(right.values.subList(0, moved));
+            right.keys.subList(0, moved).clear();
+            right.values.subList(0, moved).clear();
+        } else {
+            right.keys.addAll(0, left.keys.subList(leftSize, left.keys.size()));
+            right.values.addAll(0, left.values.subList(leftSize, left.values.size()));
+            left.keys.subList(leftSize, left.keys.size()).clear();
+            left.values.subList(leftSize, left.values.size()).clear();
+        }
+        parent.keys.set(leftIndex, right.keys.get(0));
+        write(left);
+        write(right);
+        return false;
+    }
+
+    /**
+     * Merge two sibling index nodes or rotate keys through their parent
+     *
+     * @return true if right was merged into left and removed from parent
+     */
+    private boolean handleIndexUnderflow(Page left, Page right, Page parent, int leftIndex) {
+        ArrayList<K> keys = new ArrayList<K>(left.keys);
+        keys.add(parent.keys.get(leftIndex));
+        keys.addAll(right.keys);
+        ArrayList<Integer> children = new ArrayList<Integer>(left.children);
+        children.addAll(right.children);
+        left.keys.clear();
+        left.children.clear();
+        if (keys.size() <= indexCapacity) {
+            left.keys.addAll(keys);
+            left.children.addAll(children);
+            parent.keys.remove(leftIndex);
+            parent.children.remove(leftIndex + 1);
+            write(left);
+            free(right.id);
+            return true;
+        }
+        int leftSize = keys.size() / 2;
+        right.keys.clear();
+        right.children.clear();
+        left.keys.addAll(keys.subList(0, leftSize));
+        left.children.addAll(children.subList(0, leftSize + 1));
+        parent.keys.set(leftIndex, keys.get(leftSize));
+        right.keys.addAll(keys.subList(leftSize + 1, keys.size()));
+        right.children.addAll(children.subList(leftSize + 1, children.size()));
+        write(left);
+        write(right);
+        return false;
+    }
+
+    private static <E> void moveTail(ArrayList<E> from, int index, ArrayList<E> to) {
+        to.addAll(from.subList(index, from.size()));
+        from.subList(index, from.size()).clear();
+    }
+
+    /**
+     * Decoded copy of a node page, used by the operations that modify it
+     */
+    private final class Page {
+        final int id;
+        final byte type;
+        final ArrayList<K> keys = new ArrayList<K>();
+        final ArrayList<T> values = new ArrayList<T>();              // leaf only
+        final ArrayList<Integer> children = new ArrayList<Integer>(); // index node only
+        int next = NO_PAGE;
+        int previous = NO_PAGE;
+
+        Page(int id, byte type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    private Page newPage(byte type) {
+        return new Page(allocate(), type);
+    }
+
+    private Page read(int id) {
+        ByteBuffer chunk = chunk(id);
+        int base = base(id);
+        Page page = new Page(id, chunk.get(base + P_TYPE));
+        int count = chunk.getInt(base + P_COUNT);
+        page.next = chunk.getInt(base + P_NEXT);
+        page.previous = chunk.getInt(base + P_PREVIOUS);
+        chunk.position(base + P_DATA);
+        for (int i = 0; i < count; i++) {
+            page.keys.add(keySerializer.read(chunk));
+        }
+        if (page.type == LEAF) {
+            chunk.position(base + P_DATA + leafCapacity * keySize);
+            for (int i = 0; i < count; i++) {
+                page.values.add(valueSerializer.read(chunk));
+            }
+        } else {
+            int children = base + P_DATA + indexCapacity * keySize;
+            for (int i = 0; i <= count; i++) {
+                page.children.add(chunk.getInt(children + 4 * i));
+            }
+        }
+        return page;
+    }
+
+    private void write(Page page) {
+        ByteBuffer chunk = chunk(page.id);
+        int base = base(page.id);
+        chunk.put(base + P_TYPE, page.type);
+        chunk.putInt(base + P_COUNT, page.keys.size());
+        chunk.putInt(base + P_NEXT, page.next);
+        chunk.putInt(base + P_PREVIOUS, page.previous);
+        chunk.position(base + P_DATA);
+        for (K key : page.keys) {
+            keySerializer.write(chunk, key);
+        }
+        if (page.type == LEAF) {
+            chunk.position(base + P_DATA + leafCapacity * keySize);
+            for (T value : page.values) {
+                valueSerializer.write(chunk, value);
+            }
+        } else {
+            int children = base + P_DATA + indexCapacity * keySize;
+            for (int i = 0; i < page.children.size(); i++) {
+                chunk.putInt(children + 4 * i, page.children.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return a page id from the free list, or a new page at the end of the file
+     */
+    private int allocate() {
+        if (freePage != NO_PAGE) {
+            int id = freePage;
+            freePage = chunk(id).getInt(base(id) + P_NEXT);
+            writeHeader();
+            return id;
+        }
+        int id = pageCount++;
+        ensureMapped(id);
+        writeHeader();
+        return id;
+    }
+
+    private void free(int id) {
+        ByteBuffer chunk = chunk(id);
+        chunk.put(base(id) + P_TYPE, FREE);
+        chunk.putInt(base(id) + P_COUNT, 0);
+        chunk.putInt(base(id) + P_NEXT, freePage);
+        freePage = id;
+        writeHeader();
+    }
+
+    /**
+     * Write the fields that change with the tree to the mapped header page,
+     * every time they change, so that the header never lags behind the node
+     * pages in the mapping
+     */
+    private void writeHeader() {
+        ByteBuffer header = chunks.get(0);
+        header.putInt(H_ROOT, root);
+        header.putInt(H_PAGE_COUNT, pageCount);
+        header.putInt(H_FREE_PAGE, freePage);
+        header.putLong(H_SIZE, size);
+    }
+
+    /**
+     * Map the chunks up to the one holding the given page
+     */
+    private void ensureMapped(int id) {
+        try {
+            while (chunks.size() * pagesPerChunk <= id) {
+                long chunkBytes = (long) pagesPerChunk * pageSize;
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkBytes, chunkBytes));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer chunk(int id) {
+        return chunks.get(id / pagesPerChunk);
+    }
+
+    private int base(int id) {
+        return (id % pagesPerChunk) * pageSize;
+    }
+
+    private K keyAt(int id, int index) {
+        ByteBuffer chunk = chunk(id);
+        chunk.position(base(id) + P_DATA + index * keySize);
+        return keySerializer.read(chunk);
+    }
+
+    private int childAt(int id, int index) {
+        return chunk(id).getInt(base(id) + P_DATA + indexCapacity * keySize + 4 * index);
+    }
+
+    /**
+     * binary search the key in a page
+     *
+     * @return index of the key, or -(insertion point) - 1 if not present
+     */
+    private int indexOf(int id, K key) {
+        int low = 0;
+        int high = chunk(id).getInt(base(id) + P_COUNT) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = keyAt(id, mid).compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return index of the child of an index page which may contain the key
+     */
+    private int upperBound(int id, K key) {
+        int index = indexOf(id, key);
+        return index < 0 ? -(index + 1) : index + 1;
+    }
+}
@@ -7,7 +7,6 @@ public class Search<K extends Comparable<K>, T> extends BPlusTree<K, T> {
 	
   public Entry<K, Node<K,T>> newchildentry;  // the helper entry for insert
   public Node<K,T> root;
-  public static final int D = 2;
 	  
   public Search(Entry<K, Node<K,T>> newchildentry, Node<K,T> root) {
     this.newchildentry = newchildentry;
@@ -43,13 +42,10 @@ public class Search<K extends Comparable<K>, T> extends BPlusTree<K, T> {
    * @return leafnode with the key
    */
   public LeafNode<K,T> searchLeafNode(K key, Node<K,T> currentNode) {
-    if (currentNode.isLeafNode) {
-      return (LeafNode<K,T>)currentNode;
+    while (!currentNode.isLeafNode) {
+      int index = currentNode.upperBound(key);
+      currentNode = ((IndexNode<K,T>)currentNode).children.get(index);
     }
-
-    int index = new FindKeyIndex(currentNode, key).find();
-    Node<K,T> child = ((IndexNode<K,T>)currentNode).children.get(index);
-
-    return searchLeafNode(key, child);
+    return (LeafNode<K,T>)currentNode;
   }
 }
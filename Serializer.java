@@ -0,0 +1,58 @@
+package BPlusTree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts keys or values to and from bytes. Reads and writes are relative
+ * to the position of the buffer and advance it.
+ */
+public interface Serializer<E> {
+
+  /**
+   * @return the number of bytes every value takes, or -1 if it varies
+   */
+  int fixedSize();
+
+  /**
+   * @param value
+   * @return the number of bytes write(buffer, value) takes
+   */
+  int size(E value);
+
+  void write(ByteBuffer buffer, E value);
+
+  E read(ByteBuffer buffer);
+
+  Serializer<Integer> INTEGER = new Serializer<Integer>() {
+    public int fixedSize() { return 4; }
+    public int size(Integer value) { return 4; }
+    public void write(ByteBuffer buffer, Integer value) { buffer.putInt(value); }
+    public Integer read(ByteBuffer buffer) { return buffer.getInt(); }
+  };
+
+  Serializer<Long> LONG = new Serializer<Long>() {
+    public int fixedSize() { return 8; }
+    public int size(Long value) { return 8; }
+    public void write(ByteBuffer buffer, Long value) { buffer.putLong(value); }
+    public Long read(ByteBuffer buffer) { return buffer.getLong(); }
+  };
+
+  /**
+   * UTF-8 bytes preceded by their length as an int
+   */
+  Serializer<String> STRING = new Serializer<String>() {
+    public int fixedSize() { return -1; }
+    public int size(String value) { return 4 + value.getBytes(StandardCharsets.UTF_8).length; }
+    public void write(ByteBuffer buffer, String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+    public String read(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+}
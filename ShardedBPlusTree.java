@@ -0,0 +1,492 @@
+package BPlusTree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe tree made of independent BPlusTree partitions, each guarded
+ * by its own read/write lock, so writers to different partitions never
+ * meet. Where ConcurrentBPlusTree shares one root among all writers, here
+ * every partition has its own root and splits stay inside the partition.
+ *
+ * Keys are partitioned either by range, partition i holding the keys in
+ * [splitKeys[i-1], splitKeys[i]), or by hash. Range partitions keep range
+ * scans cheap and can be split online: a partition that outgrows the split
+ * threshold is cut at its median key while only its own lock is held. Hash
+ * partitions spread any key distribution evenly by construction and never
+ * split, but a range scan merges all of them.
+ *
+ * Range scans are weakly consistent: they read batches of entries under
+ * the read lock of one partition at a time, so they never block writers
+ * for long and see each key at most once, but may miss or include changes
+ * made while they run.
+ */
+public class ShardedBPlusTree<K extends Comparable<K>, T> {
+
+    private static final int SCAN_BATCH = 256;  // entries read per read lock
+
+    private final int d;
+    private final boolean byHash;
+    private volatile Table<K,T> table;
+    private volatile long splitThreshold;  // 0 never splits
+    private final Object splitLock = new Object();  // serializes table updates
+
+    /**
+     * Create a tree partitioned by key range
+     *
+     * @param splitKeys strictly increasing first keys of partitions 1..n, so
+     *        that there are splitKeys.length + 1 partitions
+     * @param d order of the partition trees
+     */
+    public ShardedBPlusTree(K[] splitKeys, int d) {
+        for (int i = 1; i < splitKeys.length; i++) {
+            if (splitKeys[i - 1].compareTo(splitKeys[i]) >= 0) {
+                throw new IllegalArgumentException("split keys are not strictly increasing at index " + i);
+            }
+        }
+        this.d = d;
+        this.byHash = false;
+        List<Partition<K,T>> partitions = new ArrayList<Partition<K,T>>();
+        for (int i = 0; i <= splitKeys.length; i++) {
+            partitions.add(new Partition<K,T>(new BPlusTree<K,T>(d)));
+        }
+        table = new Table<K,T>(new ArrayList<K>(Arrays.asList(splitKeys)), partitions);
+    }
+
+    /**
+     * Create a tree partitioned by key hash
+     *
+     * @param partitions number of partitions, a few times the number of writers
+     * @param d order of the partition trees
+     */
+    public ShardedBPlusTree(int partitions, int d) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("need at least one partition: " + partitions);
+        }
+        this.d = d;
+        this.byHash = true;
+        List<Partition<K,T>> list = new ArrayList<Partition<K,T>>();
+        for (int i = 0; i < partitions; i++) {
+            list.add(new Partition<K,T>(new BPlusTree<K,T>(d)));
+        }
+        table = new Table<K,T>(new ArrayList<K>(), list);
+    }
+
+    /**
+     * Split every range partition that grows beyond the given number of
+     * entries at its median key. Hash partitions do not split.
+     *
+     * @param entries threshold, 0 to never split
+     */
+    public void setSplitThreshold(long entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("negative split threshold: " + entries);
+        }
+        if (byHash && entries > 0) {
+            throw new UnsupportedOperationException("hash partitions do not split");
+        }
+        splitThreshold = entries;
+    }
+
+    public long getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    public int partitions() {
+        return table.partitions.size();
+    }
+
+    /**
+     * @return entries of every partition, in partition order
+     */
+    public long[] partitionSizes() {
+        List<Partition<K,T>> partitions = table.partitions;
+        long[] sizes = new long[partitions.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = partitions.get(i).size;
+        }
+        return sizes;
+    }
+
+    /**
+     * @return first keys of the range partitions after the first, empty for
+     *         hash partitions
+     */
+    public List<K> splitKeys() {
+        return new ArrayList<K>(table.splitKeys);
+    }
+
+    public long size() {
+        long size = 0;
+        for (long partitionSize : partitionSizes()) {
+            size += partitionSize;
+        }
+        return size;
+    }
+
+    /**
+     * @param key
+     * @return value, null if the key is not in the tree
+     */
+    public T search(K key) {
+        if (key == null) {
+            return null;
+        }
+        while (true) {
+            Partition<K,T> partition = table.route(key, byHash);
+            partition.lock.readLock().lock();
+            try {
+                if (!partition.retired) {
+                    return partition.tree.search(key);
+                }
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Insert a key/value pair; like BPlusTree.insert, the key must not be
+     * in the tree yet
+     *
+     * @param key
+     * @param value
+     */
+    public void insert(K key, T value) {
+        while (true) {
+            Partition<K,T> partition = table.route(key, byHash);
+            partition.lock.writeLock().lock();
+            try {
+                if (partition.retired) {
+                    continue;  // split meanwhile, route again
+                }
+                partition.tree.insert(key, value);
+                partition.size++;
+                long threshold = splitThreshold;
+                if (threshold > 0 && partition.size > threshold) {
+                    split(partition);
+                }
+                return;
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Delete a key; looks it up first to keep the partition sizes exact
+     *
+     * @param key
+     */
+    public void delete(K key) {
+        while (true) {
+            Partition<K,T> partition = table.route(key, byHash);
+            partition.lock.writeLock().lock();
+            try {
+                if (partition.retired) {
+                    continue;
+                }
+                if (partition.tree.search(key) != null) {
+                    partition.tree.delete(key);
+                    partition.size--;
+                }
+                return;
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Split the range partition holding the given key at its median key,
+     * if it holds at least two entries
+     *
+     * @param key
+     */
+    public void splitPartition(K key) {
+        if (byHash) {
+            throw new UnsupportedOperationException("hash partitions do not split");
+        }
+        while (true) {
+            Partition<K,T> partition = table.route(key, false);
+            partition.lock.writeLock().lock();
+            try {
+                if (!partition.retired) {
+                    split(partition);
+                    return;
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Replace a partition by two holding the halves of its entries. The
+     * caller holds the partition's write lock, so only the partition's own
+     * operations wait; they find it retired and route again.
+     */
+    private void split(Partition<K,T> partition) {
+        List<Entry<K,T>> entries = new ArrayList<Entry<K,T>>();
+        Cursor<K,T> cursor = partition.tree.cursor();
+        for (boolean valid = cursor.seekFirst(); valid; valid = cursor.next()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<K,T>(cursor.key(), cursor.value()));
+        }
+        if (entries.size() < 2) {
+            return;
+        }
+        int middle = entries.size() / 2;
+        Partition<K,T> left = new Partition<K,T>(new BPlusTree<K,T>(d));
+        left.tree.bulkLoad(entries.subList(0, middle).iterator(), 0.75);
+        left.size = middle;
+        Partition<K,T> right = new Partition<K,T>(new BPlusTree<K,T>(d));
+        right.tree.bulkLoad(entries.subList(middle, entries.size()).iterator(), 0.75);
+        right.size = entries.size() - middle;
+
+        synchronized (splitLock) {
+            Table<K,T> old = table;
+            int index = old.partitions.indexOf(partition);
+            List<K> splitKeys = new ArrayList<K>(old.splitKeys);
+            splitKeys.add(index, entries.get(middle).getKey());
+            List<Partition<K,T>> partitions = new ArrayList<Partition<K,T>>(old.partitions);
+            partitions.set(index, left);
+            partitions.add(index + 1, right);
+            table = new Table<K,T>(splitKeys, partitions);
+        }
+        partition.retired = true;
+    }
+
+    /**
+     * Entries with from <= key < to, in ascending key order; see the class
+     * comment for what a scan sees of concurrent changes
+     *
+     * @param from lower bound (inclusive), null if unbounded
+     * @param to upper bound (exclusive), null if unbounded
+     */
+    public Iterable<Entry<K,T>> range(final K from, final K to) {
+        return new Iterable<Entry<K,T>>() {
+            public Iterator<Entry<K,T>> iterator() {
+                if (!byHash) {
+                    return new RangeIterator(from, to);
+                }
+                return new MergeIterator(table.partitions, from, to);
+            }
+        };
+    }
+
+    /**
+     * Read up to SCAN_BATCH entries of a partition with start <= key < to
+     * (start < key if not inclusive) under its read lock
+     *
+     * @return false if the partition was retired and nothing was read
+     */
+    private static <K extends Comparable<K>, T> boolean readBatch(Partition<K,T> partition, K start,
+            boolean inclusive, K to, List<Entry<K,T>> batch) {
+        partition.lock.readLock().lock();
+        try {
+            if (partition.retired) {
+                return false;
+            }
+            Cursor<K,T> cursor = partition.tree.cursor();
+            boolean valid = start == null ? cursor.seekFirst() : cursor.seek(start);
+            if (valid && !inclusive && cursor.key().compareTo(start) == 0) {
+                valid = cursor.next();
+            }
+            for (; valid && batch.size() < SCAN_BATCH; valid = cursor.next()) {
+                if (to != null && cursor.key().compareTo(to) >= 0) {
+                    break;
+                }
+                batch.add(new AbstractMap.SimpleImmutableEntry<K,T>(cursor.key(), cursor.value()));
+            }
+            return true;
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scan of range partitions: reads the partitions in key order, routing
+     * every batch afresh so that partitions split meanwhile are followed
+     */
+    private final class RangeIterator implements Iterator<Entry<K,T>> {
+        private final K to;
+        private K position;         // where the next batch starts
+        private boolean inclusive;  // whether position itself is still to be read
+        private final List<Entry<K,T>> batch = new ArrayList<Entry<K,T>>();
+        private int next;
+        private boolean done;
+
+        RangeIterator(K from, K to) {
+            this.to = to;
+            this.position = from;
+            this.inclusive = true;
+        }
+
+        public boolean hasNext() {
+            while (next == batch.size() && !done) {
+                fill();
+            }
+            return next < batch.size();
+        }
+
+        public Entry<K,T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(next++);
+        }
+
+        private void fill() {
+            batch.clear();
+            next = 0;
+            Table<K,T> current = table;
+            int index = position == null ? 0 : current.rangeIndex(position);
+            if (!readBatch(current.partitions.get(index), position, inclusive, to, batch)) {
+                return;  // retired, route again
+            }
+            if (batch.size() == SCAN_BATCH) {
+                position = batch.get(batch.size() - 1).getKey();
+                inclusive = false;
+                return;
+            }
+            // the partition is exhausted within the bounds: go on with the next one
+            if (index == current.splitKeys.size()) {
+                done = true;
+                return;
+            }
+            K nextStart = current.splitKeys.get(index);
+            if (to != null && nextStart.compareTo(to) >= 0) {
+                done = true;
+                return;
+            }
+            position = nextStart;
+            inclusive = true;
+        }
+    }
+
+    /**
+     * Scan of hash partitions: merges one batched scan per partition by key
+     */
+    private final class MergeIterator implements Iterator<Entry<K,T>> {
+        private final PriorityQueue<PartitionScan<K,T>> heads = new PriorityQueue<PartitionScan<K,T>>();
+
+        MergeIterator(List<Partition<K,T>> partitions, K from, K to) {
+            for (Partition<K,T> partition : partitions) {
+                PartitionScan<K,T> scan = new PartitionScan<K,T>(partition, from, to);
+                if (scan.peek() != null) {
+                    heads.add(scan);
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Entry<K,T> next() {
+            PartitionScan<K,T> scan = heads.poll();
+            if (scan == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K,T> entry = scan.peek();
+            scan.advance();
+            if (scan.peek() != null) {
+                heads.add(scan);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Batched scan of one hash partition, which never splits
+     */
+    private static final class PartitionScan<K extends Comparable<K>, T> implements Comparable<PartitionScan<K,T>> {
+        private final Partition<K,T> partition;
+        private final K to;
+        private final List<Entry<K,T>> batch = new ArrayList<Entry<K,T>>();
+        private int next;
+
+        PartitionScan(Partition<K,T> partition, K from, K to) {
+            this.partition = partition;
+            this.to = to;
+            readBatch(partition, from, true, to, batch);
+        }
+
+        Entry<K,T> peek() {
+            return next < batch.size() ? batch.get(next) : null;
+        }
+
+        void advance() {
+            next++;
+            if (next == batch.size() && batch.size() == SCAN_BATCH) {
+                K last = batch.get(batch.size() - 1).getKey();
+                batch.clear();
+                next = 0;
+                readBatch(partition, last, false, to, batch);
+            }
+        }
+
+        public int compareTo(PartitionScan<K,T> other) {
+            return peek().getKey().compareTo(other.peek().getKey());
+        }
+    }
+
+    /**
+     * One partition: a tree, its lock and its number of entries
+     */
+    private static final class Partition<K extends Comparable<K>, T> {
+        final BPlusTree<K,T> tree;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile long size;         // written under the write lock
+        volatile boolean retired;   // replaced by a split, set under the write lock
+
+        Partition(BPlusTree<K,T> tree) {
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * Immutable routing table, replaced as a whole by a split
+     */
+    private static final class Table<K extends Comparable<K>, T> {
+        final List<K> splitKeys;
+        final List<Partition<K,T>> partitions;
+
+        Table(List<K> splitKeys, List<Partition<K,T>> partitions) {
+            this.splitKeys = splitKeys;
+            this.partitions = partitions;
+        }
+
+        Partition<K,T> route(K key, boolean byHash) {
+            if (byHash) {
+                int hash = key.hashCode() * 0x9E3779B9;
+                return partitions.get((int) (((hash >>> 1) * (long) partitions.size()) >>> 31));
+            }
+            return partitions.get(rangeIndex(key));
+        }
+
+        /**
+         * @return number of split keys <= key, the range partition of key
+         */
+        int rangeIndex(K key) {
+            int low = 0;
+            int high = splitKeys.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (splitKeys.get(mid).compareTo(key) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package BPlusTree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a BPlusTree for fast restart. The entries are written
+ * in key order by walking the leaf chain, and read back by streaming them
+ * straight into BPlusTree.bulkLoad, so neither side splits nodes or holds
+ * more than one block of entries in memory.
+ *
+ * Format: magic (int) | version (int) | blocks | 0 (int) | entry count (long)
+ * where each block is its byte length (int), the CRC32 of its bytes (int)
+ * and whole entries, each a key and a value written by the serializers.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x42505453;  // "BPTS"
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Write all entries of the tree to a stream, which is flushed but not closed
+     *
+     * @return number of entries written
+     */
+    public static <K extends Comparable<K>, T> long write(BPlusTree<K,T> tree, OutputStream out,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer) throws IOException {
+        long count = write(tree, Channels.newChannel(out), keySerializer, valueSerializer);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Write all entries of the tree to a channel, which is not closed
+     *
+     * @return number of entries written
+     */
+    public static <K extends Comparable<K>, T> long write(BPlusTree<K,T> tree, WritableByteChannel channel,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(VERSION);
+        drain(channel, header);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long count = 0;
+        Cursor<K,T> cursor = tree.cursor();
+        for (boolean valid = cursor.seekFirst(); valid; valid = cursor.next()) {
+            K key = cursor.key();
+            T value = cursor.value();
+            int size = keySerializer.size(key) + valueSerializer.size(value);
+            if (block.remaining() < size) {
+                writeBlock(channel, block, header);
+                if (block.capacity() < size) {
+                    block = ByteBuffer.allocate(size);
+                }
+            }
+            keySerializer.write(block, key);
+            valueSerializer.write(block, value);
+            count++;
+        }
+        writeBlock(channel, block, header);
+
+        header.putInt(0).putLong(count);
+        drain(channel, header);
+        return count;
+    }
+
+    private static void writeBlock(WritableByteChannel channel, ByteBuffer block, ByteBuffer header) throws IOException {
+        if (block.position() == 0) {
+            return;
+        }
+        block.flip();
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+        header.putInt(block.remaining()).putInt((int) crc.getValue());
+        drain(channel, header);
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        block.clear();
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Load a snapshot from a stream into an empty tree. The stream is not closed.
+     *
+     * @param tree empty tree to load into
+     * @param fillFactor see BPlusTree.bulkLoad
+     * @return number of entries loaded
+     * @throws IOException if the snapshot is truncated or corrupt; the tree is then left empty
+     */
+    public static <K extends Comparable<K>, T> long read(InputStream in, Serializer<K> keySerializer,
+            Serializer<T> valueSerializer, BPlusTree<K,T> tree, double fillFactor) throws IOException {
+        return read(Channels.newChannel(in), keySerializer, valueSerializer, tree, fillFactor);
+    }
+
+    /**
+     * Load a snapshot from a channel into an empty tree. The channel is not closed.
+     *
+     * @param tree empty tree to load into
+     * @param fillFactor see BPlusTree.bulkLoad
+     * @return number of entries loaded
+     * @throws IOException if the snapshot is truncated or corrupt; the tree is then left empty
+     */
+    public static <K extends Comparable<K>, T> long read(ReadableByteChannel channel, Serializer<K> keySerializer,
+            Serializer<T> valueSerializer, BPlusTree<K,T> tree, double fillFactor) throws IOException {
+        if (tree.root != null) {
+            throw new IllegalStateException("snapshots load into an empty tree");
+        }
+        Reader<K,T> reader = new Reader<K,T>(channel, keySerializer, valueSerializer);
+        try {
+            tree.bulkLoad(reader, fillFactor);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return reader.count;
+    }
+
+    /**
+     * Decodes the entries of a snapshot one block at a time. I/O errors and
+     * corruption surface as UncheckedIOException from hasNext().
+     */
+    private static class Reader<K, T> implements Iterator<Entry<K,T>> {
+        private final ReadableByteChannel channel;
+        private final Serializer<K> keySerializer;
+        private final Serializer<T> valueSerializer;
+        private final ByteBuffer header = ByteBuffer.allocate(12);
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final int maxBlockLength;  // longest block write() produces
+        private boolean done;
+        private long count;
+
+        Reader(ReadableByteChannel channel, Serializer<K> keySerializer, Serializer<T> valueSerializer) throws IOException {
+            this.channel = channel;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            // a block longer than BLOCK_SIZE holds a single entry, whose size
+            // is only bounded for fixed-size serializers
+            if (keySerializer.fixedSize() < 0 || valueSerializer.fixedSize() < 0) {
+                maxBlockLength = Integer.MAX_VALUE;
+            } else {
+                maxBlockLength = Math.max(BLOCK_SIZE, keySerializer.fixedSize() + valueSerializer.fixedSize());
+            }
+            readHeader(8);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not a snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            block.flip();
+        }
+
+        public boolean hasNext() {
+            try {
+                while (!done && !block.hasRemaining()) {
+                    nextBlock();
+                }
+                return !done;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public Entry<K,T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            K key = keySerializer.read(block);
+            T value = valueSerializer.read(block);
+            count++;
+            return new AbstractMap.SimpleImmutableEntry<K,T>(key, value);
+        }
+
+        private void nextBlock() throws IOException {
+            readHeader(4);
+            int length = header.getInt();
+            if (length == 0) {
+                readHeader(8);
+                long expected = header.getLong();
+                if (expected != count) {
+                    throw new IOException("snapshot holds " + expected + " entries but " + count + " were read");
+                }
+                done = true;
+                return;
+            }
+            if (length < 0 || length > maxBlockLength) {
+                throw new IOException("corrupt snapshot block length " + length);
+            }
+            readHeader(4);
+            int checksum = header.getInt();
+            if (length <= block.capacity()) {
+                block.clear().limit(length);
+                readFully(block);
+            } else {
+                readLargeBlock(length);
+            }
+            block.flip();
+            CRC32 crc = new CRC32();
+            crc.update(block.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("snapshot block checksum mismatch");
+            }
+        }
+
+        /**
+         * Read a block holding a single large entry, growing the buffer only
+         * as its bytes arrive, so that a corrupt length ends in an
+         * EOFException instead of a huge allocation
+         */
+        private void readLargeBlock(int length) throws IOException {
+            block.clear();
+            while (block.position() < length) {
+                if (!block.hasRemaining()) {
+                    int capacity = (int) Math.min(length, 2L * block.capacity());
+                    ByteBuffer grown = ByteBuffer.allocate(capacity);
+                    block.flip();
+                    grown.put(block);
+                    block = grown;
+                }
+                block.limit(Math.min(block.capacity(), length));
+                readFully(block);
+            }
+        }
+
+        private void readHeader(int bytes) throws IOException {
+            header.clear().limit(bytes);
+            readFully(header);
+            header.flip();
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("truncated snapshot");
+                }
+            }
+        }
+    }
+}
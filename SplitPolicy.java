@@ -0,0 +1,88 @@
+package BPlusTree;
+
+/**
+ * Decides where an overflowed node of a BPlusTree is split, see
+ * BPlusTree.setSplitPolicy().
+ *
+ * A leaf of 2d+1 keys keeps split keys and the new right leaf takes the
+ * rest. An index node of 2d+1 keys keeps split keys, its next key moves up
+ * to the parent and the new right node takes the keys after it. The tree
+ * clamps the answer so that both nodes keep at least one key.
+ *
+ * Splitting anywhere but the middle leaves nodes below d keys, breaking
+ * the tree's D <= keys invariant. Deletes do not bring such a node back to d:
+ * a delete that underflows it merges it with a sibling once both fit in one
+ * node, but a redistribution moves a single key and can leave it well below
+ * d. applyBatch restores d keys only in the nodes whose subtrees it changes.
+ */
+public interface SplitPolicy {
+
+    /**
+     * @param node the overflowed node, a LeafNode or an IndexNode
+     * @param position index at which the key that overflowed the node was inserted
+     * @param rightmost true if the node is the last one of its level
+     * @param d order of the node
+     * @return number of keys the node keeps
+     */
+    int split(Node<?,?> node, int position, boolean rightmost, int d);
+
+    /**
+     * Split in the middle, leaving both nodes half full. The default, and
+     * the best choice for keys arriving in random order.
+     */
+    SplitPolicy MIDPOINT = new SplitPolicy() {
+        public int split(Node<?,?> node, int position, boolean rightmost, int d) {
+            return d;
+        }
+
+        @Override
+        public String toString() {
+            return "MIDPOINT";
+        }
+    };
+
+    /**
+     * Split the last node of a level just before the key appended to it,
+     * leaving the left node full, and other nodes in the middle. Appending
+     * increasing keys then fills the tree completely.
+     */
+    SplitPolicy RIGHTMOST = new SplitPolicy() {
+        public int split(Node<?,?> node, int position, boolean rightmost, int d) {
+            return rightmost && position == node.keys.size() - 1 ? endSplit(node) : d;
+        }
+
+        @Override
+        public String toString() {
+            return "RIGHTMOST";
+        }
+    };
+
+    /**
+     * Split a node just before the inserted key if at least its last d
+     * inserts each landed right after the one before, and in the middle
+     * otherwise. The left node keeps the run so far and the right node
+     * starts with the inserted key, followed by any larger keys already
+     * there. This fills the nodes of every increasing run: appends at the
+     * end of the tree, and also runs that continue in front of other keys,
+     * such as several interleaved sequences. Random inserts still split in
+     * the middle.
+     */
+    SplitPolicy ADAPTIVE = new SplitPolicy() {
+        public int split(Node<?,?> node, int position, boolean rightmost, int d) {
+            return node.sequentialRun >= d ? position : d;
+        }
+
+        @Override
+        public String toString() {
+            return "ADAPTIVE";
+        }
+    };
+
+    /**
+     * @return the split leaving the new right node the smallest possible:
+     *         one key for a leaf, one key and two children for an index node
+     */
+    static int endSplit(Node<?,?> node) {
+        return node.keys.size() - (node.isLeafNode ? 1 : 2);
+    }
+}
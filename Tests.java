@@ -2,14 +2,45 @@ package BPlusTree;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 
 public class Tests {
 
+  // leaf orders of the randomized tests, each paired with index order 5 - d by orderedTree
+  private static final int[] LEAF_ORDERS = { 1, 2, 3, 4 };
+
   // add some nodes, see if it comes out right, delete one, see if it's right
   @Test
   public void testHybrid1() {
@@ -91,17 +122,1697 @@ public class Tests {
     assertTrue(treeDepth(tree.root) < 11);
   }
 
+  // Testing a tree with separate leaf and index orders
+  @Test
+  public void testLargeTreeCustomOrder() {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32, 8);
+    ArrayList<Integer> numbers = new ArrayList<Integer>(100000);
+    for (int i = 0; i<100000; i++) {
+      numbers.add(i);
+    }
+    Collections.shuffle(numbers);
+    for (int i = 0; i <100000; i++) {
+      tree.insert(numbers.get(i), numbers.get(i));
+    }
+    testTreeInvariants(tree);
+    assertTrue(treeDepth(tree.root) < 6);
+    for (int i = 0; i < 100000; i += 2) {
+      tree.delete(numbers.get(i));
+    }
+    testTreeInvariants(tree);
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i % 2 == 0 ? null : numbers.get(i), tree.search(numbers.get(i)));
+    }
+  }
+
+  // Testing insert and delete against a TreeMap, including the leaf chain
+  @Test
+  public void testRandomOperations() {
+    for (int d : LEAF_ORDERS) {
+      BPlusTree<Integer, Integer> tree = orderedTree(d);
+      TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+      Random random = new Random(d);
+      for (int i = 0; i < 20000; i++) {
+        int key = random.nextInt(2000);
+        if (random.nextBoolean()) {
+          tree.delete(key);
+          expected.remove(key);
+        } else if (!expected.containsKey(key)) {
+          tree.insert(key, i);
+          expected.put(key, i);
+        }
+      }
+      testTreeInvariants(tree);
+      assertSameEntries(tree, expected);
+    }
+  }
+
+  // Stress test: concurrent writers on disjoint keys while readers search
+  @Test
+  public void testConcurrentTree() throws Exception {
+    final ConcurrentBPlusTree<Integer, Integer> tree = new ConcurrentBPlusTree<Integer, Integer>(2, 3);
+    final int threads = 8;
+    final int keysPerThread = 20000;
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] workers = new Thread[threads * 2];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(id);
+          for (int i = 0; i < keysPerThread; i++) {
+            int key = i * threads + id;
+            tree.insert(key, key);
+            if (random.nextInt(4) == 0) {
+              int old = random.nextInt(i + 1) * threads + id;
+              tree.delete(old);
+              tree.insert(old, old);
+            }
+          }
+          for (int i = 0; i < keysPerThread; i += 2) {
+            tree.delete(i * threads + id);
+          }
+        }
+      });
+      workers[threads + t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(-id);
+          Integer[] batch = new Integer[32];
+          Integer[] values = new Integer[batch.length];
+          for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(threads * keysPerThread);
+            Integer value = tree.search(key);
+            if (value != null && value != key) {
+              errors.incrementAndGet();
+            }
+            if (id % 2 == 1 && i % 64 == 0) {
+              // batches descend under read latches too
+              for (int j = 0; j < batch.length; j++) {
+                batch[j] = random.nextInt(threads * keysPerThread);
+              }
+              tree.getAll(batch, values);
+              for (int j = 0; j < batch.length; j++) {
+                if (values[j] != null && !values[j].equals(batch[j])) {
+                  errors.incrementAndGet();
+                }
+              }
+            }
+          }
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(0, errors.get());
+    testTreeInvariants(tree);
+    for (int key = 0; key < threads * keysPerThread; key++) {
+      assertEquals((key / threads) % 2 == 0 ? null : (Integer) key, tree.search(key));
+    }
+  }
+
+  // Stress test: latch-free readers must always find the preloaded keys
+  // while writers split the nodes around them
+  @Test
+  public void testBLinkTree() throws Exception {
+    final BLinkTree<Integer, Integer> tree = new BLinkTree<Integer, Integer>(2, 2);
+    final int threads = 4;
+    final int keysPerThread = 20000;
+    for (int key = 0; key < threads * keysPerThread * 2; key += 16) {
+      tree.insert(key, key);
+    }
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] workers = new Thread[threads * 2];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < keysPerThread; i++) {
+            int key = 2 * (i * threads + id) + 1;
+            tree.insert(key, key);
+            if (i % 3 == 0) {
+              tree.delete(key);
+            }
+          }
+        }
+      });
+      workers[threads + t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(id);
+          for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(threads * keysPerThread / 8) * 16;
+            Integer value = tree.search(key);
+            if (value == null || value != key) {
+              errors.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(0, errors.get());
+    for (int i = 0; i < threads * keysPerThread; i++) {
+      int key = 2 * i + 1;
+      assertEquals((i / threads) % 3 == 0 ? null : (Integer) key, tree.search(key));
+    }
+  }
+
+  // A right sibling of the root splits before the writer that split the
+  // root has published the new root: the sibling's writer must wait for it
+  // instead of descending below the old root
+  @Test
+  public void testBLinkTreeRootSplitRace() throws Exception {
+    final BLinkTree<Integer, Integer> tree = new BLinkTree<Integer, Integer>(1, 1);
+    // the state right after a writer split the root r into r and s, with
+    // s's last leaf full
+    BLinkNode<Integer, Integer> l4 = blinkLeaf(null, null, 40, 41);
+    BLinkNode<Integer, Integer> l3 = blinkLeaf(40, l4, 30);
+    BLinkNode<Integer, Integer> l2 = blinkLeaf(30, l3, 20);
+    BLinkNode<Integer, Integer> l1 = blinkLeaf(20, l2, 10);
+    BLinkNode<Integer, Integer> l0 = blinkLeaf(10, l1, 0);
+    BLinkNode<Integer, Integer> s = new BLinkNode<Integer, Integer>(1, new BLinkNode.State(
+        new Object[] {30, 40}, new Object[] {l2, l3, l4}, null, null));
+    BLinkNode<Integer, Integer> r = new BLinkNode<Integer, Integer>(1, new BLinkNode.State(
+        new Object[] {10}, new Object[] {l0, l1}, 20, s));
+    tree.root = r;
+    r.lock.lock();  // held by the writer that split r
+    final AtomicInteger errors = new AtomicInteger();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          tree.insert(42, 42);  // splits l4 and then s
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+        }
+      }
+    });
+    writer.start();
+    while (!r.lock.hasQueuedThreads() && writer.isAlive()) {
+      Thread.sleep(1);
+    }
+    tree.root = new BLinkNode<Integer, Integer>(2, new BLinkNode.State(
+        new Object[] {20}, new Object[] {r, s}, null, null));
+    r.lock.unlock();
+    writer.join();
+    assertEquals(0, errors.get());
+    assertEquals(2, tree.root.level);
+    assertEquals(3, tree.root.state.slots.length);
+    for (int key : new int[] {0, 10, 20, 30, 40, 41, 42}) {
+      assertEquals((Integer) key, tree.search(key));
+    }
+  }
+
+  private static BLinkNode<Integer, Integer> blinkLeaf(Integer highKey, BLinkNode<Integer, Integer> right,
+      Integer... keys) {
+    return new BLinkNode<Integer, Integer>(0, new BLinkNode.State(keys.clone(), keys.clone(), highKey, right));
+  }
+
+  // Testing the page-file tree across close and reopen
+  @Test
+  public void testPagedTree() throws Exception {
+    File file = File.createTempFile("bplustree", ".idx");
+    file.deleteOnExit();
+    PagedBPlusTree<Long, Long> tree = PagedBPlusTree.create(file.toPath(), 128, Serializer.LONG, Serializer.LONG);
+    TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+    Random random = new Random(3);
+    for (int i = 0; i < 30000; i++) {
+      long key = random.nextInt(10000);
+      if (random.nextInt(3) == 0) {
+        tree.delete(key);
+        expected.remove(key);
+      } else {
+        tree.insert(key, (long) i);
+        expected.put(key, (long) i);
+      }
+    }
+    tree.close();
+
+    tree = PagedBPlusTree.open(file.toPath(), Serializer.LONG, Serializer.LONG);
+    assertEquals(expected.size(), tree.size());
+    for (long key = 0; key < 10000; key++) {
+      assertEquals(expected.get(key), tree.search(key));
+    }
+    for (Long key : expected.keySet()) {
+      tree.delete(key);
+    }
+    assertEquals(0, tree.size());
+    assertEquals(null, tree.search(1L));
+    tree.insert(1L, 2L);
+    assertEquals(2L, (long) tree.search(1L));
+    tree.close();
+
+    // a corrupt page size or root in the header is rejected
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    for (int field : new int[] {8, 20}) {
+      byte[] corrupt = bytes.clone();
+      corrupt[field] = corrupt[field + 1] = corrupt[field + 2] = 0x7f;
+      Files.write(file.toPath(), corrupt);
+      try {
+        PagedBPlusTree.open(file.toPath(), Serializer.LONG, Serializer.LONG);
+        fail("corrupt header was accepted");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+
+    // the header follows the pages between flushes: a second open of a file
+    // whose writer never flushed again sees every completed insert
+    // the writer is never closed: it stands for a process that died
+    PagedBPlusTree<Long, Long> writer = PagedBPlusTree.create(file.toPath(), 128, Serializer.LONG, Serializer.LONG);
+    for (long key = 0; key < 2000; key++) {
+      writer.insert(key, key);
+    }
+    writer.flush();
+    for (long key = 2000; key < 6000; key++) {
+      writer.insert(key, key);
+    }
+    PagedBPlusTree<Long, Long> reader = PagedBPlusTree.open(file.toPath(), Serializer.LONG, Serializer.LONG);
+    assertEquals(6000, reader.size());
+    for (long key = 6000; key < 8000; key++) {
+      reader.insert(key, key);
+    }
+    for (long key = 0; key < 8000; key++) {
+      assertEquals((Long) key, reader.search(key));
+    }
+    reader.close();
+  }
+
+  // Testing sorted batches of upserts and deletes against a TreeMap
+  @Test
+  public void testApplyBatch() {
+    for (int d : LEAF_ORDERS) {
+      BPlusTree<Integer, Integer> tree = orderedTree(d);
+      TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+      Random random = new Random(d);
+      for (int round = 0; round < 300; round++) {
+        // batches of every size, some clustered, with more deletes later on
+        TreeMap<Integer, Integer> ops = new TreeMap<Integer, Integer>();
+        int count = random.nextInt(round % 10 == 0 ? 3000 : 60);
+        int base = random.nextInt(5000);
+        int deletes = round < 150 ? 3 : 7;
+        for (int i = 0; i < count; i++) {
+          int key = random.nextBoolean() ? random.nextInt(5000) : base + random.nextInt(100);
+          ops.put(key, random.nextInt(10) < deletes ? null : round * 10000 + i);
+        }
+        Integer[] keys = ops.keySet().toArray(new Integer[0]);
+        Integer[] values = ops.values().toArray(new Integer[0]);
+        tree.applyBatch(keys, values);
+        for (Map.Entry<Integer, Integer> op : ops.entrySet()) {
+          if (op.getValue() == null) {
+            expected.remove(op.getKey());
+          } else {
+            expected.put(op.getKey(), op.getValue());
+          }
+        }
+
+        testTreeInvariants(tree);
+        assertSameEntries(tree, expected);
+        for (int i = 0; i < 50; i++) {
+          int key = random.nextInt(5100);
+          assertEquals(expected.get(key), tree.search(key));
+        }
+      }
+
+      // delete everything in one batch
+      Integer[] keys = expected.keySet().toArray(new Integer[0]);
+      tree.applyBatch(keys, new Integer[keys.length]);
+      assertNull(tree.root);
+    }
+  }
+
+  // Testing the finger under appends and local and random operations
+  @Test
+  public void testFinger() {
+    for (int d : LEAF_ORDERS) {
+      BPlusTree<Integer, Integer> tree = orderedTree(d);
+      tree.setFingerEnabled(true);
+      TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+      for (int i = 0; i < 3000; i++) {
+        tree.insert(i, i);
+        expected.put(i, i);
+      }
+      testTreeInvariants(tree);
+      Random random = new Random(d);
+      int last = 0;
+      for (int i = 0; i < 30000; i++) {
+        int key = random.nextInt(4) == 0 ? random.nextInt(4000) : Math.min(3999, Math.max(0, last + random.nextInt(9) - 4));
+        last = key;
+        int op = random.nextInt(3);
+        if (op == 0) {
+          tree.delete(key);
+          expected.remove(key);
+        } else if (op == 1 && !expected.containsKey(key)) {
+          tree.insert(key, i);
+          expected.put(key, i);
+        } else {
+          assertEquals(expected.get(key), tree.search(key));
+        }
+        if (i % 5000 == 0) {
+          testTreeInvariants(tree);
+        }
+      }
+      for (int key = 0; key < 4000; key++) {
+        assertEquals(expected.get(key), tree.search(key));
+      }
+      assertSameEntries(tree, expected);
+      for (int key = 3999; key >= 0; key--) {
+        tree.delete(key);
+      }
+      assertNull(tree.root);
+      tree.insert(1, 1);
+      assertEquals(1, (int) tree.search(1));
+    }
+  }
+
+  // Testing batched lookups against single searches
+  @Test
+  public void testSearchBatch() {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(2);
+    Integer[] none = new Integer[] { 1, 2 };
+    Integer[] found = new Integer[2];
+    tree.searchBatch(none, found);
+    assertNull(found[0]);
+    for (int i = 0; i < 10000; i += 2) {
+      tree.insert(i, i * 10);
+    }
+    Random random = new Random(5);
+    for (int round = 0; round < 100; round++) {
+      Integer[] keys = new Integer[random.nextInt(300)];
+      int base = random.nextInt(10000);
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = round % 2 == 0 ? random.nextInt(10001) - 1 : base + random.nextInt(50);
+      }
+      Integer[] values = new Integer[keys.length];
+      tree.getAll(keys, values);
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(tree.search(keys[i]), values[i]);
+      }
+    }
+    try {
+      tree.searchBatch(new Integer[] { 2, 1 }, new Integer[2]);
+      fail("unsorted keys were accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  // Testing snapshot round trips and the detection of corrupt snapshots
+  @Test
+  public void testSnapshot() throws Exception {
+    BPlusTree<String, Integer> tree = new BPlusTree<String, Integer>(3);
+    for (int i = 0; i < 20000; i++) {
+      tree.insert("key" + i, i);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(20000, Snapshot.write(tree, out, Serializer.STRING, Serializer.INTEGER));
+    byte[] bytes = out.toByteArray();
+
+    BPlusTree<String, Integer> restored = new BPlusTree<String, Integer>(3);
+    assertEquals(20000, Snapshot.read(new ByteArrayInputStream(bytes), Serializer.STRING, Serializer.INTEGER, restored, 1.0));
+    testTreeInvariants(restored);
+    for (int i = 0; i < 20000; i++) {
+      assertEquals(i, (int) restored.search("key" + i));
+    }
+
+    // an empty tree round trips too
+    out.reset();
+    Snapshot.write(new BPlusTree<String, Integer>(), out, Serializer.STRING, Serializer.INTEGER);
+    BPlusTree<String, Integer> empty = new BPlusTree<String, Integer>();
+    assertEquals(0, Snapshot.read(new ByteArrayInputStream(out.toByteArray()), Serializer.STRING, Serializer.INTEGER, empty, 1.0));
+    assertNull(empty.root);
+
+    // a flipped byte or a truncated file is rejected and leaves the tree empty
+    byte[] corrupt = bytes.clone();
+    corrupt[bytes.length / 2] ^= 1;
+    byte[] truncated = Arrays.copyOf(bytes, bytes.length - 5);
+    byte[] huge = bytes.clone();  // first block length 0x7fffffff
+    huge[8] = 0x7f;
+    huge[9] = huge[10] = huge[11] = -1;
+    for (byte[] bad : new byte[][] { corrupt, truncated, huge }) {
+      BPlusTree<String, Integer> target = new BPlusTree<String, Integer>(3);
+      try {
+        Snapshot.read(new ByteArrayInputStream(bad), Serializer.STRING, Serializer.INTEGER, target, 1.0);
+        fail("corrupt snapshot was accepted");
+      } catch (IOException expected) {
+      }
+      assertNull(target.root);
+    }
+
+    // with fixed-size entries a block cannot be longer than BLOCK_SIZE
+    BPlusTree<Long, Long> longs = new BPlusTree<Long, Long>(3);
+    longs.insert(1L, 1L);
+    out.reset();
+    Snapshot.write(longs, out, Serializer.LONG, Serializer.LONG);
+    byte[] longBytes = out.toByteArray();
+    longBytes[8] = 0x00;
+    longBytes[9] = 0x01;  // 65536 + 16 bytes
+    try {
+      Snapshot.read(new ByteArrayInputStream(longBytes), Serializer.LONG, Serializer.LONG, new BPlusTree<Long, Long>(3), 1.0);
+      fail("oversized block was accepted");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().startsWith("corrupt snapshot block length"));
+    }
+
+    // an entry larger than a block gets a block of its own
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 300000) {
+      large.append("large");
+    }
+    tree.insert(large.toString(), -1);
+    out.reset();
+    Snapshot.write(tree, out, Serializer.STRING, Serializer.INTEGER);
+    restored = new BPlusTree<String, Integer>(3);
+    assertEquals(20001, Snapshot.read(new ByteArrayInputStream(out.toByteArray()), Serializer.STRING, Serializer.INTEGER, restored, 1.0));
+    assertEquals(-1, (int) restored.search(large.toString()));
+    assertEquals(19999, (int) restored.search("key19999"));
+  }
+
+  // Testing recovery of the write-ahead-logged tree from checkpoints, log files and a torn tail
+  @Test
+  public void testDurableTree() throws Exception {
+    File dir = Files.createTempDirectory("bplustree-wal").toFile();
+    DurableBPlusTree<Long, Long> tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 20000);
+    TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+    Random random = new Random(4);
+    for (int i = 0; i < 5000; i++) {
+      long key = random.nextInt(1000);
+      if (random.nextInt(3) == 0) {
+        tree.delete(key);
+        expected.remove(key);
+      } else {
+        tree.insert(key, (long) i);
+        expected.put(key, (long) i);
+      }
+    }
+    tree.close();
+
+    // a torn record at the end of the newest log file is ignored
+    File[] logs = dir.listFiles();
+    Arrays.sort(logs);
+    File newest = null;
+    for (File file : logs) {
+      if (file.getName().endsWith(".log")) {
+        newest = file;
+      }
+    }
+    try (FileOutputStream out = new FileOutputStream(newest, true)) {
+      out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+    }
+
+    for (int reopen = 0; reopen < 2; reopen++) {
+      tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 20000);
+      for (long key = 0; key < 1000; key++) {
+        assertEquals(expected.get(key), tree.search(key));
+      }
+      tree.insert(-1L, (long) reopen);
+      expected.put(-1L, (long) reopen);
+      tree.close();
+    }
+
+    // a garbage length is the end of the log, not a 2GB allocation
+    File garbage = new File(dir, "garbage.log");
+    try (FileOutputStream out = new FileOutputStream(garbage)) {
+      out.write(new byte[] { 0x7f, -1, -1, -1, 1, 2, 3, 4, 1, 2, 3 });
+    }
+    final AtomicInteger records = new AtomicInteger();
+    WriteAheadLog.replay(garbage.toPath(), Serializer.LONG, Serializer.LONG, new WriteAheadLog.RecordHandler<Long, Long>() {
+      public void insert(Long key, Long value) {
+        records.incrementAndGet();
+      }
+
+      public void delete(Long key) {
+        records.incrementAndGet();
+      }
+    });
+    assertEquals(0, records.get());
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  // A checkpoint that cannot be read fails recovery unless the logs it
+  // replaced still exist, and is never deleted
+  @Test
+  public void testDurableTreeCorruptCheckpoint() throws Exception {
+    File dir = Files.createTempDirectory("bplustree-wal").toFile();
+    DurableBPlusTree<Long, Long> tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 1 << 30);
+    for (long key = 0; key < 1000; key++) {
+      tree.insert(key, key);
+    }
+    tree.checkpoint();
+    for (long key = 1000; key < 1010; key++) {
+      tree.insert(key, key);
+    }
+    tree.close();
+
+    // the logs before the checkpoint are gone: opening fails and keeps the file
+    File checkpoint = null;
+    for (File file : dir.listFiles()) {
+      if (file.getName().endsWith(".ckpt")) {
+        checkpoint = file;
+      }
+    }
+    byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+    bytes[bytes.length / 2] ^= 1;
+    Files.write(checkpoint.toPath(), bytes);
+    try {
+      DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 1 << 30);
+      fail("corrupt checkpoint was accepted");
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(checkpoint.exists());
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+
+    // with every log still there, recovery replays them instead and moves
+    // the unreadable checkpoint aside
+    tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 1 << 30);
+    for (long key = 0; key < 100; key++) {
+      tree.insert(key, key);
+    }
+    tree.close();
+    File garbage = new File(dir, checkpoint.getName().replaceAll("[0-9]+", "0000000000000002"));
+    Files.write(garbage.toPath(), new byte[] { 1, 2, 3 });
+    tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 1 << 30);
+    for (long key = 0; key < 100; key++) {
+      assertEquals((Long) key, tree.search(key));
+    }
+    tree.close();
+    assertTrue(new File(dir, garbage.getName() + ".corrupt").exists());
+
+    // reopening without new records does not write another checkpoint
+    List<String> checkpoints = checkpointNames(dir);
+    assertEquals(1, checkpoints.size());
+    tree = DurableBPlusTree.open(dir.toPath(), 4, Serializer.LONG, Serializer.LONG, 100000, 1 << 30);
+    assertEquals((Long) 99L, tree.search(99L));
+    tree.close();
+    assertEquals(checkpoints, checkpointNames(dir));
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static List<String> checkpointNames(File dir) {
+    List<String> names = new ArrayList<String>();
+    for (File file : dir.listFiles()) {
+      if (file.getName().endsWith(".ckpt")) {
+        names.add(file.getName());
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  // Testing the byte string tree with long shared prefixes against a TreeMap
+  @Test
+  public void testBytesTreeRandomOperations() {
+    for (int d = 1; d <= 8; d *= 2) {
+      for (boolean truncate : new boolean[] { true, false }) {
+        BytesBPlusTree<Integer> tree = new BytesBPlusTree<Integer>(d, 3 - d % 3, truncate);
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        Random random = new Random(d);
+        for (int i = 0; i < 20000; i++) {
+          String key = "https://example.com/" + (char) ('a' + random.nextInt(3)) + "/item" + random.nextInt(700);
+          if (random.nextInt(3) == 0) {
+            tree.delete(key);
+            expected.remove(key);
+          } else {
+            tree.insert(key, i);
+            expected.put(key, i);
+          }
+        }
+        assertNull(tree.search(""));
+        for (Map.Entry<String, Integer> e : expected.entrySet()) {
+          assertEquals(e.getValue(), tree.search(e.getKey()));
+        }
+        assertNull(tree.search("https://example.com/a/item"));
+        if (tree.root != null) {
+          ArrayList<String> keys = new ArrayList<String>();
+          testBytesNodeInvariants(tree, tree.root, null, null, keys);
+          assertEquals(new ArrayList<String>(expected.keySet()), keys);
+          BytesNode node = tree.root;
+          while (!node.isLeafNode) {
+            node = ((BytesIndexNode) node).children[0];
+          }
+          keys.clear();
+          for (BytesLeafNode leaf = (BytesLeafNode) node; leaf != null; leaf = leaf.nextLeaf) {
+            for (byte[] key : leaf.keys()) {
+              keys.add(new String(key, StandardCharsets.UTF_8));
+            }
+          }
+          assertEquals(new ArrayList<String>(expected.keySet()), keys);
+        }
+        for (String key : expected.keySet()) {
+          tree.delete(key);
+        }
+        assertNull(tree.root);
+      }
+    }
+  }
+
+  /**
+   * Check node sizes, that every key lies within the separators above it,
+   * and collect the keys of the leaves in order
+   */
+  public void testBytesNodeInvariants(BytesBPlusTree<?> tree, BytesNode node, byte[] low, byte[] high, List<String> keys) {
+    if (node != tree.root) {
+      int d = node.isLeafNode ? tree.getLeafOrder() : tree.getIndexOrder();
+      assertFalse(node.isOverflowed(d));
+      assertFalse(node.isUnderflowed(d));
+    }
+    if (node.isLeafNode) {
+      for (byte[] key : ((BytesLeafNode) node).keys()) {
+        assertTrue(low == null || Arrays.compareUnsigned(low, key) <= 0);
+        assertTrue(high == null || Arrays.compareUnsigned(key, high) < 0);
+        keys.add(new String(key, StandardCharsets.UTF_8));
+      }
+      return;
+    }
+    BytesIndexNode index = (BytesIndexNode) node;
+    for (int i = 0; i <= index.size; i++) {
+      testBytesNodeInvariants(tree, index.children[i], i == 0 ? low : index.keys[i - 1],
+          i == index.size ? high : index.keys[i], keys);
+    }
+  }
+
+  // Testing rank, select, countRange and rows against a TreeMap through inserts, deletes and batches
+  @Test
+  public void testOrderStatistics() {
+    for (int d : LEAF_ORDERS) {
+      BPlusTree<Integer, Integer> tree = orderedTree(d);
+      tree.setFingerEnabled(true);  // the counts must not be bypassed by the finger
+      TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+      Random random = new Random(d);
+      for (int i = 0; i < 1000; i++) {
+        int key = random.nextInt(3000);
+        if (!expected.containsKey(key)) {
+          tree.insert(key, i);
+          expected.put(key, i);
+        }
+      }
+      tree.setOrderStatisticsEnabled(true);  // counts the existing tree
+      for (int round = 0; round < 6; round++) {
+        if (round % 2 == 0) {
+          for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(3000);
+            if (random.nextBoolean()) {
+              tree.delete(key);
+              expected.remove(key);
+            } else if (!expected.containsKey(key)) {
+              tree.insert(key, i);
+              expected.put(key, i);
+            }
+          }
+        } else {
+          TreeMap<Integer, Integer> batch = new TreeMap<Integer, Integer>();
+          for (int i = 0; i < 200 * round; i++) {
+            int key = random.nextInt(3000);
+            batch.put(key, random.nextInt(3) == 0 ? null : i);
+          }
+          Integer[] keys = batch.keySet().toArray(new Integer[0]);
+          Integer[] values = batch.values().toArray(new Integer[0]);
+          tree.applyBatch(keys, values);
+          for (Map.Entry<Integer, Integer> e : batch.entrySet()) {
+            if (e.getValue() == null) {
+              expected.remove(e.getKey());
+            } else {
+              expected.put(e.getKey(), e.getValue());
+            }
+          }
+        }
+        assertSameEntries(tree, expected);
+        testCounts(tree.root);
+        assertEquals(expected.size(), tree.countRange(null, null));
+        ArrayList<Integer> keys = new ArrayList<Integer>(expected.keySet());
+        for (int i = 0; i < keys.size(); i++) {
+          assertEquals(keys.get(i), tree.select(i).getKey());
+          assertEquals((long) i, tree.rank(keys.get(i)));
+        }
+        for (int key = -1; key <= 3000; key += 7) {
+          assertEquals(expected.headMap(key).size(), tree.rank(key));
+          assertEquals(expected.subMap(key, key + 100).size(), tree.countRange(key, key + 100));
+        }
+        int from = keys.size() / 3;
+        int position = from;
+        for (Map.Entry<Integer, Integer> e : tree.rows(from, from + 50)) {
+          assertEquals(keys.get(position), e.getKey());
+          assertEquals(expected.get(e.getKey()), e.getValue());
+          position++;
+        }
+        assertEquals(Math.min(keys.size(), from + 50), position);
+      }
+      try {
+        tree.select(expected.size());
+        fail("selected past the last entry");
+      } catch (IndexOutOfBoundsException e) {
+        // expected
+      }
+    }
+
+    // bulk loaded trees are counted as well
+    BPlusTree<Integer, Integer> loaded = new BPlusTree<Integer, Integer>(3);
+    loaded.setOrderStatisticsEnabled(true);
+    Integer[] keys = new Integer[5000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = 2 * i;
+    }
+    loaded.bulkLoad(keys, keys, 0.7);
+    testCounts(loaded.root);
+    assertEquals(Integer.valueOf(4000), loaded.select(2000).getKey());
+    assertEquals(2000, loaded.countRange(1000, 5000));
+  }
+
+  @Test
+  public void testSplitPolicies() {
+    for (int d : LEAF_ORDERS) {
+      // appends fill the nodes, except the last ones of each level
+      for (SplitPolicy policy : new SplitPolicy[] {SplitPolicy.RIGHTMOST, SplitPolicy.ADAPTIVE}) {
+        BPlusTree<Integer, Integer> tree = orderedTree(d);
+        tree.setSplitPolicy(policy);
+        tree.setFingerEnabled(d % 2 == 0);
+        for (int i = 0; i < 5000; i++) {
+          tree.insert(i, i);
+        }
+        TreeInspector.Stats stats = TreeInspector.inspect(tree);
+        assertTrue(stats.toString(), stats.isValid());
+        assertEquals(5000, stats.entries);
+        assertTrue(policy + " " + stats, stats.leafFillFactor(d) > 0.95);
+        Node<Integer, Integer> node = tree.root;
+        while (!node.isLeafNode) {
+          node = ((IndexNode<Integer, Integer>) node).children.get(0);
+        }
+        for (LeafNode<Integer, Integer> leaf = (LeafNode<Integer, Integer>) node; leaf.nextLeaf != null; leaf = leaf.nextLeaf) {
+          assertEquals(2 * d, leaf.keys.size());
+        }
+      }
+
+      // interleaved increasing runs are only recognized per leaf
+      BPlusTree<Integer, Integer> runs = orderedTree(d);
+      runs.setSplitPolicy(SplitPolicy.ADAPTIVE);
+      BPlusTree<Integer, Integer> midpoint = orderedTree(d);
+      for (int i = 0; i < 2000; i++) {
+        for (int run = 0; run < 4; run++) {
+          runs.insert(run * 1000000 + i, i);
+          midpoint.insert(run * 1000000 + i, i);
+        }
+      }
+      TreeInspector.Stats runStats = TreeInspector.inspect(runs);
+      assertTrue(runStats.toString(), runStats.isValid());
+      assertTrue(runStats.toString(), runStats.leafFillFactor(d) > 0.85);
+      assertTrue(runStats.leaves() < TreeInspector.inspect(midpoint).leaves() * 3 / 4);
+
+      // random inserts and deletes stay correct with every policy
+      for (SplitPolicy policy : new SplitPolicy[] {SplitPolicy.RIGHTMOST, SplitPolicy.ADAPTIVE}) {
+        BPlusTree<Integer, Integer> tree = orderedTree(d);
+        tree.setSplitPolicy(policy);
+        tree.setOrderStatisticsEnabled(d > 2);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        Random random = new Random(d);
+        for (int i = 0; i < 20000; i++) {
+          int key = random.nextInt(2) == 0 ? i : random.nextInt(20000);
+          if (expected.containsKey(key)) {
+            tree.delete(key);
+            expected.remove(key);
+          } else {
+            tree.insert(key, i);
+            expected.put(key, i);
+          }
+        }
+        TreeInspector.Stats stats = TreeInspector.inspect(tree);
+        assertTrue(stats.toString(), stats.isValid());
+        assertEquals(expected.size(), stats.entries);
+        assertSameEntries(tree, expected);
+        if (d > 2) {
+          testCounts(tree.root);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBloomFilter() {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(4);
+    TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+    for (int i = 0; i < 2000; i += 2) {
+      tree.insert(i, i);
+      expected.put(i, i);
+    }
+    BloomFilter<Integer> filter = new BloomFilter<Integer>(0.01, 1 << 20);
+    tree.setBloomFilter(filter);  // built from the existing entries
+    assertEquals(1, filter.rebuilds());
+    Random random = new Random(1);
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 1000; i++) {
+        int key = random.nextInt(40000);
+        if (random.nextInt(3) == 0) {
+          tree.delete(key);
+          expected.remove(key);
+        } else if (!expected.containsKey(key)) {
+          tree.insert(key, i);
+          expected.put(key, i);
+        }
+      }
+      // no false negatives, whatever was deleted and rebuilt
+      for (int key = 0; key < 40000; key++) {
+        assertEquals(expected.get(key), tree.search(key));
+      }
+    }
+    assertTrue(filter.toString(), filter.rebuilds() > 1);
+    assertEquals(20 * 40000, filter.lookups());
+    assertTrue(filter.toString(), filter.negatives() > 20 * (40000 - 15000));
+    assertTrue(filter.toString(), filter.observedFalsePositiveRate() < 0.05);
+    assertTrue(filter.sizeBytes() <= 1 << 20);
+
+    // batches and bulk loads feed the filter too
+    Integer[] keys = {-5, -3, 1, 99999};
+    Integer[] values = {5, 3, null, 9};
+    tree.applyBatch(keys, values);
+    assertEquals(Integer.valueOf(5), tree.search(-5));
+    assertEquals(Integer.valueOf(9), tree.search(99999));
+    assertNull(tree.search(1));
+    BPlusTree<Integer, Integer> loaded = new BPlusTree<Integer, Integer>(4);
+    BloomFilter<Integer> loadedFilter = new BloomFilter<Integer>(0.01, 1 << 20);
+    loaded.setBloomFilter(loadedFilter);
+    Integer[] sorted = new Integer[5000];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = 3 * i;
+    }
+    loaded.bulkLoad(sorted, sorted, 1.0);
+    for (int key = 0; key < 3 * sorted.length; key++) {
+      assertEquals(key % 3 == 0 ? Integer.valueOf(key) : null, loaded.search(key));
+    }
+    assertTrue(loadedFilter.toString(), loadedFilter.observedFalsePositiveRate() < 0.05);
+
+    // a budget too small for the keys raises the false positive rate but never loses a key
+    BPlusTree<Integer, Integer> small = new BPlusTree<Integer, Integer>(4);
+    small.setBloomFilter(new BloomFilter<Integer>(0.01, 64));
+    for (int i = 0; i < 1000; i++) {
+      small.insert(i, i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Integer.valueOf(i), small.search(i));
+    }
+    assertEquals(64, small.getBloomFilter().sizeBytes());
+    small.setBloomFilter(null);
+    assertNull(small.search(-1));
+  }
+
+  @Test
+  public void testSpliterator() {
+    ToLongFunction<Integer> identity = new ToLongFunction<Integer>() {
+      public long applyAsLong(Integer value) {
+        return value;
+      }
+    };
+    for (int d : LEAF_ORDERS) {
+      for (int entries : new int[] {0, 1, 7, 5000}) {
+        BPlusTree<Integer, Integer> tree = orderedTree(d);
+        tree.setOrderStatisticsEnabled(d % 2 == 0);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        Random random = new Random(entries + d);
+        while (expected.size() < entries) {
+          int key = random.nextInt(4 * entries);
+          if (!expected.containsKey(key)) {
+            tree.insert(key, key / 2);
+            expected.put(key, key / 2);
+          }
+        }
+
+        // sequential and parallel streams see every entry once, in order
+        Iterator<Map.Entry<Integer, Integer>> scan = expected.entrySet().iterator();
+        for (Iterator<Map.Entry<Integer, Integer>> i = tree.stream().iterator(); i.hasNext();) {
+          assertEquals(scan.next(), i.next());
+        }
+        assertFalse(scan.hasNext());
+        List<Map.Entry<Integer, Integer>> collected = tree.parallelStream().collect(Collectors.<Map.Entry<Integer, Integer>>toList());
+        assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expected.entrySet()), collected);
+
+        // splitting down to single subtrees covers the tree exactly once
+        List<Spliterator<Map.Entry<Integer, Integer>>> pieces = new ArrayList<Spliterator<Map.Entry<Integer, Integer>>>();
+        pieces.add(tree.spliterator(null, null));
+        for (int i = 0; i < pieces.size(); i++) {
+          Spliterator<Map.Entry<Integer, Integer>> prefix;
+          while ((prefix = pieces.get(i).trySplit()) != null) {
+            pieces.add(i, prefix);
+          }
+        }
+        final List<Integer> keys = new ArrayList<Integer>();
+        long sized = 0;
+        for (Spliterator<Map.Entry<Integer, Integer>> piece : pieces) {
+          assertTrue(piece.hasCharacteristics(Spliterator.SORTED));
+          assertEquals(tree.isOrderStatisticsEnabled(), piece.hasCharacteristics(Spliterator.SIZED));
+          sized += piece.getExactSizeIfKnown();
+          piece.forEachRemaining(new Consumer<Map.Entry<Integer, Integer>>() {
+            public void accept(Map.Entry<Integer, Integer> e) {
+              keys.add(e.getKey());
+            }
+          });
+        }
+        assertEquals(new ArrayList<Integer>(expected.keySet()), keys);
+        if (tree.isOrderStatisticsEnabled()) {
+          assertEquals(entries, sized);
+        }
+
+        // bounded ranges, through tryAdvance and through the aggregates
+        for (int round = 0; round < 20; round++) {
+          int from = random.nextInt(4 * entries + 2) - 1;
+          int to = from + random.nextInt(entries + 2);
+          SortedMap<Integer, Integer> range = expected.subMap(from, to);
+          Spliterator<Map.Entry<Integer, Integer>> spliterator = tree.spliterator(from, to);
+          Iterator<Map.Entry<Integer, Integer>> expectedRange = range.entrySet().iterator();
+          while (spliterator.tryAdvance(new Consumer<Map.Entry<Integer, Integer>>() {
+            public void accept(Map.Entry<Integer, Integer> e) {
+              keys.add(e.getKey());
+            }
+          })) {
+            assertEquals(expectedRange.next().getKey(), keys.get(keys.size() - 1));
+          }
+          assertFalse(expectedRange.hasNext());
+
+          long sum = 0;
+          for (int value : range.values()) {
+            sum += value;
+          }
+          assertEquals(range.size(), TreeAggregates.count(tree, from, to));
+          assertEquals(sum, TreeAggregates.sum(tree, from, to, identity));
+        }
+        assertEquals(expected.size(), TreeAggregates.count(tree, null, null));
+        // a non-commutative reduce keeps the key order
+        String joined = TreeAggregates.reduce(tree, null, null, "", new TreeAggregates.Accumulator<Integer, Integer, String>() {
+          public String accumulate(String result, Integer key, Integer value) {
+            return result + key + ",";
+          }
+        }, new BinaryOperator<String>() {
+          public String apply(String left, String right) {
+            return left + right;
+          }
+        });
+        StringBuilder keyList = new StringBuilder();
+        for (int key : expected.keySet()) {
+          keyList.append(key).append(',');
+        }
+        assertEquals(keyList.toString(), joined);
+        final int median = entries == 0 ? 0 : new ArrayList<Integer>(expected.keySet()).get(entries / 2);
+        assertEquals(entries / 2, TreeAggregates.count(ForkJoinPool.commonPool(), tree, null, null,
+            new BiPredicate<Integer, Integer>() {
+              public boolean test(Integer key, Integer value) {
+                return key < median;
+              }
+            }));
+      }
+    }
+  }
+
+  // Stress test: concurrent writers on disjoint keys while a reader scans,
+  // with range partitions splitting online and with hash partitions
+  @Test
+  public void testShardedTree() throws Exception {
+    final int threads = 8;
+    final int keysPerThread = 10000;
+    for (boolean byHash : new boolean[] {false, true}) {
+      final ShardedBPlusTree<Integer, Integer> tree = byHash
+          ? new ShardedBPlusTree<Integer, Integer>(7, 2)
+          : new ShardedBPlusTree<Integer, Integer>(new Integer[] {threads * keysPerThread / 2}, 2);
+      if (!byHash) {
+        tree.setSplitThreshold(2000);
+      }
+      final AtomicInteger errors = new AtomicInteger();
+      final AtomicBoolean done = new AtomicBoolean();
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        final int id = t;
+        workers[t] = new Thread(new Runnable() {
+          public void run() {
+            for (int i = 0; i < keysPerThread; i++) {
+              int key = i * threads + id;
+              tree.insert(key, key);
+              if (tree.search(key) != key) {
+                errors.incrementAndGet();
+              }
+            }
+            for (int i = 0; i < keysPerThread; i += 2) {
+              tree.delete(i * threads + id);
+            }
+          }
+        });
+      }
+      Thread scanner = new Thread(new Runnable() {
+        public void run() {
+          while (!done.get()) {
+            Integer previous = null;
+            for (Map.Entry<Integer, Integer> entry : tree.range(1000, 70000)) {
+              int key = entry.getKey();
+              if (key != entry.getValue() || key < 1000 || key >= 70000 || (previous != null && previous >= key)) {
+                errors.incrementAndGet();
+              }
+              previous = key;
+            }
+          }
+        }
+      });
+      scanner.start();
+      for (Thread worker : workers) {
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      done.set(true);
+      scanner.join();
+      assertEquals(0, errors.get());
+
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int key = 0; key < threads * keysPerThread; key++) {
+        if ((key / threads) % 2 == 1) {
+          expected.add(key);
+        }
+      }
+      assertEquals(expected.size(), tree.size());
+      List<Integer> scanned = new ArrayList<Integer>();
+      for (Map.Entry<Integer, Integer> entry : tree.range(null, null)) {
+        scanned.add(entry.getKey());
+      }
+      assertEquals(expected, scanned);
+      scanned.clear();
+      for (Map.Entry<Integer, Integer> entry : tree.range(123, 4567)) {
+        scanned.add(entry.getKey());
+      }
+      List<Integer> bounded = new ArrayList<Integer>();
+      for (Integer key : expected) {
+        if (key >= 123 && key < 4567) {
+          bounded.add(key);
+        }
+      }
+      assertEquals(bounded, scanned);
+      for (int key = 0; key < threads * keysPerThread; key++) {
+        assertEquals((key / threads) % 2 == 0 ? null : (Integer) key, tree.search(key));
+      }
+
+      if (byHash) {
+        assertEquals(7, tree.partitions());
+      } else {
+        // the hot partitions split at their medians and stay below the threshold
+        assertTrue(tree.partitions() > 20);
+        for (long size : tree.partitionSizes()) {
+          assertTrue(size <= 2000);
+        }
+        List<Integer> splitKeys = tree.splitKeys();
+        for (int i = 1; i < splitKeys.size(); i++) {
+          assertTrue(splitKeys.get(i - 1) < splitKeys.get(i));
+        }
+        int partitions = tree.partitions();
+        tree.splitPartition(0);
+        assertEquals(partitions + 1, tree.partitions());
+        assertEquals(expected.size(), tree.size());
+      }
+    }
+  }
+
+  @Test
+  public void testDeferredRebalancing() {
+    for (int d : LEAF_ORDERS) {
+      BPlusTree<Integer, Integer> tree = orderedTree(d);
+      tree.setFingerEnabled(d % 2 == 0);
+      tree.setOrderStatisticsEnabled(d > 2);
+      tree.setDeferredRebalancing(true, Integer.MAX_VALUE);
+      TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+      Random random = new Random(d);
+      for (int i = 0; i < 3000; i++) {
+        tree.insert(i, i);
+        expected.put(i, i);
+      }
+      // delete most of a window and refill part of it, like a sliding window
+      for (int round = 0; round < 5; round++) {
+        int window = random.nextInt(2500);
+        for (int key = window; key < window + 500; key++) {
+          if (random.nextInt(10) > 0) {
+            tree.delete(key);
+            expected.remove(key);
+          }
+        }
+        for (int i = 0; i < 100; i++) {
+          int key = window + random.nextInt(500);
+          if (!expected.containsKey(key)) {
+            tree.insert(key, round);
+            expected.put(key, round);
+          }
+        }
+        assertTrue(tree.pendingRebalance() > 0);
+        assertFalse(TreeInspector.inspect(tree).isValid());  // underflowed leaves are left in place
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+          assertEquals(e.getValue(), tree.search(e.getKey()));
+        }
+        assertSameEntries(tree, expected);
+        if (d > 2) {
+          testCounts(tree.root);
+          assertEquals(expected.size(), tree.countRange(null, null));
+        }
+        tree.rebalance();
+        assertEquals(0, tree.pendingRebalance());
+        TreeInspector.Stats stats = TreeInspector.inspect(tree);
+        assertTrue(stats.toString(), stats.isValid());
+        assertSameEntries(tree, expected);
+        if (d > 2) {
+          testCounts(tree.root);
+        }
+      }
+
+      // the threshold rebalances by itself, emptying the tree included
+      tree.setDeferredRebalancing(true, 10);
+      for (Integer key : new ArrayList<Integer>(expected.keySet())) {
+        tree.delete(key);
+        assertTrue(tree.pendingRebalance() < 10);
+      }
+      tree.setDeferredRebalancing(false, 1);
+      assertNull(tree.root);
+    }
+  }
+
+  /**
+   * Check that the counts of every index node match the entries below it
+   *
+   * @return the number of entries below node
+   */
+  public long testCounts(Node<Integer, Integer> node) {
+    if (node == null) {
+      return 0;
+    }
+    if (node.isLeafNode) {
+      return node.keys.size();
+    }
+    IndexNode<Integer, Integer> index = (IndexNode<Integer, Integer>) node;
+    long total = 0;
+    for (int i = 0; i < index.children.size(); i++) {
+      long count = testCounts(index.children.get(i));
+      assertEquals(count, index.counts[i]);
+      total += count;
+    }
+    assertEquals(total, index.total);
+    return total;
+  }
+
+  // Testing the multimap against a TreeMap of lists, with keys holding thousands of values
+  @Test
+  public void testMultimap() {
+    BPlusMultimap<Integer, Integer> multimap = new BPlusMultimap<Integer, Integer>(2, 3);
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<Integer, List<Integer>>();
+    Random random = new Random(19);
+    long size = 0;
+    for (int i = 0; i < 60000; i++) {
+      // a few hot keys get most of the values
+      int key = random.nextInt(4) == 0 ? random.nextInt(2000) : random.nextInt(5);
+      List<Integer> values = expected.get(key);
+      if (random.nextInt(3) == 0) {
+        Integer value = values == null || values.isEmpty() || random.nextInt(4) == 0
+            ? random.nextInt(100) : values.get(random.nextInt(values.size()));
+        boolean removed = values != null && values.remove(value);
+        assertEquals(removed, multimap.delete(key, value));
+        if (removed) {
+          size--;
+          if (values.isEmpty()) {
+            expected.remove(key);
+          }
+        }
+      } else {
+        if (values == null) {
+          values = new ArrayList<Integer>();
+          expected.put(key, values);
+        }
+        values.add(i % 100);
+        multimap.insert(key, i % 100);
+        size++;
+      }
+    }
+    assertEquals(size, multimap.size());
+    assertTrue(expected.get(0).size() > 1000);
+    for (int key = -1; key <= 2000; key++) {
+      List<Integer> values = expected.get(key);
+      ArrayList<Integer> actual = new ArrayList<Integer>();
+      for (Integer value : multimap.getAll(key)) {
+        actual.add(value);
+      }
+      assertEquals(values == null ? new ArrayList<Integer>() : values, actual);
+      assertEquals(actual.size(), multimap.count(key));
+      assertEquals(values != null, multimap.containsKey(key));
+    }
+
+    assertEquals(expected.get(0).size(), multimap.deleteAll(0));
+    assertFalse(multimap.getAll(0).iterator().hasNext());
+    assertEquals(0, multimap.deleteAll(0));
+
+    Iterator<Integer> values = multimap.getAll(1).iterator();
+    values.next();
+    multimap.insert(1, 7);
+    try {
+      values.next();
+      fail("iterator missed a change to the values");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+
+  // Testing the row id multimap against a TreeMap of sorted lists
+  @Test
+  public void testLongMultimap() {
+    BPlusLongMultimap<Integer> multimap = new BPlusLongMultimap<Integer>(2, 3);
+    TreeMap<Integer, List<Long>> expected = new TreeMap<Integer, List<Long>>();
+    Random random = new Random(19);
+    long size = 0;
+    for (int i = 0; i < 60000; i++) {
+      int key = random.nextInt(4) == 0 ? random.nextInt(2000) : random.nextInt(5);
+      List<Long> values = expected.get(key);
+      if (random.nextInt(3) == 0) {
+        Long value = values == null || values.isEmpty() || random.nextInt(4) == 0
+            ? Long.valueOf(random.nextInt(100)) : values.get(random.nextInt(values.size()));
+        boolean removed = values != null && values.remove(value);
+        assertEquals(removed, multimap.delete(key, value));
+        if (removed) {
+          size--;
+          if (values.isEmpty()) {
+            expected.remove(key);
+          }
+        }
+      } else {
+        if (values == null) {
+          values = new ArrayList<Long>();
+          expected.put(key, values);
+        }
+        // mostly ascending row ids, some out of order and some repeated
+        long value = random.nextInt(8) == 0 ? random.nextInt(100) : i;
+        values.add(value);
+        multimap.insert(key, value);
+        size++;
+      }
+    }
+    assertEquals(size, multimap.size());
+    assertTrue(expected.get(0).size() > 1000);
+    for (int key = -1; key <= 2000; key++) {
+      List<Long> values = expected.get(key);
+      List<Long> sorted = values == null ? new ArrayList<Long>() : new ArrayList<Long>(values);
+      Collections.sort(sorted);
+      ArrayList<Long> actual = new ArrayList<Long>();
+      for (Iterator<Long> it = multimap.getAll(key); it.hasNext(); ) {
+        actual.add(it.next());
+      }
+      assertEquals(sorted, actual);
+      assertEquals(actual.size(), multimap.count(key));
+      assertEquals(values != null, multimap.containsKey(key));
+      if (values != null) {
+        assertTrue(multimap.contains(key, values.get(0)));
+      }
+      assertFalse(multimap.contains(key, -1));
+    }
+
+    assertEquals(expected.get(0).size(), multimap.deleteAll(0));
+    assertFalse(multimap.getAll(0).hasNext());
+    assertEquals(0, multimap.deleteAll(0));
+
+    Iterator<Long> values = multimap.getAll(1);
+    values.next();
+    multimap.insert(1, 7);
+    try {
+      values.next();
+      fail("iterator missed a change to the values");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+
+  // Testing the inspector's statistics on a valid tree and on damaged ones
+  @Test
+  public void testInspector() throws IOException {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(2, 3);
+    TreeInspector.Stats empty = TreeInspector.inspect(tree);
+    assertEquals(0, empty.height);
+    assertTrue(empty.isValid());
+    assertEquals("", Utils.outputTree(tree));
+
+    for (int i = 0; i < 5000; i++) {
+      tree.insert(i * 7 % 5000, i);
+    }
+    TreeInspector.Stats stats = TreeInspector.inspect(tree);
+    assertTrue(stats.toString(), stats.isValid());
+    assertEquals(5000, stats.entries);
+    assertEquals(treeDepth(tree.root), stats.height);
+    assertEquals(1L, (long) stats.nodesPerLevel.get(0));
+    long leaves = 0;
+    for (long count : stats.leafFill) {
+      leaves += count;
+    }
+    assertEquals(stats.leaves(), leaves);
+    assertTrue(stats.leafFillFactor(2) >= 0.5 && stats.leafFillFactor(2) <= 1);
+
+    // the dump streams the same text outputTree returns
+    StringBuilder dump = new StringBuilder();
+    TreeInspector.dump(tree, dump);
+    assertEquals(Utils.outputTree(tree), dump.toString());
+    assertEquals(stats.height, dump.toString().split("%%", -1).length - 1);
+
+    // swap two keys of a leaf
+    Node<Integer, Integer> node = tree.root;
+    while (!node.isLeafNode) {
+      node = ((IndexNode<Integer, Integer>) node).children.get(1);
+    }
+    LeafNode<Integer, Integer> leaf = (LeafNode<Integer, Integer>) node;
+    Collections.swap(leaf.keys, 0, 1);
+    stats = TreeInspector.inspect(tree);
+    assertFalse(stats.isValid());
+    assertTrue(stats.leafChainConsistent);
+    assertEquals(1, stats.violationCount);
+    Collections.swap(leaf.keys, 0, 1);
+
+    // unlink a leaf from the chain
+    LeafNode<Integer, Integer> next = leaf.nextLeaf;
+    leaf.nextLeaf = next.nextLeaf;
+    stats = TreeInspector.inspect(tree);
+    assertFalse(stats.leafChainConsistent);
+    assertEquals(0, stats.violationCount);
+    leaf.nextLeaf = next;
+
+    // underflow a leaf
+    leaf.keys.remove(0);
+    leaf.values.remove(0);
+    leaf.keys.remove(0);
+    leaf.values.remove(0);
+    stats = TreeInspector.inspect(tree);
+    assertEquals(1, stats.violationCount);
+    assertTrue(stats.violations.get(0), stats.violations.get(0).contains("keys, expected 2..4"));
+  }
+
+  // Testing that the metrics count splits, merges, root changes and lookups
+  @Test
+  public void testMetrics() throws Exception {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(2);
+    TreeMetrics metrics = new TreeMetrics();
+    tree.setMetrics(metrics);
+    for (int i = 0; i < 1000; i++) {
+      tree.insert(i, i);
+    }
+    int height = 0;
+    for (Node<Integer, Integer> node = tree.root; node != null;
+        node = node.isLeafNode ? null : ((IndexNode<Integer, Integer>) node).children.get(0)) {
+      height++;
+    }
+    TreeMetrics.Snapshot inserted = metrics.snapshot();
+    assertTrue(inserted.leafSplits > 0);
+    assertTrue(inserted.indexSplits > 0);
+    assertEquals(height - 1, inserted.rootSplits);
+    assertEquals(1000, inserted.insertLatency.count());
+
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Integer.valueOf(i), tree.search(i));
+    }
+    TreeMetrics.Snapshot searched = metrics.snapshot().minus(inserted);
+    assertEquals(0, searched.leafSplits);
+    assertEquals(1000, searched.lookups);
+    assertEquals(1000, searched.searchLatency.count());
+    assertEquals(0, searched.insertLatency.count());
+    assertEquals(1000L * height, searched.nodesVisited);
+    assertTrue(searched.comparisons >= searched.nodesVisited);
+
+    for (int i = 0; i < 1000; i++) {
+      tree.delete(i);
+    }
+    assertNull(tree.root);
+    TreeMetrics.Snapshot deleted = metrics.snapshot();
+    assertTrue(deleted.leafMerges > 0);
+    assertTrue(deleted.indexMerges > 0);
+    assertTrue(deleted.leafRedistributions + deleted.indexRedistributions > 0);
+    assertEquals(deleted.rootSplits + 1, deleted.rootCollapses);
+    assertEquals(1000, deleted.deleteLatency.count());
+
+    // the same counters through JMX
+    ObjectName name = metrics.register("testMetrics");
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(deleted.leafMerges, server.getAttribute(name, "LeafMerges"));
+      assertEquals(1000L, server.getAttribute(name, "Lookups"));
+      server.invoke(name, "reset", null, null);
+      assertEquals(0L, server.getAttribute(name, "LeafMerges"));
+    } finally {
+      metrics.unregister();
+    }
+
+    // switched off, nothing is recorded
+    tree.setMetrics(null);
+    tree.insert(1, 1);
+    tree.search(1);
+    assertEquals(0, metrics.getInsertCount());
+    assertEquals(0, metrics.getLookups());
+  }
+
+  // Testing the long-specialized tree against a TreeMap under random inserts and deletes
+  @Test
+  public void testLongTreeRandomOperations() {
+    for (int d = 1; d <= 16; d *= 2) {
+      LongBPlusTree tree = new LongBPlusTree(d, d + 1);
+      TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+      Random random = new Random(d);
+      for (int i = 0; i < 50000; i++) {
+        long key = random.nextInt(5000);
+        if (random.nextInt(3) == 0) {
+          tree.delete(key);
+          expected.remove(key);
+        } else {
+          tree.insert(key, i);
+          expected.put(key, (long) i);
+        }
+      }
+      testLongTreeInvariants(tree, tree.root);
+      for (long key = 0; key < 5000; key++) {
+        Long value = expected.get(key);
+        assertEquals(value == null ? -1L : value.longValue(), tree.search(key, -1L));
+      }
+      for (Map.Entry<Long, Long> e : expected.entrySet()) {
+        tree.delete(e.getKey());
+      }
+      assertTrue(tree.root == null);
+    }
+  }
+
+  // Testing the off-heap tree against a TreeMap, and that freed nodes are reused
+  @Test
+  public void testOffHeapTree() {
+    for (int d = 1; d <= 16; d *= 2) {
+      OffHeapBPlusTree tree = new OffHeapBPlusTree(d, d + 1);
+      TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+      Random random = new Random(d);
+      for (int i = 0; i < 50000; i++) {
+        long key = random.nextInt(5000);
+        if (random.nextInt(3) == 0) {
+          tree.delete(key);
+          expected.remove(key);
+        } else {
+          tree.insert(key, i);
+          expected.put(key, (long) i);
+        }
+      }
+      assertEquals(expected.size(), tree.size());
+      for (long key = 0; key < 5000; key++) {
+        Long value = expected.get(key);
+        assertEquals(value == null ? -1L : value.longValue(), tree.search(key, -1L));
+        assertEquals(value != null, tree.containsKey(key));
+      }
+
+      // emptying and refilling the tree takes no new slabs
+      for (Map.Entry<Long, Long> e : expected.entrySet()) {
+        tree.delete(e.getKey());
+      }
+      assertEquals(0, tree.size());
+      assertEquals(0, tree.nodes());
+      long allocated = tree.allocatedBytes();
+      int freed = tree.freeNodes();
+      for (Map.Entry<Long, Long> e : expected.entrySet()) {
+        tree.insert(e.getKey(), e.getValue());
+      }
+      assertEquals(allocated, tree.allocatedBytes());
+      assertTrue(tree.freeNodes() < freed);
+      for (Map.Entry<Long, Long> e : expected.entrySet()) {
+        assertEquals(e.getValue().longValue(), tree.search(e.getKey(), -1L));
+      }
+
+      tree.clear();
+      assertEquals(-1L, tree.search(expected.firstKey(), -1L));
+      tree.close();
+      try {
+        tree.search(0, -1L);
+        fail("closed tree is still usable");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+
+    // the largest leaf order whose node, header included, fits in a 1MB slab
+    OffHeapBPlusTree largest = new OffHeapBPlusTree(32767, 1);
+    largest.insert(1, 1);
+    assertEquals(1L, largest.search(1, -1L));
+    largest.close();
+    try {
+      new OffHeapBPlusTree(32768, 1);
+      fail("a node larger than a slab was accepted");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  // Testing range scans and cursor movement in both directions
+  @Test
+  public void testRangeAndCursor() {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(3);
+    ArrayList<Integer> numbers = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i += 2) {
+      numbers.add(i);
+    }
+    Collections.shuffle(numbers, new Random(7));
+    for (Integer n : numbers) {
+      tree.insert(n, n * 10);
+    }
+
+    int expected = 101 + 1;
+    for (Map.Entry<Integer, Integer> e : tree.range(101, 301)) {
+      assertEquals(expected, (int) e.getKey());
+      assertEquals(expected * 10, (int) e.getValue());
+      expected += 2;
+    }
+    assertEquals(302, expected);
+
+    int count = 0;
+    for (Map.Entry<Integer, Integer> e : tree.headRange(10)) {
+      count++;
+    }
+    assertEquals(5, count);
+    count = 0;
+    for (Map.Entry<Integer, Integer> e : tree.tailRange(1990)) {
+      count++;
+    }
+    assertEquals(5, count);
+
+    Cursor<Integer, Integer> cursor = tree.cursor();
+    assertTrue(cursor.seekFloor(1001));
+    assertEquals(1000, (int) cursor.key());
+    for (int key = 1000; key >= 0; key -= 2) {
+      assertEquals(key, (int) cursor.key());
+      cursor.previous();
+    }
+    assertFalse(cursor.isValid());
+    assertTrue(cursor.seekLast());
+    assertEquals(1998, (int) cursor.key());
+    assertFalse(cursor.next());
+    assertFalse(cursor.seek(1999));
+    assertTrue(cursor.seekFirst());
+    assertEquals(0, (int) cursor.key());
+  }
+
+  // Testing bottom-up bulk loading for several sizes and fill factors
+  @Test
+  public void testBulkLoad() {
+    double[] fillFactors = new double[] { 0.5, 0.7, 1.0 };
+    for (int d : LEAF_ORDERS) {
+      for (double fillFactor : fillFactors) {
+        for (int n = 0; n < 300; n += 7) {
+          Integer keys[] = new Integer[n];
+          Integer values[] = new Integer[n];
+          TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+          for (int i = 0; i < n; i++) {
+            keys[i] = 3 * i;
+            values[i] = i;
+            expected.put(keys[i], values[i]);
+          }
+          BPlusTree<Integer, Integer> tree = orderedTree(d);
+          tree.bulkLoad(keys, values, fillFactor);
+          if (n == 0) {
+            assertTrue(tree.root == null);
+            continue;
+          }
+          testTreeInvariants(tree);
+          for (int i = 0; i < n; i++) {
+            assertEquals(null, tree.search(keys[i] + 1));
+          }
+          assertSameEntries(tree, expected);
+
+          // the loaded tree keeps working with the regular insert/delete
+          tree.insert(1, -1);
+          tree.delete(0);
+          assertEquals(-1, (int) tree.search(1));
+          assertEquals(null, tree.search(0));
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBulkLoadRejectsDuplicates() {
+    BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>();
+    tree.bulkLoad(new Integer[] { 1, 2, 2, 3 }, new Integer[] { 1, 2, 2, 3 }, 1.0);
+  }
+
+  public void testLongTreeInvariants(LongBPlusTree tree, LongNode node) {
+    int d = node.isLeafNode ? tree.getLeafOrder() : tree.getIndexOrder();
+    assertFalse(node.isOverflowed(d));
+    assertFalse(node != tree.root && node.isUnderflowed(d));
+    for (int i = 1; i < node.size; i++)
+      assertTrue(node.keys[i - 1] < node.keys[i]);
+    if (!(node.isLeafNode))
+      for (int i = 0; i <= node.size; i++)
+        testLongTreeInvariants(tree, ((LongIndexNode)node).children[i]);
+  }
+
   public <K extends Comparable<K>,T>void testTreeInvariants(BPlusTree<K,T>tree){
+    if (tree.root == null || tree.root.isLeafNode)
+      return;
     for (Node<K,T> child : ((IndexNode<K,T>)(tree.root)).children)
-      testNodeInvariants(child);
+      testNodeInvariants(tree, child);
+  }
+
+  /**
+   * @param d leaf order
+   * @return a tree of leaf order d and index order 5 - d, so that looping
+   *     over LEAF_ORDERS runs a test from narrow leaves to narrow index nodes
+   */
+  public static BPlusTree<Integer, Integer> orderedTree(int d) {
+    return new BPlusTree<Integer, Integer>(d, 5 - d);
+  }
+
+  /**
+   * Check that a cursor walks the tree in both directions exactly as the
+   * TreeMap iterates, keys and values alike
+   */
+  public <K extends Comparable<K>, T> void assertSameEntries(BPlusTree<K, T> tree, TreeMap<K, T> expected) {
+    Cursor<K, T> cursor = tree.cursor();
+    cursor.seekFirst();
+    for (Map.Entry<K, T> e : expected.entrySet()) {
+      assertEquals(e.getKey(), cursor.key());
+      assertEquals(e.getValue(), cursor.value());
+      cursor.next();
+    }
+    assertFalse(cursor.isValid());
+    cursor.seekLast();
+    for (Map.Entry<K, T> e : expected.descendingMap().entrySet()) {
+      assertEquals(e.getKey(), cursor.key());
+      assertEquals(e.getValue(), cursor.value());
+      cursor.previous();
+    }
+    assertFalse(cursor.isValid());
   }
   
-  public <K extends Comparable<K>, T> void testNodeInvariants(Node<K,T> node) {
-    assertFalse(node.keys.size() > 2 * BPlusTree.D);
-    assertFalse(node.keys.size() < BPlusTree.D);
+  public <K extends Comparable<K>, T> void testNodeInvariants(BPlusTree<K,T> tree, Node<K,T> node) {
+    int d = node.isLeafNode ? tree.getLeafOrder() : tree.getIndexOrder();
+    assertFalse(node.keys.size() > 2 * d);
+    assertFalse(node.keys.size() < d);
     if (!(node.isLeafNode))
       for (Node<K,T> child : ((IndexNode<K,T>)node).children)
-        testNodeInvariants(child);
+        testNodeInvariants(tree, child);
   }
   
   public <K extends Comparable<K>, T>  int treeDepth(Node<K,T> node) {
@@ -0,0 +1,194 @@
+package BPlusTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Aggregations over a key range of a BPlusTree, computed in parallel on a
+ * fork-join pool. The range is divided along the index nodes with
+ * TreeSpliterator.trySplit until the pieces hold about SPLIT_THRESHOLD
+ * entries, each piece is aggregated by one task walking its subtrees
+ * without allocating per entry, and the results are combined in key order.
+ *
+ * The tree must not be modified while an aggregation runs: no latches are
+ * taken, so on a ConcurrentBPlusTree too it may only run while no writer is
+ * active. A null bound is unbounded. Every method has an overload taking the pool to run on; the
+ * others use the common pool.
+ */
+public class TreeAggregates {
+
+    /** pieces are not split further once they are estimated to hold this many entries */
+    public static final long SPLIT_THRESHOLD = 1 << 14;
+
+    private TreeAggregates() {
+    }
+
+    /**
+     * @return number of entries with from <= key < to
+     */
+    public static <K extends Comparable<K>, T> long count(BPlusTree<K,T> tree, K from, K to) {
+        return count(ForkJoinPool.commonPool(), tree, from, to, null);
+    }
+
+    /**
+     * @param filter entries to count, null for all
+     * @return number of entries with from <= key < to that pass the filter
+     */
+    public static <K extends Comparable<K>, T> long count(ForkJoinPool pool, BPlusTree<K,T> tree, K from, K to,
+            final BiPredicate<? super K, ? super T> filter) {
+        return pool.invoke(new LongTask<K,T>(new TreeSpliterator<K,T>(tree, from, to), new LongAggregation<K,T>() {
+            public long apply(K key, T value) {
+                return filter == null || filter.test(key, value) ? 1 : 0;
+            }
+        }));
+    }
+
+    /**
+     * @param value the number each entry adds
+     * @return sum of value over the entries with from <= key < to
+     */
+    public static <K extends Comparable<K>, T> long sum(BPlusTree<K,T> tree, K from, K to,
+            ToLongFunction<? super T> value) {
+        return sum(ForkJoinPool.commonPool(), tree, from, to, value);
+    }
+
+    public static <K extends Comparable<K>, T> long sum(ForkJoinPool pool, BPlusTree<K,T> tree, K from, K to,
+            final ToLongFunction<? super T> value) {
+        return pool.invoke(new LongTask<K,T>(new TreeSpliterator<K,T>(tree, from, to), new LongAggregation<K,T>() {
+            public long apply(K key, T entryValue) {
+                return value.applyAsLong(entryValue);
+            }
+        }));
+    }
+
+    /**
+     * Fold the entries with from <= key < to, as Stream.reduce does with an
+     * identity, an accumulator and a combiner
+     *
+     * @param identity result of an empty piece, and the start of every piece
+     * @param accumulator adds an entry's key and value to the result of a piece
+     * @param combiner joins the results of two adjacent pieces, the lower keys first
+     * @return the combined result of all pieces
+     */
+    public static <K extends Comparable<K>, T, R> R reduce(BPlusTree<K,T> tree, K from, K to, R identity,
+            Accumulator<? super K, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+        return reduce(ForkJoinPool.commonPool(), tree, from, to, identity, accumulator, combiner);
+    }
+
+    public static <K extends Comparable<K>, T, R> R reduce(ForkJoinPool pool, BPlusTree<K,T> tree, K from, K to,
+            R identity, Accumulator<? super K, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+        return pool.invoke(new ReduceTask<K,T,R>(new TreeSpliterator<K,T>(tree, from, to), identity, accumulator,
+                combiner));
+    }
+
+    /**
+     * Adds one entry to a partial result of reduce
+     */
+    public interface Accumulator<K, T, R> {
+        R accumulate(R result, K key, T value);
+    }
+
+    private interface LongAggregation<K, T> {
+        long apply(K key, T value);
+    }
+
+    /**
+     * Split the spliterator into pieces of about SPLIT_THRESHOLD entries
+     *
+     * @return the pieces before what is left of spliterator, in key order
+     */
+    private static <K extends Comparable<K>, T> List<TreeSpliterator<K,T>> split(TreeSpliterator<K,T> spliterator) {
+        List<TreeSpliterator<K,T>> prefixes = new ArrayList<TreeSpliterator<K,T>>();
+        while (spliterator.estimateSize() > SPLIT_THRESHOLD) {
+            TreeSpliterator<K,T> prefix = (TreeSpliterator<K,T>) spliterator.trySplit();
+            if (prefix == null) {
+                break;
+            }
+            prefixes.add(prefix);
+        }
+        return prefixes;
+    }
+
+    private static final class LongTask<K extends Comparable<K>, T> extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final TreeSpliterator<K,T> spliterator;
+        private final LongAggregation<K,T> aggregation;
+
+        LongTask(TreeSpliterator<K,T> spliterator, LongAggregation<K,T> aggregation) {
+            this.spliterator = spliterator;
+            this.aggregation = aggregation;
+        }
+
+        @Override
+        protected Long compute() {
+            List<LongTask<K,T>> forked = new ArrayList<LongTask<K,T>>();
+            for (TreeSpliterator<K,T> prefix : split(spliterator)) {
+                LongTask<K,T> task = new LongTask<K,T>(prefix, aggregation);
+                task.fork();
+                forked.add(task);
+            }
+            class Sum implements BiConsumer<K,T> {
+                long total;
+
+                public void accept(K key, T value) {
+                    total += aggregation.apply(key, value);
+                }
+            }
+            Sum sum = new Sum();
+            spliterator.forEachRemaining(sum);
+            for (LongTask<K,T> task : forked) {
+                sum.total += task.join();
+            }
+            return sum.total;
+        }
+    }
+
+    private static final class ReduceTask<K extends Comparable<K>, T, R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final TreeSpliterator<K,T> spliterator;
+        private final R identity;
+        private final Accumulator<? super K, ? super T, R> accumulator;
+        private final BinaryOperator<R> combiner;
+
+        ReduceTask(TreeSpliterator<K,T> spliterator, R identity, Accumulator<? super K, ? super T, R> accumulator,
+                BinaryOperator<R> combiner) {
+            this.spliterator = spliterator;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            List<ReduceTask<K,T,R>> forked = new ArrayList<ReduceTask<K,T,R>>();
+            for (TreeSpliterator<K,T> prefix : split(spliterator)) {
+                ReduceTask<K,T,R> task = new ReduceTask<K,T,R>(prefix, identity, accumulator, combiner);
+                task.fork();
+                forked.add(task);
+            }
+            class Fold implements BiConsumer<K,T> {
+                R result = identity;
+
+                public void accept(K key, T value) {
+                    result = accumulator.accumulate(result, key, value);
+                }
+            }
+            Fold fold = new Fold();
+            spliterator.forEachRemaining(fold);
+            // the forked pieces precede this one and each other in key order
+            R result = fold.result;
+            for (int i = forked.size() - 1; i >= 0; i--) {
+                result = combiner.apply(forked.get(i).join(), result);
+            }
+            return result;
+        }
+    }
+}
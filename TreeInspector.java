@@ -0,0 +1,299 @@
+package BPlusTree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Debugging aid for BPlusTree: a level-by-level dump written straight to an
+ * Appendable, a depth-first walk with a Visitor, and structural statistics
+ * gathered by such a walk. Each is one linear pass over the tree, so they
+ * can be run on trees of millions of entries.
+ *
+ * Nothing is latched. On a ConcurrentBPlusTree, run them while no writer is
+ * active or expect the statistics to report the changes made meanwhile as
+ * violations.
+ */
+public class TreeInspector {
+
+    private TreeInspector() {
+    }
+
+    /**
+     * Callback of walk()
+     */
+    public interface Visitor<K extends Comparable<K>, T> {
+
+        /**
+         * @param node
+         * @param depth 0 for the root
+         * @param low every key below node should be >= low, null if unbounded
+         * @param high every key below node should be < high, null if unbounded
+         */
+        void visitIndex(IndexNode<K,T> node, int depth, K low, K high);
+
+        /**
+         * @param leaf
+         * @param depth 0 for the root
+         * @param low every key of leaf should be >= low, null if unbounded
+         * @param high every key of leaf should be < high, null if unbounded
+         */
+        void visitLeaf(LeafNode<K,T> leaf, int depth, K low, K high);
+    }
+
+    /**
+     * Visit every node depth first, an index node before its children and
+     * the leaves in key order, passing down the separators bounding each node
+     *
+     * @param tree
+     * @param visitor
+     */
+    public static <K extends Comparable<K>, T> void walk(BPlusTree<K,T> tree, Visitor<K,T> visitor) {
+        if (tree.root != null) {
+            walk(tree.root, 0, null, null, visitor);
+        }
+    }
+
+    private static <K extends Comparable<K>, T> void walk(Node<K,T> node, int depth, K low, K high, Visitor<K,T> visitor) {
+        if (node.isLeafNode) {
+            visitor.visitLeaf((LeafNode<K,T>) node, depth, low, high);
+            return;
+        }
+        IndexNode<K,T> index = (IndexNode<K,T>) node;
+        visitor.visitIndex(index, depth, low, high);
+        int keys = index.keys.size();
+        for (int i = 0; i < index.children.size(); i++) {
+            walk(index.children.get(i), depth + 1, i == 0 ? low : i - 1 < keys ? index.keys.get(i - 1) : high,
+                    i < keys ? index.keys.get(i) : high, visitor);
+        }
+    }
+
+    /**
+     * Write the tree level by level in the format of Utils.outputTree: an
+     * index node as @k1/k2/@, a leaf as [(k,v);(k,v);] followed by $ if it
+     * is the last child of its parent and by # otherwise, and %% after
+     * every level. Only two levels are held at a time.
+     *
+     * @param tree
+     * @param out
+     */
+    public static <K extends Comparable<K>, T> void dump(BPlusTree<K,T> tree, Appendable out) throws IOException {
+        if (tree.root == null) {
+            return;
+        }
+        List<Node<K,T>> level = new ArrayList<Node<K,T>>();
+        BitSet lastChild = new BitSet();  // positions of the last children in level
+        level.add(tree.root);
+        lastChild.set(0);
+        while (!level.isEmpty()) {
+            List<Node<K,T>> next = new ArrayList<Node<K,T>>();
+            BitSet nextLastChild = new BitSet();
+            for (int n = 0; n < level.size(); n++) {
+                Node<K,T> node = level.get(n);
+                if (node.isLeafNode) {
+                    LeafNode<K,T> leaf = (LeafNode<K,T>) node;
+                    out.append('[');
+                    for (int i = 0; i < leaf.keys.size(); i++) {
+                        out.append('(').append(String.valueOf(leaf.keys.get(i))).append(',')
+                                .append(String.valueOf(leaf.values.get(i))).append(");");
+                    }
+                    out.append(lastChild.get(n) ? "]$" : "]#");
+                } else {
+                    IndexNode<K,T> index = (IndexNode<K,T>) node;
+                    out.append('@');
+                    for (K key : index.keys) {
+                        out.append(String.valueOf(key)).append('/');
+                    }
+                    out.append('@');
+                    next.addAll(index.children);
+                    nextLastChild.set(next.size() - 1);
+                }
+            }
+            out.append("%%");
+            level = next;
+            lastChild = nextLastChild;
+        }
+    }
+
+    /**
+     * Gather the statistics of the tree in one depth-first pass
+     *
+     * @param tree
+     * @return height, nodes per level, fill factors, leaf chain consistency and invariant violations
+     */
+    public static <K extends Comparable<K>, T> Stats inspect(BPlusTree<K,T> tree) {
+        StatsVisitor<K,T> visitor = new StatsVisitor<K,T>(tree);
+        walk(tree, visitor);
+        visitor.finish();
+        return visitor.stats;
+    }
+
+    /**
+     * Structural statistics of a tree, see inspect()
+     */
+    public static class Stats {
+        /** number of levels, 0 for an empty tree */
+        public int height;
+        /** entries in the leaves */
+        public long entries;
+        /** nodesPerLevel.get(i) nodes at depth i, the root at depth 0 */
+        public final List<Long> nodesPerLevel = new ArrayList<Long>();
+        /** leafFill[b] leaves holding b*10% to (b+1)*10% of 2*leafD entries; full leaves count in the last bucket */
+        public final long[] leafFill = new long[10];
+        /** indexFill[b] index nodes holding b*10% to (b+1)*10% of 2*indexD keys */
+        public final long[] indexFill = new long[10];
+        /** true if following nextLeaf and previousLeaf gives the leaves in key order */
+        public boolean leafChainConsistent = true;
+        /** number of broken invariants found */
+        public long violationCount;
+        /** descriptions of the first MAX_VIOLATIONS broken invariants */
+        public final List<String> violations = new ArrayList<String>();
+
+        public static final int MAX_VIOLATIONS = 100;
+
+        public long leaves() {
+            return height == 0 ? 0 : nodesPerLevel.get(height - 1);
+        }
+
+        public long nodes() {
+            long nodes = 0;
+            for (long n : nodesPerLevel) {
+                nodes += n;
+            }
+            return nodes;
+        }
+
+        /**
+         * @param leafD order of the leaves
+         * @return entries divided by the capacity of the leaves, in (0, 1]
+         */
+        public double leafFillFactor(int leafD) {
+            long leaves = leaves();
+            return leaves == 0 ? 0 : (double) entries / (leaves * 2L * leafD);
+        }
+
+        public boolean isValid() {
+            return violationCount == 0 && leafChainConsistent;
+        }
+
+        void violation(String description) {
+            violationCount++;
+            if (violations.size() < MAX_VIOLATIONS) {
+                violations.add(description);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append("height=").append(height).append(" entries=").append(entries)
+                    .append(" nodes per level=").append(nodesPerLevel).append('\n');
+            out.append("leaf fill    ");
+            appendHistogram(out, leafFill);
+            out.append("index fill   ");
+            appendHistogram(out, indexFill);
+            out.append("leaf chain ").append(leafChainConsistent ? "consistent" : "BROKEN")
+                    .append(", ").append(violationCount).append(" violations");
+            for (String violation : violations) {
+                out.append("\n  ").append(violation);
+            }
+            return out.toString();
+        }
+
+        private static void appendHistogram(StringBuilder out, long[] buckets) {
+            for (int b = 0; b < buckets.length; b++) {
+                out.append(b * 10).append("%:").append(buckets[b]).append(' ');
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Fills a Stats from a depth-first walk
+     */
+    private static class StatsVisitor<K extends Comparable<K>, T> implements Visitor<K,T> {
+        final Stats stats = new Stats();
+        private final BPlusTree<K,T> tree;
+        private int leafDepth = -1;
+        private LeafNode<K,T> previousLeaf;
+
+        StatsVisitor(BPlusTree<K,T> tree) {
+            this.tree = tree;
+        }
+
+        public void visitIndex(IndexNode<K,T> node, int depth, K low, K high) {
+            count(depth);
+            checkKeys(node, depth, low, high, tree.getIndexOrder());
+            stats.indexFill[bucket(node.keys.size(), tree.getIndexOrder())]++;
+            if (node.children.size() != node.keys.size() + 1) {
+                stats.violation(where(node, depth) + " has " + node.keys.size() + " keys but "
+                        + node.children.size() + " children");
+            }
+        }
+
+        public void visitLeaf(LeafNode<K,T> leaf, int depth, K low, K high) {
+            count(depth);
+            checkKeys(leaf, depth, low, high, tree.getLeafOrder());
+            stats.entries += leaf.keys.size();
+            stats.leafFill[bucket(leaf.keys.size(), tree.getLeafOrder())]++;
+            if (leaf.values.size() != leaf.keys.size()) {
+                stats.violation(where(leaf, depth) + " has " + leaf.keys.size() + " keys but "
+                        + leaf.values.size() + " values");
+            }
+            if (leafDepth < 0) {
+                leafDepth = depth;
+            } else if (depth != leafDepth) {
+                stats.violation(where(leaf, depth) + " is a leaf at depth " + depth + ", the first leaf is at " + leafDepth);
+            }
+            if (leaf.previousLeaf != previousLeaf || (previousLeaf != null && previousLeaf.nextLeaf != leaf)) {
+                stats.leafChainConsistent = false;
+            }
+            previousLeaf = leaf;
+        }
+
+        void finish() {
+            if (previousLeaf != null && previousLeaf.nextLeaf != null) {
+                stats.leafChainConsistent = false;
+            }
+        }
+
+        private void count(int depth) {
+            while (stats.nodesPerLevel.size() <= depth) {
+                stats.nodesPerLevel.add(0L);
+            }
+            stats.nodesPerLevel.set(depth, stats.nodesPerLevel.get(depth) + 1);
+            stats.height = Math.max(stats.height, depth + 1);
+        }
+
+        /**
+         * check the node size, that the keys ascend and that they lie within the separators.
+         * Split policies other than the midpoint leave nodes below d keys by design.
+         */
+        private void checkKeys(Node<K,T> node, int depth, K low, K high, int d) {
+            int size = node.keys.size();
+            int min = depth == 0 || tree.getSplitPolicy() != SplitPolicy.MIDPOINT ? 1 : d;
+            if (size < min || size > 2 * d) {
+                stats.violation(where(node, depth) + " has " + size + " keys, expected " + min + ".." + 2 * d);
+            }
+            for (int i = 0; i < size; i++) {
+                K key = node.keys.get(i);
+                if (i > 0 && node.keys.get(i - 1).compareTo(key) >= 0) {
+                    stats.violation(where(node, depth) + ": key " + key + " does not follow " + node.keys.get(i - 1));
+                }
+                if ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) >= 0)) {
+                    stats.violation(where(node, depth) + ": key " + key + " is outside [" + low + ", " + high + ")");
+                }
+            }
+        }
+
+        private static int bucket(int size, int d) {
+            return Math.min(9, size * 10 / (2 * d));
+        }
+
+        private static String where(Node<?,?> node, int depth) {
+            return (node.isLeafNode ? "leaf" : "index node") + " at depth " + depth
+                    + (node.keys.isEmpty() ? "" : " starting at " + node.keys.get(0));
+        }
+    }
+}
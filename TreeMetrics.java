@@ -0,0 +1,315 @@
+package BPlusTree;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the structural changes and operations of a BPlusTree, and a
+ * latency histogram per operation. A tree records into its metrics only
+ * after setMetrics(); without metrics the hot paths pay one null check.
+ * All counters are LongAdders, so threads of a ConcurrentBPlusTree can
+ * record without contending.
+ *
+ * The counters can be read through snapshot(), or through JMX after
+ * register(). Subtracting two snapshots gives the splits, merges and
+ * latencies of the interval between them, which is the way to match a
+ * latency spike with a burst of splits or merges.
+ */
+public class TreeMetrics implements TreeMetricsMBean {
+
+    final LongAdder leafSplits = new LongAdder();
+    final LongAdder indexSplits = new LongAdder();
+    final LongAdder leafMerges = new LongAdder();
+    final LongAdder leafRedistributions = new LongAdder();
+    final LongAdder indexMerges = new LongAdder();
+    final LongAdder indexRedistributions = new LongAdder();
+    final LongAdder rootSplits = new LongAdder();     // the tree grew by a level
+    final LongAdder rootCollapses = new LongAdder();  // the tree shrank by a level
+    final LongAdder rebuiltRuns = new LongAdder();    // sibling runs rebuilt by applyBatch or rebalance
+    final LongAdder lookups = new LongAdder();
+    final LongAdder nodesVisited = new LongAdder();
+    final LongAdder comparisons = new LongAdder();
+    final LatencyHistogram searchLatency = new LatencyHistogram();
+    final LatencyHistogram insertLatency = new LatencyHistogram();
+    final LatencyHistogram deleteLatency = new LatencyHistogram();
+
+    private ObjectName registeredName;
+
+    /**
+     * Record a search
+     *
+     * @param nodes nodes visited from the root (or the finger) to the leaf
+     * @param keyComparisons key comparisons made on the way
+     * @param nanos latency of the search
+     */
+    void recordSearch(int nodes, int keyComparisons, long nanos) {
+        lookups.increment();
+        nodesVisited.add(nodes);
+        comparisons.add(keyComparisons);
+        searchLatency.record(nanos);
+    }
+
+    /**
+     * @param n number of keys in a node
+     * @return key comparisons of a binary search over the node,
+     *         ceil(log2(n + 1))
+     */
+    static int probes(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n);
+    }
+
+    /**
+     * Register these metrics with the platform MBean server as
+     * BPlusTree:type=TreeMetrics,name=&lt;name&gt;
+     *
+     * @param name name of the tree
+     * @return the object name the metrics were registered under
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        if (registeredName != null) {
+            throw new IllegalStateException("already registered as " + registeredName);
+        }
+        ObjectName objectName = new ObjectName("BPlusTree:type=TreeMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if registered
+     */
+    public synchronized void unregister() throws JMException {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registeredName)) {
+            server.unregisterMBean(registeredName);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * @return the current value of every counter and copies of the histograms
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public void reset() {
+        leafSplits.reset();
+        indexSplits.reset();
+        leafMerges.reset();
+        leafRedistributions.reset();
+        indexMerges.reset();
+        indexRedistributions.reset();
+        rootSplits.reset();
+        rootCollapses.reset();
+        rebuiltRuns.reset();
+        lookups.reset();
+        nodesVisited.reset();
+        comparisons.reset();
+        searchLatency.reset();
+        insertLatency.reset();
+        deleteLatency.reset();
+    }
+
+    public LatencyHistogram getSearchLatency() {
+        return searchLatency;
+    }
+
+    public LatencyHistogram getInsertLatency() {
+        return insertLatency;
+    }
+
+    public LatencyHistogram getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    // TreeMetricsMBean
+    public long getLeafSplits() {
+        return leafSplits.sum();
+    }
+
+    public long getIndexSplits() {
+        return indexSplits.sum();
+    }
+
+    public long getLeafMerges() {
+        return leafMerges.sum();
+    }
+
+    public long getLeafRedistributions() {
+        return leafRedistributions.sum();
+    }
+
+    public long getIndexMerges() {
+        return indexMerges.sum();
+    }
+
+    public long getIndexRedistributions() {
+        return indexRedistributions.sum();
+    }
+
+    public long getRootSplits() {
+        return rootSplits.sum();
+    }
+
+    public long getRootCollapses() {
+        return rootCollapses.sum();
+    }
+
+    public long getRebuiltRuns() {
+        return rebuiltRuns.sum();
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public double getNodesVisitedPerLookup() {
+        long lookups = this.lookups.sum();
+        return lookups == 0 ? 0 : (double) nodesVisited.sum() / lookups;
+    }
+
+    public double getComparisonsPerLookup() {
+        long lookups = this.lookups.sum();
+        return lookups == 0 ? 0 : (double) comparisons.sum() / lookups;
+    }
+
+    public long getSearchCount() {
+        return searchLatency.count();
+    }
+
+    public long getSearchMeanNanos() {
+        return searchLatency.meanNanos();
+    }
+
+    public long getSearchP99Nanos() {
+        return searchLatency.percentileNanos(0.99);
+    }
+
+    public long getSearchMaxNanos() {
+        return searchLatency.maxNanos();
+    }
+
+    public long getInsertCount() {
+        return insertLatency.count();
+    }
+
+    public long getInsertMeanNanos() {
+        return insertLatency.meanNanos();
+    }
+
+    public long getInsertP99Nanos() {
+        return insertLatency.percentileNanos(0.99);
+    }
+
+    public long getInsertMaxNanos() {
+        return insertLatency.maxNanos();
+    }
+
+    public long getDeleteCount() {
+        return deleteLatency.count();
+    }
+
+    public long getDeleteMeanNanos() {
+        return deleteLatency.meanNanos();
+    }
+
+    public long getDeleteP99Nanos() {
+        return deleteLatency.percentileNanos(0.99);
+    }
+
+    public long getDeleteMaxNanos() {
+        return deleteLatency.maxNanos();
+    }
+
+    /**
+     * Values of the counters at one point in time. Counters recorded while
+     * the snapshot is taken may or may not be included.
+     */
+    public static class Snapshot {
+        public final long timeMillis;
+        public final long leafSplits;
+        public final long indexSplits;
+        public final long leafMerges;
+        public final long leafRedistributions;
+        public final long indexMerges;
+        public final long indexRedistributions;
+        public final long rootSplits;
+        public final long rootCollapses;
+        public final long rebuiltRuns;
+        public final long lookups;
+        public final long nodesVisited;
+        public final long comparisons;
+        public final LatencyHistogram searchLatency;
+        public final LatencyHistogram insertLatency;
+        public final LatencyHistogram deleteLatency;
+
+        Snapshot(TreeMetrics metrics) {
+            timeMillis = System.currentTimeMillis();
+            leafSplits = metrics.leafSplits.sum();
+            indexSplits = metrics.indexSplits.sum();
+            leafMerges = metrics.leafMerges.sum();
+            leafRedistributions = metrics.leafRedistributions.sum();
+            indexMerges = metrics.indexMerges.sum();
+            indexRedistributions = metrics.indexRedistributions.sum();
+            rootSplits = metrics.rootSplits.sum();
+            rootCollapses = metrics.rootCollapses.sum();
+            rebuiltRuns = metrics.rebuiltRuns.sum();
+            lookups = metrics.lookups.sum();
+            nodesVisited = metrics.nodesVisited.sum();
+            comparisons = metrics.comparisons.sum();
+            searchLatency = metrics.searchLatency.copy();
+            insertLatency = metrics.insertLatency.copy();
+            deleteLatency = metrics.deleteLatency.copy();
+        }
+
+        private Snapshot(Snapshot later, Snapshot earlier) {
+            timeMillis = later.timeMillis - earlier.timeMillis;
+            leafSplits = later.leafSplits - earlier.leafSplits;
+            indexSplits = later.indexSplits - earlier.indexSplits;
+            leafMerges = later.leafMerges - earlier.leafMerges;
+            leafRedistributions = later.leafRedistributions - earlier.leafRedistributions;
+            indexMerges = later.indexMerges - earlier.indexMerges;
+            indexRedistributions = later.indexRedistributions - earlier.indexRedistributions;
+            rootSplits = later.rootSplits - earlier.rootSplits;
+            rootCollapses = later.rootCollapses - earlier.rootCollapses;
+            rebuiltRuns = later.rebuiltRuns - earlier.rebuiltRuns;
+            lookups = later.lookups - earlier.lookups;
+            nodesVisited = later.nodesVisited - earlier.nodesVisited;
+            comparisons = later.comparisons - earlier.comparisons;
+            searchLatency = later.searchLatency.minus(earlier.searchLatency);
+            insertLatency = later.insertLatency.minus(earlier.insertLatency);
+            deleteLatency = later.deleteLatency.minus(earlier.deleteLatency);
+        }
+
+        /**
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return the changes between the two snapshots; timeMillis is the
+         *         length of the interval
+         */
+        public Snapshot minus(Snapshot earlier) {
+            return new Snapshot(this, earlier);
+        }
+
+        @Override
+        public String toString() {
+            return "splits: leaf=" + leafSplits + " index=" + indexSplits + " root=" + rootSplits
+                    + "\nmerges: leaf=" + leafMerges + " index=" + indexMerges + " root=" + rootCollapses
+                    + "\nredistributions: leaf=" + leafRedistributions + " index=" + indexRedistributions
+                    + "\nrebuilt runs=" + rebuiltRuns
+                    + "\nlookups=" + lookups + " nodes/lookup="
+                    + (lookups == 0 ? 0 : (double) nodesVisited / lookups) + " comparisons/lookup="
+                    + (lookups == 0 ? 0 : (double) comparisons / lookups)
+                    + "\nsearch: " + searchLatency
+                    + "\ninsert: " + insertLatency
+                    + "\ndelete: " + deleteLatency;
+        }
+    }
+}
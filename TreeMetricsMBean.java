@@ -0,0 +1,61 @@
+package BPlusTree;
+
+/**
+ * JMX view of a TreeMetrics. Latencies are in nanoseconds, percentiles are
+ * bucket upper bounds accurate to a factor of two.
+ */
+public interface TreeMetricsMBean {
+
+    long getLeafSplits();
+
+    long getIndexSplits();
+
+    long getLeafMerges();
+
+    long getLeafRedistributions();
+
+    long getIndexMerges();
+
+    long getIndexRedistributions();
+
+    long getRootSplits();
+
+    long getRootCollapses();
+
+    long getRebuiltRuns();
+
+    long getLookups();
+
+    double getNodesVisitedPerLookup();
+
+    double getComparisonsPerLookup();
+
+    long getSearchCount();
+
+    long getSearchMeanNanos();
+
+    long getSearchP99Nanos();
+
+    long getSearchMaxNanos();
+
+    long getInsertCount();
+
+    long getInsertMeanNanos();
+
+    long getInsertP99Nanos();
+
+    long getInsertMaxNanos();
+
+    long getDeleteCount();
+
+    long getDeleteMeanNanos();
+
+    long getDeleteP99Nanos();
+
+    long getDeleteMaxNanos();
+
+    /**
+     * Set every counter and histogram back to zero
+     */
+    void reset();
+}
@@ -0,0 +1,294 @@
+package BPlusTree;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the entries of a BPlusTree with from <= key < to, see
+ * BPlusTree.stream(). It covers a run of sibling subtrees, children
+ * [first, last) of one index node. trySplit hands the first half of the
+ * run to a new spliterator, and a run of a single subtree first steps down
+ * into that subtree's children, so parallel streams divide the tree along
+ * its index nodes without reading a leaf.
+ *
+ * Traversal walks the covered subtrees depth first. The spliterator is
+ * ORDERED, SORTED by key and NONNULL, and SIZED and SUBSIZED when the tree
+ * keeps order statistics and there are no bounds. Without them
+ * estimateSize() guesses from the number and height of the subtrees.
+ *
+ * Like a Cursor, the spliterator is not latched, also not over a
+ * ConcurrentBPlusTree, and modifying the tree while it is in use gives
+ * undefined results.
+ */
+public class TreeSpliterator<K extends Comparable<K>, T> implements Spliterator<Entry<K,T>> {
+
+    private final BPlusTree<K,T> tree;
+    private final K from;  // inclusive lower bound, null if unbounded
+    private final K to;    // exclusive upper bound, null if unbounded
+
+    // the covered subtrees: parent.children[first, last), or just the root
+    // leaf while parent is null
+    private IndexNode<K,T> parent;
+    private LeafNode<K,T> rootLeaf;
+    private int first;
+    private int last;
+    private int height;  // levels of the covered subtrees, 1 for leaves
+
+    // position of tryAdvance, which walks the leaf chain once started
+    private boolean started;
+    private LeafNode<K,T> leaf;
+    private int index;
+    private LeafNode<K,T> endLeaf;  // leaf after the last covered one
+
+    /**
+     * @param tree
+     * @param from inclusive lower bound, null if unbounded
+     * @param to exclusive upper bound, null if unbounded
+     */
+    public TreeSpliterator(BPlusTree<K,T> tree, K from, K to) {
+        this.tree = tree;
+        this.from = from;
+        this.to = to;
+        Node<K,T> root = tree.root;
+        if (root == null) {
+            return;
+        }
+        if (root.isLeafNode) {
+            rootLeaf = (LeafNode<K,T>) root;
+            height = 1;
+        } else {
+            height = 1;
+            for (Node<K,T> node = root; !node.isLeafNode; node = ((IndexNode<K,T>) node).children.get(0)) {
+                height++;
+            }
+            cover((IndexNode<K,T>) root, height);
+        }
+    }
+
+    private TreeSpliterator(TreeSpliterator<K,T> source, int first, int last) {
+        this.tree = source.tree;
+        this.from = source.from;
+        this.to = source.to;
+        this.parent = source.parent;
+        this.height = source.height;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Cover the children of node that may hold keys within the bounds
+     *
+     * @param nodeHeight levels of node, 2 or more
+     */
+    private void cover(IndexNode<K,T> node, int nodeHeight) {
+        parent = node;
+        height = nodeHeight - 1;
+        first = from == null ? 0 : node.upperBound(from);
+        last = to == null ? node.children.size() : lowerBound(node, to) + 1;
+    }
+
+    /**
+     * @return number of keys of node smaller than key
+     */
+    private static <K extends Comparable<K>> int lowerBound(Node<K,?> node, K key) {
+        int low = 0;
+        int high = node.keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (node.keys.get(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public Spliterator<Entry<K,T>> trySplit() {
+        if (started || parent == null) {
+            return null;
+        }
+        while (last - first == 1 && height > 1) {
+            cover((IndexNode<K,T>) parent.children.get(first), height);
+        }
+        if (last - first < 2) {
+            return null;
+        }
+        int middle = (first + last) >>> 1;
+        TreeSpliterator<K,T> prefix = new TreeSpliterator<K,T>(this, first, middle);
+        first = middle;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        if (hasExactSize()) {
+            return exactSize();
+        }
+        if (started) {
+            return leaf == null ? 0 : Math.max(1, subtreeEstimate(1) - index);
+        }
+        if (parent == null) {
+            return rootLeaf == null ? 0 : rootLeaf.keys.size();
+        }
+        return Math.max(0, last - first) * subtreeEstimate(height);
+    }
+
+    /**
+     * @return entries in a subtree of the given height, assuming nodes three
+     *         quarters full
+     */
+    private long subtreeEstimate(int levels) {
+        double entries = 1.5 * tree.getLeafOrder();
+        for (int level = 1; level < levels; level++) {
+            entries *= 1.5 * tree.getIndexOrder() + 1;
+        }
+        return (long) Math.min(Long.MAX_VALUE / 2, entries);
+    }
+
+    private boolean hasExactSize() {
+        return from == null && to == null && !started && (parent == null || parent.counts != null)
+                && tree.isOrderStatisticsEnabled();
+    }
+
+    private long exactSize() {
+        if (parent == null) {
+            return rootLeaf == null ? 0 : rootLeaf.keys.size();
+        }
+        long size = 0;
+        for (int i = first; i < last; i++) {
+            size += parent.counts[i];
+        }
+        return size;
+    }
+
+    public long getExactSizeIfKnown() {
+        return hasExactSize() ? exactSize() : -1;
+    }
+
+    public int characteristics() {
+        int characteristics = ORDERED | SORTED | NONNULL | DISTINCT;
+        if (hasExactSize()) {
+            characteristics |= SIZED | SUBSIZED;
+        }
+        return characteristics;
+    }
+
+    public Comparator<? super Entry<K,T>> getComparator() {
+        return Map.Entry.<K,T>comparingByKey();
+    }
+
+    public boolean tryAdvance(Consumer<? super Entry<K,T>> action) {
+        if (!started) {
+            start();
+        }
+        while (leaf != endLeaf && index >= leaf.keys.size()) {
+            leaf = leaf.nextLeaf;
+            index = 0;
+        }
+        if (leaf == endLeaf || (to != null && leaf.keys.get(index).compareTo(to) >= 0)) {
+            leaf = endLeaf;
+            return false;
+        }
+        action.accept(new AbstractMap.SimpleImmutableEntry<K,T>(leaf.keys.get(index), leaf.values.get(index)));
+        index++;
+        return true;
+    }
+
+    /**
+     * Find the first entry within the bounds and the leaf after the last
+     * covered one, for tryAdvance
+     */
+    private void start() {
+        started = true;
+        if (parent == null) {
+            leaf = rootLeaf;
+            endLeaf = null;
+        } else if (first >= last) {
+            return;  // leaf == endLeaf == null
+        } else {
+            Node<K,T> node = parent.children.get(first);
+            while (!node.isLeafNode) {
+                node = ((IndexNode<K,T>) node).children.get(from == null ? 0 : node.upperBound(from));
+            }
+            leaf = (LeafNode<K,T>) node;
+            node = parent.children.get(last - 1);
+            while (!node.isLeafNode) {
+                IndexNode<K,T> inner = (IndexNode<K,T>) node;
+                node = inner.children.get(inner.children.size() - 1);
+            }
+            endLeaf = ((LeafNode<K,T>) node).nextLeaf;
+        }
+        index = leaf == null || from == null ? 0 : lowerBound(leaf, from);
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super Entry<K,T>> action) {
+        forEachRemaining(new BiConsumer<K,T>() {
+            public void accept(K key, T value) {
+                action.accept(new AbstractMap.SimpleImmutableEntry<K,T>(key, value));
+            }
+        });
+    }
+
+    /**
+     * Pass every remaining key and value to action without allocating an
+     * entry for each, as the aggregations of TreeAggregates do
+     *
+     * @param action
+     */
+    public void forEachRemaining(BiConsumer<? super K, ? super T> action) {
+        if (started) {
+            while (leaf != endLeaf) {
+                for (; index < leaf.keys.size(); index++) {
+                    K key = leaf.keys.get(index);
+                    if (to != null && key.compareTo(to) >= 0) {
+                        leaf = endLeaf;
+                        return;
+                    }
+                    action.accept(key, leaf.values.get(index));
+                }
+                leaf = leaf.nextLeaf;
+                index = 0;
+            }
+            return;
+        }
+        started = true;  // consumed
+        if (parent == null) {
+            if (rootLeaf != null) {
+                visitLeaf(rootLeaf, action);
+            }
+            return;
+        }
+        for (int i = first; i < last; i++) {
+            visit(parent.children.get(i), action);
+        }
+        first = last;
+    }
+
+    private void visit(Node<K,T> node, BiConsumer<? super K, ? super T> action) {
+        if (node.isLeafNode) {
+            visitLeaf((LeafNode<K,T>) node, action);
+            return;
+        }
+        IndexNode<K,T> index = (IndexNode<K,T>) node;
+        int start = from == null ? 0 : index.upperBound(from);
+        int end = to == null ? index.children.size() : lowerBound(index, to) + 1;
+        for (int i = start; i < end; i++) {
+            visit(index.children.get(i), action);
+        }
+    }
+
+    private void visitLeaf(LeafNode<K,T> leaf, BiConsumer<? super K, ? super T> action) {
+        int size = leaf.keys.size();
+        int start = from == null ? 0 : lowerBound(leaf, from);
+        int end = to == null ? size : lowerBound(leaf, to);
+        for (int i = start; i < end; i++) {
+            action.accept(leaf.keys.get(i), leaf.values.get(i));
+        }
+    }
+}
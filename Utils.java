@@ -1,7 +1,6 @@
 package BPlusTree;
 
-import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
 
 /**
  * Class contains methods assisting coding and testing
@@ -21,68 +20,33 @@ public class Utils {
     }
   }
 	
+  /**
+   * Dump the tree level by level into a string, see TreeInspector.dump
+   *
+   * @param tree
+   * @return the dump, empty for an empty tree
+   */
   public static <K extends Comparable<K>,T> String outputTree(BPlusTree<K,T> tree) {
-    /* Temporary queue. */
-    LinkedBlockingQueue<Node<K,T>> queue;
-  
-    /* Create a queue to hold node pointers. */
-    queue = new LinkedBlockingQueue<Node<K,T>>();
-    String result = "";
-  
-    int nodesInCurrentLevel = 1;
-    int nodesInNextLevel = 0;
-    ArrayList<Integer> childrenPerIndex = new ArrayList<Integer>();
-    queue.add(tree.root);
-    while (!queue.isEmpty()) {
-      Node<K,T> target = queue.poll();
-      nodesInCurrentLevel--;
-      if (target.isLeafNode) {
-        LeafNode<K,T> leaf = (LeafNode<K,T>) target;
-        result += "[";
-        for (int i = 0; i < leaf.keys.size(); i++) {
-          result += "(" + leaf.keys.get(i) + "," + leaf.values.get(i) + ");";
-        }
-        if (childrenPerIndex.isEmpty()) {
-          result += "]$";
-        } else {
-          childrenPerIndex.set(0, childrenPerIndex.get(0) - 1);
-          if (childrenPerIndex.get(0) == 0) {
-            result += "]$";
-            childrenPerIndex.remove(0);
-          } else {
-            result += "]#";
-          }
-        }
-      } else {
-        IndexNode<K,T> index = ((IndexNode<K,T>) target);
-        result += "@";
-        for (int i = 0; i < index.keys.size(); i++) {
-          result += "" + index.keys.get(i) + "/";
-        }
-        result += "@";
-        queue.addAll(index.children);
-        if (index.children.get(0).isLeafNode) {
-          childrenPerIndex.add(index.children.size());
-        }
-        nodesInNextLevel += index.children.size();
-      }
-  
-      if (nodesInCurrentLevel == 0) {
-        result += "%%";
-        nodesInCurrentLevel = nodesInNextLevel;
-        nodesInNextLevel = 0;
-      }
+    StringBuilder result = new StringBuilder();
+    try {
+      TreeInspector.dump(tree, result);
+    } catch (IOException e) {
+      throw new AssertionError(e);  // a StringBuilder does not throw
+    }
+    return result.toString();
   }
-  
-  return result;
-}
 
   /**
-   * print the current tree to console
+   * print the current tree to console, without building it as a string first
    * 
-   * @param root
+   * @param tree
    */
   public static <K extends Comparable<K>,T> void printTree(BPlusTree<K,T> tree){
-    System.out.println(outputTree(tree));
+    try {
+      TreeInspector.dump(tree, System.out);
+    } catch (IOException e) {
+      throw new AssertionError(e);  // a PrintStream does not throw
+    }
+    System.out.println();
   }
 }
@@ -0,0 +1,244 @@
+package BPlusTree;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Compares the BPlusTree with a sorted array, TreeMap and
+ * ConcurrentSkipListMap on search, insert, delete and mixed workloads, for
+ * sequential and random key orders and several tree sizes. Besides the
+ * throughput it reports the bytes allocated per operation, read from the
+ * per-thread allocation counter of the JVM.
+ *
+ * Usage: java BPlusTree.Benchmark compare [entries...]
+ */
+public class WorkloadBenchmark {
+
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int MEASURE_ROUNDS = 5;
+  private static final int[] DEFAULT_SIZES = { 10000, 100000, 1000000 };
+
+  static final String[] WORKLOADS = { "search", "insert", "delete", "mixed" };
+  static final String[] STRUCTURES = { "BPlusTree", "SortedArray", "TreeMap", "SkipList" };
+
+  // sink for the lookup results so the JIT cannot drop the searches
+  private static long blackhole;
+
+  /**
+   * The operations a benchmarked structure has to support. Unsupported
+   * operations throw UnsupportedOperationException.
+   */
+  interface Subject {
+    void insert(Integer key);
+    int search(Integer key);
+    void delete(Integer key);
+  }
+
+  public static void main(String[] args) {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    run(sizes);
+  }
+
+  /**
+   * Run every workload for every structure, key order and size
+   *
+   * @param sizes number of entries in the structure
+   */
+  public static void run(int[] sizes) {
+    System.out.printf("%9s %-10s %-8s %-12s %14s %10s%n",
+        "entries", "keys", "workload", "structure", "ops/s", "B/op");
+    for (int size : sizes) {
+      for (boolean sequential : new boolean[] { true, false }) {
+        Integer[] keys = keys(size, sequential);
+        for (String workload : WORKLOADS) {
+          for (String structure : STRUCTURES) {
+            double[] result = measure(structure, workload, keys);
+            if (result == null) {
+              continue;
+            }
+            System.out.printf("%9d %-10s %-8s %-12s %14.0f %10.1f%n", size,
+                sequential ? "sequential" : "random", workload, structure, result[0], result[1]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return throughput in ops/s and allocated bytes per operation, or null
+   *         if the structure does not support the workload
+   */
+  static double[] measure(String structure, String workload, Integer[] keys) {
+    double opsPerSecond = 0;
+    double bytesPerOp = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      Subject subject = create(structure, keys.length);
+      long ops;
+      long allocated;
+      long start;
+      long end;
+      try {
+        if (workload.equals("insert")) {
+          allocated = allocatedBytes();
+          start = System.nanoTime();
+          for (Integer key : keys) {
+            subject.insert(key);
+          }
+          end = System.nanoTime();
+          ops = keys.length;
+        } else {
+          fill(subject, keys, workload.equals("mixed"));
+          allocated = allocatedBytes();
+          start = System.nanoTime();
+          ops = workload.equals("search") ? search(subject, keys)
+              : workload.equals("delete") ? delete(subject, keys)
+              : mixed(subject, keys);
+          end = System.nanoTime();
+        }
+      } catch (UnsupportedOperationException e) {
+        return null;
+      }
+      allocated = allocatedBytes() - allocated;
+      if (round >= WARMUP_ROUNDS) {
+        opsPerSecond += Benchmark.opsPerSecond((int) ops, end - start);
+        bytesPerOp += (double) allocated / ops;
+      }
+    }
+    return new double[] { opsPerSecond / MEASURE_ROUNDS, bytesPerOp / MEASURE_ROUNDS };
+  }
+
+  private static void fill(Subject subject, Integer[] keys, boolean evenOnly) {
+    if (subject instanceof SortedArray) {
+      ((SortedArray) subject).load(keys, evenOnly);
+      return;
+    }
+    for (Integer key : keys) {
+      if (!evenOnly || (key & 1) == 0) {
+        subject.insert(key);
+      }
+    }
+  }
+
+  private static long search(Subject subject, Integer[] keys) {
+    long sum = 0;
+    for (Integer key : keys) {
+      sum += subject.search(key);
+    }
+    blackhole += sum;
+    return keys.length;
+  }
+
+  private static long delete(Subject subject, Integer[] keys) {
+    for (Integer key : keys) {
+      subject.delete(key);
+    }
+    return keys.length;
+  }
+
+  /**
+   * 80% searches, 10% inserts and 10% deletes on a structure holding the
+   * even keys. The inserts take the odd keys in turn, each at most once, so
+   * no structure is asked to insert a key it holds: the BPlusTree would add
+   * a duplicate where the maps overwrite the value.
+   */
+  private static long mixed(Subject subject, Integer[] keys) {
+    Random random = new Random(7);
+    long sum = 0;
+    int nextOdd = 0;
+    for (int i = 0; i < keys.length; i++) {
+      Integer key = keys[random.nextInt(keys.length)];
+      int op = random.nextInt(10);
+      if (op == 0) {
+        while (nextOdd < keys.length && (keys[nextOdd] & 1) == 0) {
+          nextOdd++;
+        }
+        if (nextOdd < keys.length) {
+          subject.insert(keys[nextOdd++]);
+        }
+      } else if (op == 1) {
+        subject.delete(key);
+      } else {
+        sum += subject.search(key);
+      }
+    }
+    blackhole += sum;
+    return keys.length;
+  }
+
+  static Integer[] keys(int size, boolean sequential) {
+    int[] order = sequential ? null : Benchmark.shuffledKeys(size, 42);
+    Integer[] keys = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = sequential ? i : order[i];
+    }
+    return keys;
+  }
+
+  static Subject create(String structure, int size) {
+    if (structure.equals("BPlusTree")) {
+      final BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>(32);
+      return new Subject() {
+        public void insert(Integer key) { tree.insert(key, key); }
+        public int search(Integer key) { Integer v = tree.search(key); return v == null ? 0 : v; }
+        public void delete(Integer key) { tree.delete(key); }
+      };
+    } else if (structure.equals("SortedArray")) {
+      return new SortedArray();
+    } else if (structure.equals("TreeMap")) {
+      return new MapSubject(new TreeMap<Integer, Integer>());
+    } else {
+      return new MapSubject(new ConcurrentSkipListMap<Integer, Integer>());
+    }
+  }
+
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static class MapSubject implements Subject {
+    private final Map<Integer, Integer> map;
+
+    MapSubject(Map<Integer, Integer> map) {
+      this.map = map;
+    }
+
+    public void insert(Integer key) { map.put(key, key); }
+    public int search(Integer key) { Integer v = map.get(key); return v == null ? 0 : v; }
+    public void delete(Integer key) { map.remove(key); }
+  }
+
+  /**
+   * The baseline of the README comparison: binary search over a sorted
+   * int array. It is read-only, so only the search workload applies.
+   */
+  static class SortedArray implements Subject {
+    private int[] keys = new int[0];
+
+    void load(Integer[] source, boolean evenOnly) {
+      int[] loaded = new int[source.length];
+      int n = 0;
+      for (Integer key : source) {
+        if (!evenOnly || (key & 1) == 0) {
+          loaded[n++] = key;
+        }
+      }
+      keys = Arrays.copyOf(loaded, n);
+      Arrays.sort(keys);
+    }
+
+    public void insert(Integer key) { throw new UnsupportedOperationException(); }
+    public int search(Integer key) { int i = Arrays.binarySearch(keys, key); return i < 0 ? 0 : keys[i]; }
+    public void delete(Integer key) { throw new UnsupportedOperationException(); }
+  }
+}
@@ -0,0 +1,381 @@
+package BPlusTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of insert and delete records with group commit.
+ *
+ * Appends only copy the record into a memory buffer and return its log
+ * sequence number (LSN). A background flusher writes the buffer and forces
+ * it to disk at most maxDelayNanos after the first pending record, or
+ * sooner once groupBytes are pending, so one force() covers every record
+ * appended in the meantime. awaitDurable(lsn) blocks until a record is on
+ * disk.
+ *
+ * Record format: payload length (int) | CRC32 of the payload (int) | payload
+ * where the payload is the record type (byte), the key and, for inserts,
+ * the value.
+ */
+public class WriteAheadLog<K extends Comparable<K>, T> implements Closeable {
+
+    public static final byte INSERT = 1;
+    public static final byte DELETE = 2;
+
+    private static final int RECORD_HEADER = 8;
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<T> valueSerializer;
+    private final long maxDelayNanos;
+    private final int groupBytes;
+
+    private FileChannel channel;
+    private long segmentBytes;         // bytes appended to the current file
+    private ByteBuffer pending;        // records not written yet
+    private ByteBuffer writing;        // records being written by the flusher
+    private long appendedLsn;
+    private long durableLsn;
+    private IOException failure;
+    private boolean closed;
+    private boolean syncRequested;     // skip the group delay for the next flush
+    private final Thread flusher;
+
+    /**
+     * @param file log file to append to, created if missing
+     * @param maxDelayNanos longest time a record waits before it is forced to disk
+     * @param groupBytes pending bytes that trigger a force before maxDelayNanos
+     */
+    public WriteAheadLog(Path file, Serializer<K> keySerializer, Serializer<T> valueSerializer,
+            long maxDelayNanos, int groupBytes) throws IOException {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.maxDelayNanos = maxDelayNanos;
+        this.groupBytes = groupBytes;
+        this.pending = ByteBuffer.allocate(Math.max(groupBytes * 2, 4096));
+        this.writing = ByteBuffer.allocate(pending.capacity());
+        this.channel = openAppend(file);
+        this.segmentBytes = channel.size();
+        this.flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private static FileChannel openAppend(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Append an insert record
+     *
+     * @return LSN of the record
+     */
+    public synchronized long logInsert(K key, T value) throws IOException {
+        return append(INSERT, key, value);
+    }
+
+    /**
+     * Append a delete record
+     *
+     * @return LSN of the record
+     */
+    public synchronized long logDelete(K key) throws IOException {
+        return append(DELETE, key, null);
+    }
+
+    private long append(byte type, K key, T value) throws IOException {
+        checkOpen();
+        int payload = 1 + keySerializer.size(key) + (type == INSERT ? valueSerializer.size(value) : 0);
+        if (pending.remaining() < RECORD_HEADER + payload) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + payload));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        encode(pending, type, key, value, payload, keySerializer, valueSerializer);
+        segmentBytes += RECORD_HEADER + payload;
+        appendedLsn++;
+        if (pending.position() >= groupBytes || appendedLsn == durableLsn + 1) {
+            notifyAll();  // wake the flusher for a full group, or to start the delay clock
+        }
+        return appendedLsn;
+    }
+
+    /**
+     * Write one record at the position of the buffer
+     */
+    private static <K, T> void encode(ByteBuffer buffer, byte type, K key, T value, int payload,
+            Serializer<K> keySerializer, Serializer<T> valueSerializer) {
+        int start = buffer.position();
+        buffer.putInt(payload);
+        buffer.putInt(0);
+        buffer.put(type);
+        keySerializer.write(buffer, key);
+        if (type == INSERT) {
+            valueSerializer.write(buffer, value);
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + payload);
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Block until the record with the given LSN and every record before it
+     * are on disk
+     */
+    public synchronized void awaitDurable(long lsn) throws IOException {
+        while (durableLsn < lsn) {
+            checkOpen();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the log");
+            }
+        }
+    }
+
+    /**
+     * Force every appended record to disk now
+     */
+    public void sync() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+            if (durableLsn < lsn) {
+                syncRequested = true;
+                notifyAll();
+            }
+        }
+        awaitDurable(lsn);
+    }
+
+    /**
+     * @return bytes appended to the current log file
+     */
+    public synchronized long segmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Make every appended record durable and continue in a new file. The old
+     * file is closed and can be deleted once a checkpoint covers it. The
+     * caller must keep other threads from appending meanwhile.
+     *
+     * @param file the new log file
+     */
+    public void switchTo(Path file) throws IOException {
+        sync();
+        synchronized (this) {
+            checkOpen();
+            FileChannel next = openAppend(file);
+            channel.close();
+            channel = next;
+            segmentBytes = channel.size();
+        }
+    }
+
+    /**
+     * Make every appended record durable, stop the flusher and close the file
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IOException("write-ahead log is closed");
+        }
+    }
+
+    /**
+     * Background group commit: wait for pending records, give more records
+     * up to maxDelayNanos to join the group, then write and force them
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            FileChannel file;
+            synchronized (this) {
+                try {
+                    while (!closed && appendedLsn == durableLsn) {
+                        wait();
+                    }
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    long remaining = maxDelayNanos;
+                    while (!closed && !syncRequested && remaining > 0 && pending.position() < groupBytes) {
+                        wait(remaining / 1000000, (int) (remaining % 1000000));
+                        remaining = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (appendedLsn == durableLsn) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+                pending.clear();
+                syncRequested = false;
+                target = appendedLsn;
+                file = channel;
+            }
+
+            IOException error = null;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    file.write(writing);
+                }
+                file.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            writing.clear();
+
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableLsn = target;
+                }
+                notifyAll();
+                if (error != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Callback for the records read back from a log file
+     */
+    public interface RecordHandler<K, T> {
+        void insert(K key, T value);
+        void delete(K key);
+    }
+
+    /**
+     * Read the records of a log file in order, stopping at the first torn or
+     * corrupt record
+     *
+     * @param file
+     * @param handler receives every valid record
+     */
+    public static <K, T> void replay(Path file, Serializer<K> keySerializer, Serializer<T> valueSerializer,
+            RecordHandler<K, T> handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            buffer.flip();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            int maxPayload = maxPayload(keySerializer, valueSerializer);
+            while (true) {
+                header.clear();
+                if (!fill(channel, buffer, header)) {
+                    return;
+                }
+                header.flip();
+                int payload = header.getInt();
+                int checksum = header.getInt();
+                // a torn header may hold any length: never allocate more
+                // than a record can take or than the file still holds
+                long rest = channel.size() - channel.position() + buffer.remaining();
+                if (payload <= 0 || payload > maxPayload || payload > rest) {
+                    return;
+                }
+                ByteBuffer body = ByteBuffer.allocate(payload);
+                if (!fill(channel, buffer, body)) {
+                    return;
+                }
+                body.flip();
+                CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                byte type = body.get();
+                K key = keySerializer.read(body);
+                if (type == INSERT) {
+                    handler.insert(key, valueSerializer.read(body));
+                } else if (type == DELETE) {
+                    handler.delete(key);
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return largest payload append() can write, Integer.MAX_VALUE unless
+     *         both serializers have a fixed size
+     */
+    private static int maxPayload(Serializer<?> keySerializer, Serializer<?> valueSerializer) {
+        if (keySerializer.fixedSize() < 0 || valueSerializer.fixedSize() < 0) {
+            return Integer.MAX_VALUE;
+        }
+        return 1 + keySerializer.fixedSize() + valueSerializer.fixedSize();
+    }
+
+    /**
+     * Fill target from the read buffer, refilling it from the channel
+     *
+     * @return false if the file ended first
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+                buffer.flip();
+                continue;
+            }
+            int n = Math.min(buffer.remaining(), target.remaining());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + n);
+            target.put(slice);
+            buffer.position(buffer.position() + n);
+        }
+        return true;
+    }
+}